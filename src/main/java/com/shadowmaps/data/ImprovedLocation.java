@@ -0,0 +1,126 @@
+package com.shadowmaps.data;
+
+import android.location.Location;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An improved location from the ShadowMaps server. Immutable, so one instance is handed to every
+ * listener on whatever thread it asked for. The skyview image is shared by reference, never copied.
+ */
+public final class ImprovedLocation {
+    private final double lat;
+    private final double lon;
+    private final float accuracy;
+    private final long utc;
+    private final float altitude;
+    private final float speed;
+    private final float bearing;
+    private final float probIndoors;
+    private final String street;
+    private final byte[] skyview;
+    private final long skyviewKey;
+
+    public ImprovedLocation(LocationImprovement improvement) {
+        this(improvement, improvement.skyviewHash);
+    }
+
+    /**
+     * @param skyviewKey what the SDK's artifact cache stores the skyview under
+     */
+    public ImprovedLocation(LocationImprovement improvement, long skyviewKey) {
+        lat = improvement.lat;
+        lon = improvement.lon;
+        accuracy = improvement.acc;
+        utc = improvement.utc;
+        altitude = improvement.alt;
+        speed = improvement.speed;
+        bearing = improvement.bearing;
+        probIndoors = improvement.probIndoors;
+        street = improvement.geocoded;
+        skyview = improvement.skyview;
+        this.skyviewKey = skyviewKey;
+    }
+
+    public double getLatitude() {
+        return lat;
+    }
+
+    public double getLongitude() {
+        return lon;
+    }
+
+    // Meters
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    // Time of the fix this improves, in milliseconds since the epoch
+    public long getTime() {
+        return utc;
+    }
+
+    public float getAltitude() {
+        return altitude;
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    public float getBearing() {
+        return bearing;
+    }
+
+    public float getProbabilityIndoors() {
+        return probIndoors;
+    }
+
+    /**
+     * @return the reverse geocoded street, or null
+     */
+    public String getStreet() {
+        return street;
+    }
+
+    public boolean hasSkyview() {
+        return skyview != null && skyview.length > 0;
+    }
+
+    /**
+     * @return a read-only view of the skyview PNG, or null if there is none
+     */
+    public ByteBuffer getSkyview() {
+        return hasSkyview() ? ByteBuffer.wrap(skyview).asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * @return identifies the skyview image, equal for locations that share one
+     */
+    public long getSkyviewKey() {
+        return skyviewKey;
+    }
+
+    /**
+     * @return a new Location with this position, for code written against LocationListener
+     */
+    public Location toLocation(String provider) {
+        Location location = new Location(provider);
+        location.setLatitude(lat);
+        location.setLongitude(lon);
+        location.setAccuracy(accuracy);
+        location.setTime(utc);
+        location.setAltitude(altitude);
+        location.setSpeed(speed);
+        location.setBearing(bearing);
+        // Location has no elapsed realtime before API 17
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        }
+        return location;
+    }
+}
@@ -0,0 +1,202 @@
+package com.shadowmaps.data;
+
+/**
+ * Latency and throughput of the realtime pipeline, from ShadowMaps.getTelemetry().
+ *
+ * Every epoch is timed at each stage it passes, from the capture of the event that completed it
+ * to the dispatch of the server's improvement to listeners. getStageLatency(stage) describes the
+ * time from the previous stage the epoch passed to stage. Immutable; take another snapshot and
+ * subtract the counters for rates over an interval.
+ */
+public final class TelemetrySnapshot {
+    public static final int STAGE_CAPTURE = 0;
+    public static final int STAGE_FINALIZE = 1;
+    public static final int STAGE_ENCODE = 2;
+    public static final int STAGE_ENQUEUE = 3;
+    public static final int STAGE_SEND = 4;
+    public static final int STAGE_FIRST_BYTE = 5;
+    public static final int STAGE_PARSE = 6;
+    public static final int STAGE_DISPATCH = 7;
+    public static final int STAGE_COUNT = 8;
+
+    private static final String[] STAGE_NAMES = {"capture", "finalize", "encode", "enqueue", "send",
+            "firstByte", "parse", "dispatch"};
+
+    /**
+     * Summary of one histogram, in microseconds. Percentiles are accurate to about 12%.
+     */
+    public static final class Latency {
+        private final long count;
+        private final long min;
+        private final long mean;
+        private final long max;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+
+        public Latency(long count, long min, long mean, long max, long p50, long p90, long p99) {
+            this.count = count;
+            this.min = min;
+            this.mean = mean;
+            this.max = max;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMinUs() {
+            return min;
+        }
+
+        public long getMeanUs() {
+            return mean;
+        }
+
+        public long getMaxUs() {
+            return max;
+        }
+
+        public long getP50Us() {
+            return p50;
+        }
+
+        public long getP90Us() {
+            return p90;
+        }
+
+        public long getP99Us() {
+            return p99;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " p50=" + p50 + "us p90=" + p90 + "us p99=" + p99 + "us max=" + max + "us";
+        }
+    }
+
+    private final long elapsedMs;
+    private final Latency[] stages;
+    private final Latency endToEnd;
+    private final long epochs;
+    private final long encodedBytes;
+    private final long sentEpochs;
+    private final long sentBytes;
+    private final long improvements;
+    private final long failures;
+    private final long lostTraces;
+    private final boolean hasClockOffset;
+    private final long clockOffsetMs;
+    private final long clockUncertaintyMs;
+
+    public TelemetrySnapshot(long elapsedMs, Latency[] stages, Latency endToEnd, long epochs, long encodedBytes,
+                             long sentEpochs, long sentBytes, long improvements, long failures, long lostTraces,
+                             boolean hasClockOffset, long clockOffsetMs, long clockUncertaintyMs) {
+        this.elapsedMs = elapsedMs;
+        this.stages = stages.clone();
+        this.endToEnd = endToEnd;
+        this.epochs = epochs;
+        this.encodedBytes = encodedBytes;
+        this.sentEpochs = sentEpochs;
+        this.sentBytes = sentBytes;
+        this.improvements = improvements;
+        this.failures = failures;
+        this.lostTraces = lostTraces;
+        this.hasClockOffset = hasClockOffset;
+        this.clockOffsetMs = clockOffsetMs;
+        this.clockUncertaintyMs = clockUncertaintyMs;
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    // Since telemetry started
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    /**
+     * @return time from the previous stage an epoch passed to stage; empty for STAGE_CAPTURE
+     */
+    public Latency getStageLatency(int stage) {
+        return stages[stage];
+    }
+
+    // From capture to dispatch, for epochs that got an improvement
+    public Latency getEndToEndLatency() {
+        return endToEnd;
+    }
+
+    public long getEpochCount() {
+        return epochs;
+    }
+
+    public long getEncodedBytes() {
+        return encodedBytes;
+    }
+
+    public long getSentEpochCount() {
+        return sentEpochs;
+    }
+
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    public long getImprovementCount() {
+        return improvements;
+    }
+
+    // Sends that failed or got no improvement
+    public long getFailureCount() {
+        return failures;
+    }
+
+    // Epochs still unanswered when their timing slot was reused
+    public long getLostTraceCount() {
+        return lostTraces;
+    }
+
+    public double getEpochsPerSecond() {
+        return elapsedMs == 0 ? 0 : epochs * 1000.0 / elapsedMs;
+    }
+
+    public double getSentBytesPerSecond() {
+        return elapsedMs == 0 ? 0 : sentBytes * 1000.0 / elapsedMs;
+    }
+
+    public boolean hasClockOffset() {
+        return hasClockOffset;
+    }
+
+    /**
+     * @return server clock minus device clock, in milliseconds
+     */
+    public long getClockOffsetMs() {
+        return clockOffsetMs;
+    }
+
+    // Half the round trip of the exchange the offset was estimated from
+    public long getClockUncertaintyMs() {
+        return clockUncertaintyMs;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("TelemetrySnapshot: ");
+        sb.append(epochs).append(" epochs, ").append(sentEpochs).append(" sent (").append(sentBytes)
+                .append(" bytes), ").append(improvements).append(" improvements, ").append(failures)
+                .append(" failures in ").append(elapsedMs).append(" ms; end to end ").append(endToEnd);
+        for (int i = STAGE_FINALIZE; i < STAGE_COUNT; i++) {
+            sb.append("; ").append(STAGE_NAMES[i]).append(' ').append(stages[i]);
+        }
+        if (hasClockOffset) {
+            sb.append("; clock offset ").append(clockOffsetMs).append(" +/- ").append(clockUncertaintyMs).append(" ms");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,12 @@
+package com.shadowmaps.listener;
+
+import com.shadowmaps.data.ImprovedLocation;
+
+/**
+ * Receives improved locations, registered with ShadowMaps.addListener.
+ * Called on the listener's own executor. When it falls behind, intermediate locations are
+ * skipped and only the newest is delivered.
+ */
+public interface ImprovedLocationListener {
+    void onImprovedLocation(ImprovedLocation location);
+}
@@ -0,0 +1,15 @@
+package com.shadowmaps.listener;
+
+import android.graphics.Bitmap;
+
+import com.shadowmaps.data.ImprovedLocation;
+
+/**
+ * Receives a skyview decoded by ShadowMaps.decodeSkyview, on the executor it was requested with.
+ */
+public interface SkyviewCallback {
+    /**
+     * @param bitmap the decoded skyview, or null if it is no longer cached or did not decode
+     */
+    void onSkyview(ImprovedLocation location, Bitmap bitmap);
+}
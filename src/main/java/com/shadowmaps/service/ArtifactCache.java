@@ -0,0 +1,426 @@
+package com.shadowmaps.service;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.shadowmaps.data.ImprovedLocation;
+import com.shadowmaps.listener.SkyviewCallback;
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Two-level LRU cache of response artifacts: skyview PNGs and geocoded street names.
+ *
+ * Artifacts are keyed by the server's content hash, or by a quantized position key when the
+ * server sent none. The most recently used ones stay in memory up to maxMemoryBytes, and every
+ * artifact is written to disk in the background, up to maxDiskBytes. resolve() stores what a
+ * response carries and fills in what the server left out because its hash was advertised in
+ * the request. Skyview bitmaps are only decoded when asked for, downsampled, on the cache's
+ * own thread.
+ */
+class ArtifactCache {
+    private static final String TAG = "ShadowMapsCache";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SKYVIEW_SUFFIX = ".png";
+    private static final String GEOCODED_SUFFIX = ".txt";
+    // About 11 m of latitude
+    private static final double POSITION_QUANTUM = 1e-4;
+    private static final int MAX_BITMAPS = 4;
+
+    private final File dir;
+    private final long maxMemoryBytes;
+    private final long maxDiskBytes;
+    private final ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Guarded by this. Values are byte[] skyviews or String street names.
+    private final LinkedHashMap<Long, Object> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0;
+    private final LinkedHashMap<Long, Bitmap> bitmaps = new LinkedHashMap<>(MAX_BITMAPS, 0.75f, true);
+    // Server hashes, most recently used first
+    private final long[] advertised;
+    private int advertisedCount = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long bytesSaved = 0;
+
+    // Only touched on the background thread
+    private long diskBytes = -1;
+
+    /**
+     * @param maxAdvertised server hashes listed in each request
+     */
+    public ArtifactCache(File dir, long maxMemoryBytes, long maxDiskBytes, int maxAdvertised) {
+        this.dir = dir;
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.maxDiskBytes = maxDiskBytes;
+        this.advertised = new long[maxAdvertised];
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.v(TAG, "Could not create " + dir);
+        }
+    }
+
+    /**
+     * Stores the artifacts of response and fills in the ones the server omitted, if cached.
+     * May read from disk, so it must not be called on the main thread.
+     * @return the key of the response's skyview
+     */
+    public long resolve(LocationImprovement response) {
+        long skyviewKey = response.skyviewHash != 0 ? response.skyviewHash
+                : positionKey(response.lat, response.lon, SKYVIEW_SUFFIX);
+        if (response.skyview != null && response.skyview.length > 0) {
+            put(skyviewKey, response.skyview, response.skyview.length, SKYVIEW_SUFFIX);
+            advertise(response.skyviewHash);
+        } else if (response.skyviewHash != 0) {
+            Object cached = get(skyviewKey, SKYVIEW_SUFFIX);
+            if (cached != null) {
+                response.skyview = (byte[]) cached;
+                hit(response.skyviewHash, response.skyview.length);
+            } else {
+                miss(response.skyviewHash);
+            }
+        }
+
+        long geocodedKey = response.geocodedHash != 0 ? response.geocodedHash
+                : positionKey(response.lat, response.lon, GEOCODED_SUFFIX);
+        if (response.geocoded != null && response.geocoded.length() > 0) {
+            put(geocodedKey, response.geocoded, response.geocoded.length() * 2, GEOCODED_SUFFIX);
+            advertise(response.geocodedHash);
+        } else if (response.geocodedHash != 0) {
+            Object cached = get(geocodedKey, GEOCODED_SUFFIX);
+            if (cached != null) {
+                response.geocoded = (String) cached;
+                hit(response.geocodedHash, response.geocoded.length());
+            } else {
+                miss(response.geocodedHash);
+            }
+        }
+        return skyviewKey;
+    }
+
+    /**
+     * @return the server hashes of recently used artifacts, for the next request
+     */
+    public synchronized long[] getAdvertisedHashes() {
+        return Arrays.copyOf(advertised, advertisedCount);
+    }
+
+    /**
+     * Decodes the skyview of location on the cache's thread, downsampled by a power of two to no
+     * less than width x height, and passes it to callback on executor.
+     */
+    public void decodeSkyview(final ImprovedLocation location, final int width, final int height,
+                              final SkyviewCallback callback, final Executor executor) {
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = decode(location.getSkyviewKey(), width, height);
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSkyview(location, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    public void close() {
+        background.shutdown();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + ": " + memory.size() + " artifacts in memory (" + memoryBytes + " bytes), " + hits + " hits, "
+                + misses + " misses, " + bytesSaved + " response bytes saved";
+    }
+
+    private Bitmap decode(long key, int width, int height) {
+        synchronized (this) {
+            Bitmap cached = bitmaps.get(key);
+            if (cached != null && cached.getWidth() >= width && cached.getHeight() >= height) {
+                return cached;
+            }
+        }
+        Object png = get(key, SKYVIEW_SUFFIX);
+        if (!(png instanceof byte[])) {
+            return null;
+        }
+        byte[] bytes = (byte[]) png;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        if (bitmap != null) {
+            synchronized (this) {
+                bitmaps.put(key, bitmap);
+                Iterator<Long> eldest = bitmaps.keySet().iterator();
+                while (bitmaps.size() > MAX_BITMAPS) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        return bitmap;
+    }
+
+    private void put(final long key, final Object value, int size, final String suffix) {
+        synchronized (this) {
+            Object old = memory.get(key);
+            if (old != null && (old.equals(value)
+                    || (old instanceof byte[] && Arrays.equals((byte[]) old, (byte[]) value)))) {
+                // Same artifact again; keep it and any bitmap decoded from it
+                return;
+            }
+            if (old != null) {
+                memoryBytes -= sizeOf(old);
+                bitmaps.remove(key);
+            }
+            memory.put(key, value);
+            memoryBytes += size;
+            trimMemory();
+        }
+        background.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(key, value, suffix);
+            }
+        });
+    }
+
+    // From memory, else from disk
+    private Object get(long key, String suffix) {
+        synchronized (this) {
+            Object value = memory.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        File file = new File(dir, fileName(key, suffix));
+        if (!file.isFile()) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    return null;
+                }
+                read += n;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+        // Least recently used files are evicted first
+        file.setLastModified(System.currentTimeMillis());
+        Object value = SKYVIEW_SUFFIX.equals(suffix) ? bytes : new String(bytes, UTF_8);
+        synchronized (this) {
+            memory.put(key, value);
+            memoryBytes += sizeOf(value);
+            trimMemory();
+        }
+        return value;
+    }
+
+    private synchronized void hit(long hash, int size) {
+        hits++;
+        bytesSaved += size;
+        advertise(hash);
+    }
+
+    // The server left out an artifact that has since been evicted; stop claiming to have it
+    private synchronized void miss(long hash) {
+        misses++;
+        unadvertise(hash);
+    }
+
+    private synchronized void advertise(long hash) {
+        if (hash == 0 || advertised.length == 0) {
+            return;
+        }
+        int i = 0;
+        while (i < advertisedCount && advertised[i] != hash) {
+            i++;
+        }
+        if (i == advertisedCount) {
+            if (advertisedCount < advertised.length) {
+                advertisedCount++;
+            }
+            i = advertisedCount - 1;
+        }
+        System.arraycopy(advertised, 0, advertised, 1, i);
+        advertised[0] = hash;
+    }
+
+    private synchronized void unadvertise(long hash) {
+        for (int i = 0; i < advertisedCount; i++) {
+            if (advertised[i] == hash) {
+                System.arraycopy(advertised, i + 1, advertised, i, advertisedCount - i - 1);
+                advertisedCount--;
+                return;
+            }
+        }
+    }
+
+    // Holds the lock
+    private void trimMemory() {
+        Iterator<Map.Entry<Long, Object>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+            Map.Entry<Long, Object> entry = eldest.next();
+            memoryBytes -= sizeOf(entry.getValue());
+            bitmaps.remove(entry.getKey());
+            eldest.remove();
+        }
+    }
+
+    private void write(long key, Object value, String suffix) {
+        File file = new File(dir, fileName(key, suffix));
+        File tmp = new File(dir, file.getName() + ".tmp");
+        byte[] bytes = value instanceof byte[] ? (byte[]) value : ((String) value).getBytes(UTF_8);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(bytes);
+            out.close();
+            out = null;
+            long replaced = file.length();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+            if (diskBytes < 0) {
+                diskBytes = directorySize();
+            } else {
+                diskBytes += bytes.length - replaced;
+            }
+            trimDisk();
+        } catch (IOException e) {
+            e.printStackTrace();
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private void trimDisk() {
+        if (diskBytes <= maxDiskBytes) {
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (int i = 0; i < files.length && diskBytes > maxDiskBytes; i++) {
+            long length = files[i].length();
+            String name = files[i].getName();
+            if (files[i].delete()) {
+                diskBytes -= length;
+                int dot = name.indexOf('.');
+                if (dot > 0) {
+                    try {
+                        unadvertise(parseKey(name.substring(0, dot)));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+    }
+
+    private long directorySize() {
+        long total = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                total += f.length();
+            }
+        }
+        return total;
+    }
+
+    private static String fileName(long key, String suffix) {
+        return Long.toHexString(key) + suffix;
+    }
+
+    // Reverses fileName(). Long.toHexString() writes keys unsigned, which Long.parseLong() rejects
+    // once the top bit is set.
+    static long parseKey(String hex) {
+        if (hex.length() == 0 || hex.length() > 16) {
+            throw new NumberFormatException(hex);
+        }
+        long key = 0;
+        for (int i = 0; i < hex.length(); i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new NumberFormatException(hex);
+            }
+            key = (key << 4) | digit;
+        }
+        return key;
+    }
+
+    private static int sizeOf(Object value) {
+        return value instanceof byte[] ? ((byte[]) value).length : ((String) value).length() * 2;
+    }
+
+    // Cells of POSITION_QUANTUM degrees, separately for each kind of artifact
+    static long positionKey(double lat, double lon, String suffix) {
+        long latCell = (long) Math.floor(lat / POSITION_QUANTUM);
+        long lonCell = (long) Math.floor(lon / POSITION_QUANTUM);
+        long h = (latCell * 0x9E3779B97F4A7C15L) ^ (lonCell * 0xC2B2AE3D27D4EB4FL) ^ suffix.hashCode();
+        // Hex file names stay distinct from 0, which means "no hash"
+        return h == 0 ? 1 : h;
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
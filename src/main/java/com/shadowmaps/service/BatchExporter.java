@@ -0,0 +1,163 @@
+package com.shadowmaps.service;
+
+import android.os.Environment;
+import android.util.Log;
+
+import com.google.protobuf.nano.MessageNano;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Turns each sealed journal segment into one batch file, columnar (.smpb2) by default
+ * or length-prefixed protobuf (.smpb1), and lets the BatchUploader know there is a new file.
+ * Runs on the journal thread.
+ *
+ * A batch is written under a temporary name and renamed once complete, so the uploader, which
+ * only takes final names, never sees a partial file, not even after a crash mid-write.
+ */
+class BatchExporter implements SegmentJournal.SealListener {
+    private static final String TAG = "Batch storage";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    // Complete batch files, which count towards the journal disk quota and are uploaded
+    public static final FileFilter BATCH_FILES = new FileFilter() {
+        @Override
+        public boolean accept(File f) {
+            return f.isFile() && (f.getName().endsWith(".smpb1") || f.getName().endsWith(".smpb2"));
+        }
+    };
+
+    private final File dir;
+    private final String apiKey;
+    private final String idPrefix;
+    private final BatchUploader batchUploader;
+
+    // Exactly one of these is used
+    private final EncodedBatch recentUpdates;
+    private final ColumnarBatchWriter columnarUpdates;
+
+    /**
+     * @param idPrefix start of every batch id, followed by the creation time
+     * @param batchUploader uploader to kick after each new file, or null
+     */
+    public BatchExporter(File dir, String apiKey, String idPrefix, boolean columnar, BatchUploader batchUploader) {
+        this.dir = dir;
+        this.apiKey = apiKey;
+        this.idPrefix = idPrefix;
+        this.batchUploader = batchUploader;
+        recentUpdates = columnar ? null : new EncodedBatch(128);
+        columnarUpdates = columnar ? new ColumnarBatchWriter() : null;
+        removePartialFiles();
+    }
+
+    // Returns true once the segment's epochs are in a batch file.
+    @Override
+    public boolean onSegmentSealed(File segment) {
+        try {
+            SegmentJournal.readRecords(segment, new SegmentJournal.RecordHandler() {
+                @Override
+                public void onRecord(byte[] data, int offset, int length) {
+                    try {
+                        LocationUpdate update = MessageNano.mergeFrom(new LocationUpdate(), data, offset, length);
+                        if (columnarUpdates != null) {
+                            columnarUpdates.add(update);
+                        } else {
+                            long utc = update.estimates.length > 0 ? update.estimates[0].utc : 0;
+                            recentUpdates.add(Arrays.copyOfRange(data, offset, offset + length), utc);
+                        }
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            Log.v(TAG, "Exporting " + segment.getName());
+            boolean stored;
+            if (columnarUpdates != null) {
+                stored = columnarUpdates.size() == 0 || createBatchFile(columnarUpdates);
+            } else {
+                stored = recentUpdates.size() == 0 || createBatchFile(recentUpdates);
+            }
+            if (stored && batchUploader != null) {
+                batchUploader.kick();
+            }
+            return stored;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (columnarUpdates != null) {
+                columnarUpdates.clear();
+            } else {
+                recentUpdates.clear();
+            }
+        }
+    }
+
+    private boolean createBatchFile(EncodedBatch recentUpdates) {
+        String batchId = idPrefix + System.currentTimeMillis() + ".smpb1";
+        File tmp = new File(dir, batchId + TMP_SUFFIX);
+        try {
+            return recentUpdates.writeTo(tmp, apiKey, batchId) && publish(tmp, batchId);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private boolean createBatchFile(ColumnarBatchWriter columnarUpdates) {
+        String batchId = idPrefix + System.currentTimeMillis() + ".smpb2";
+        File tmp = new File(dir, batchId + TMP_SUFFIX);
+        try {
+            return columnarUpdates.writeTo(tmp, apiKey, batchId) && publish(tmp, batchId);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    // Gives a completely written file its final name
+    private boolean publish(File tmp, String batchId) {
+        if (!tmp.renameTo(new File(dir, batchId))) {
+            Log.v(TAG, "Could not rename " + tmp.getName());
+            return false;
+        }
+        return true;
+    }
+
+    // Left behind by a crash while writing, and never renamed
+    private void removePartialFiles() {
+        File[] partial = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().endsWith(".smpb1" + TMP_SUFFIX) || f.getName().endsWith(".smpb2" + TMP_SUFFIX);
+            }
+        });
+        if (partial == null) {
+            return;
+        }
+        for (File f : partial) {
+            f.delete();
+        }
+    }
+
+    // Directory holding the journal and batch files
+    public static File dataDirectory() {
+        String baseDir = Environment.getExternalStorageDirectory().getAbsolutePath();
+        String dirName = "ShadowMapsData";
+        File folder = new File(baseDir + File.separator + dirName);
+        boolean success = true;
+        if (!folder.exists()) {
+            success = folder.mkdir();
+        }
+        return success ? folder : new File(baseDir);
+    }
+}
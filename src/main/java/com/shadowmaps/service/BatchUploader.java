@@ -0,0 +1,366 @@
+package com.shadowmaps.service;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Uploads stored batch files in the background, oldest first, while the configured conditions
+ * hold: a connected (optionally unmetered) network, optionally charging, and a minimum battery level.
+ *
+ * Each file is gzipped and sent in chunks with PUT and a Content-Range header, following the
+ * resumable upload convention: the server answers 308 with a Range header while it still needs
+ * data and 200 or 201 once it has stored the whole file, which is then deleted. The confirmed
+ * offset is kept in a .offset sidecar, so an upload interrupted by a lost network or a restart
+ * continues where it stopped. Failures are retried with exponential backoff.
+ */
+class BatchUploader {
+    private static final String TAG = "ShadowMapsBatch";
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+    private static final String OFFSET_SUFFIX = ".offset";
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final long IDLE_INTERVAL_MS = 15 * 60 * 1000;
+    private static final long MIN_BACKOFF_MS = 30 * 1000;
+    private static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+
+    // Outcome of one file upload
+    private static final int DONE = 0;
+    private static final int RETRY = 1;
+    private static final int REJECTED = 2;
+
+    private final Context context;
+    private final OkHttpClient client;
+    private final File dir;
+    private final String url;
+    private final String apiKey;
+    private final boolean requireUnmetered;
+    private final boolean requireCharging;
+    private final int minBatteryPercent;
+    private final Thread thread;
+
+    // Guarded by this
+    private boolean running = true;
+    private boolean kicked = false;
+    private int failures = 0;
+
+    // Only touched on the upload thread
+    private long serverOffset;
+    private long uploadedFiles = 0;
+    private long uploadedBytes = 0;
+
+    // Conditions may have become true, so look again
+    private final BroadcastReceiver conditionsReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            retryNow();
+        }
+    };
+
+    /**
+     * @param minBatteryPercent battery level below which nothing is uploaded unless charging
+     */
+    public BatchUploader(Context context, OkHttpClient client, File dir, String url, String apiKey,
+                         boolean requireUnmetered, boolean requireCharging, int minBatteryPercent) {
+        this.context = context;
+        this.client = client;
+        this.dir = dir;
+        this.url = url;
+        this.apiKey = apiKey;
+        this.requireUnmetered = requireUnmetered;
+        this.requireCharging = requireCharging;
+        this.minBatteryPercent = minBatteryPercent;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_BATTERY_OKAY);
+        context.registerReceiver(conditionsReceiver, filter);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        notify();
+        try {
+            context.unregisterReceiver(conditionsReceiver);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Looks for files to upload now, e.g. after a new batch file was written.
+     * Does not skip a pending backoff after a failure.
+     */
+    public synchronized void kick() {
+        if (failures == 0) {
+            kicked = true;
+            notify();
+        }
+    }
+
+    /**
+     * Looks for files to upload now even during a backoff, e.g. when a network came back.
+     * The last failure was most likely the lost network, not the server, so the backoff restarts.
+     */
+    synchronized void retryNow() {
+        failures = 0;
+        kicked = true;
+        notify();
+    }
+
+    private void work() {
+        while (true) {
+            long delay = uploadPending();
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + delay;
+                while (running && !kicked) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                kicked = false;
+                if (!running) {
+                    break;
+                }
+            }
+        }
+        Log.v(TAG, "Batch uploads stopped, " + uploadedFiles + " files, " + uploadedBytes + " bytes uploaded");
+    }
+
+    private synchronized boolean isRunning() {
+        return running;
+    }
+
+    // Uploads what it can and returns how long to wait before the next pass.
+    private long uploadPending() {
+        removeOrphanedOffsets();
+        // Only final names: a batch is renamed to one once it is completely written
+        File[] files = dir.listFiles(BatchExporter.BATCH_FILES);
+        if (files == null || files.length == 0) {
+            return IDLE_INTERVAL_MS;
+        }
+        // Batch ids contain the creation time, so this is oldest first
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!isRunning() || !conditionsMet()) {
+                return IDLE_INTERVAL_MS;
+            }
+            int result = upload(file);
+            if (result == DONE) {
+                Log.v(TAG, "Uploaded " + file.getName());
+                new File(file.getPath() + OFFSET_SUFFIX).delete();
+                file.delete();
+                uploadedFiles++;
+            } else if (result == RETRY) {
+                long backoff;
+                synchronized (this) {
+                    failures++;
+                    backoff = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.min(failures - 1, 16));
+                }
+                Log.v(TAG, "Upload of " + file.getName() + " failed, retrying in " + backoff / 1000 + " s");
+                return backoff;
+            }
+            // A rejected file stays on disk for the quota to evict; move on to the next one
+        }
+        synchronized (this) {
+            failures = 0;
+        }
+        return IDLE_INTERVAL_MS;
+    }
+
+    // Offsets of batch files that were uploaded or evicted by the disk quota
+    private void removeOrphanedOffsets() {
+        File[] sidecars = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().endsWith(OFFSET_SUFFIX);
+            }
+        });
+        if (sidecars == null) {
+            return;
+        }
+        for (File sidecar : sidecars) {
+            String path = sidecar.getPath();
+            if (!new File(path.substring(0, path.length() - OFFSET_SUFFIX.length())).exists()) {
+                sidecar.delete();
+            }
+        }
+    }
+
+    boolean conditionsMet() {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = cm.getActiveNetworkInfo();
+        if (network == null || !network.isConnected()) {
+            return false;
+        }
+        if (requireUnmetered && cm.isActiveNetworkMetered()) {
+            return false;
+        }
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return !requireCharging;
+        }
+        boolean charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        if (requireCharging && !charging) {
+            return false;
+        }
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+        return charging || level < 0 || scale <= 0 || level * 100 / scale >= minBatteryPercent;
+    }
+
+    private int upload(File file) {
+        String name = file.getName();
+        File sidecar = new File(file.getPath() + OFFSET_SUFFIX);
+        try {
+            byte[] body = gzip(file);
+            long offset = Math.min(readOffset(sidecar), body.length);
+            // Ask the server where to continue when resuming, otherwise start sending right away
+            boolean query = offset > 0;
+            // Enough requests to send every chunk twice, then give up until the next pass
+            int requests = 2 * (body.length / CHUNK_SIZE + 2);
+            while (requests-- > 0 && isRunning()) {
+                int length = query || offset >= body.length ? 0 : (int) Math.min(CHUNK_SIZE, body.length - offset);
+                int code = put(name, body, (int) offset, length);
+                query = false;
+                if (code == 200 || code == 201) {
+                    uploadedBytes += body.length;
+                    return DONE;
+                } else if (code == 308 || code == 416) {
+                    // The server states how much it has; continue from there
+                    offset = Math.min(serverOffset, body.length);
+                    writeOffset(sidecar, offset);
+                } else if (code == 408 || code == 429 || code >= 500) {
+                    return RETRY;
+                } else {
+                    Log.v(TAG, "Server rejected " + name + ": " + code);
+                    return REJECTED;
+                }
+            }
+            return RETRY;
+        } catch (IOException e) {
+            Log.v(TAG, "Upload of " + name + " interrupted: " + e.getMessage());
+            return RETRY;
+        }
+    }
+
+    // Sends body[offset, offset + length) of the gzipped file; a zero length only asks for the status.
+    // Sets serverOffset from the Range header of the response.
+    private int put(String name, byte[] body, int offset, int length) throws IOException {
+        String range = length == 0
+                ? "bytes */" + body.length
+                : "bytes " + offset + "-" + (offset + length - 1) + "/" + body.length;
+        Request request = new Request.Builder()
+                .url(url + name)
+                .header("Content-Range", range)
+                .header("X-ShadowMaps-Upload-Encoding", "gzip")
+                .header("X-ShadowMaps-Api-Key", apiKey)
+                .put(RequestBody.create(OCTET_STREAM, body, offset, length))
+                .build();
+        Response response = client.newCall(request).execute();
+        try {
+            serverOffset = parseRange(response.header("Range"));
+            return response.code();
+        } finally {
+            response.body().close();
+        }
+    }
+
+    // "bytes=0-N" means the server has N + 1 bytes; no header means it has none
+    static long parseRange(String range) {
+        if (range == null) {
+            return 0;
+        }
+        int dash = range.lastIndexOf('-');
+        try {
+            return Long.parseLong(range.substring(dash + 1).trim()) + 1;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static byte[] gzip(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(file.length(), Integer.MAX_VALUE) / 2 + 64);
+        InputStream in = new FileInputStream(file);
+        try {
+            OutputStream out = new GZIPOutputStream(bytes);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            out.close();
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static long readOffset(File sidecar) {
+        if (!sidecar.exists()) {
+            return 0;
+        }
+        try {
+            InputStream in = new FileInputStream(sidecar);
+            try {
+                byte[] buffer = new byte[32];
+                int n = in.read(buffer);
+                return n > 0 ? Long.parseLong(new String(buffer, 0, n, "US-ASCII").trim()) : 0;
+            } finally {
+                in.close();
+            }
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void writeOffset(File sidecar, long offset) {
+        try {
+            OutputStream out = new FileOutputStream(sidecar);
+            try {
+                out.write(Long.toString(offset).getBytes("US-ASCII"));
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
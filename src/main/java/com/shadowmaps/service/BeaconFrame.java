@@ -0,0 +1,71 @@
+package com.shadowmaps.service;
+
+/**
+ * Identity of one beacon advertisement, filled in place by BeaconParser and reused for every
+ * record. The 128-bit id is the proximity UUID for iBeacon and AltBeacon, and the namespace
+ * followed by the instance for Eddystone-UID.
+ */
+final class BeaconFrame {
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_IBEACON = 1;
+    public static final int TYPE_ALTBEACON = 2;
+    public static final int TYPE_EDDYSTONE_UID = 3;
+    public static final int TYPE_EDDYSTONE_URL = 4;
+
+    // Eddystone-URL encodes at most 17 bytes after the scheme
+    public static final int MAX_URL_BYTES = 17;
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+
+    private static final String[] SCHEMES = {"http://www.", "https://www.", "http://", "https://"};
+    private static final String[] EXPANSIONS = {".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/",
+            ".gov/", ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"};
+
+    public int type;
+    public long idHigh;
+    public long idLow;
+    // iBeacon and AltBeacon only
+    public int major;
+    public int minor;
+    // Calibrated RSSI in dBm: at 1 m for iBeacon and AltBeacon, at 0 m for Eddystone
+    public int txPower;
+    // From the TX power level AD structure, if the advertisement has one
+    public int advertisedTxPower;
+    // Eddystone-URL, still encoded
+    public int urlScheme;
+    public final byte[] url = new byte[MAX_URL_BYTES];
+    public int urlLength;
+
+    public void reset() {
+        type = TYPE_NONE;
+        idHigh = 0;
+        idLow = 0;
+        major = 0;
+        minor = 0;
+        txPower = NO_TX_POWER;
+        advertisedTxPower = NO_TX_POWER;
+        urlScheme = 0;
+        urlLength = 0;
+    }
+
+    /**
+     * Expands the encoded Eddystone URL. Allocates, so only call it when the URL is needed.
+     * @return the URL, or null if this is not an Eddystone-URL frame
+     */
+    public String expandUrl() {
+        return type == TYPE_EDDYSTONE_URL ? expandUrl(urlScheme, url, 0, urlLength) : null;
+    }
+
+    static String expandUrl(int scheme, byte[] encoded, int offset, int length) {
+        StringBuilder sb = new StringBuilder(SCHEMES[scheme].length() + length + 16);
+        sb.append(SCHEMES[scheme]);
+        for (int i = offset; i < offset + length; i++) {
+            int b = encoded[i] & 0xff;
+            if (b < EXPANSIONS.length) {
+                sb.append(EXPANSIONS[b]);
+            } else {
+                sb.append((char) b);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,118 @@
+package com.shadowmaps.service;
+
+/**
+ * Parses raw BLE advertisements (ScanRecord.getBytes()) in place. parse() walks the AD structures
+ * of the record and fills a caller-owned BeaconFrame; nothing is allocated or copied besides the
+ * few bytes of an Eddystone URL.
+ *
+ * Recognized formats:
+ *   iBeacon:        manufacturer data 4C 00 02 15, UUID(16) major(2) minor(2) tx(1)
+ *   AltBeacon:      manufacturer data, any company, BE AC, id(20) reference rssi(1) reserved(1)
+ *   Eddystone-UID:  service data AA FE 00, tx(1) namespace(10) instance(6)
+ *   Eddystone-URL:  service data AA FE 10, tx(1) scheme(1) url(1-17)
+ */
+final class BeaconParser {
+    private static final int AD_TX_POWER = 0x0A;
+    private static final int AD_SERVICE_DATA = 0x16;
+    private static final int AD_MANUFACTURER_DATA = 0xFF;
+
+    private static final int APPLE = 0x004C;
+    private static final int EDDYSTONE_SERVICE = 0xFEAA;
+    private static final int EDDYSTONE_UID = 0x00;
+    private static final int EDDYSTONE_URL = 0x10;
+
+    private BeaconParser() {
+    }
+
+    /**
+     * @return whether the record holds a beacon frame; advertisedTxPower may be set either way
+     */
+    public static boolean parse(byte[] record, int offset, int length, BeaconFrame frame) {
+        frame.reset();
+        int end = Math.min(offset + length, record.length);
+        int i = offset;
+        while (i < end) {
+            int len = record[i] & 0xff;
+            // A zero length marks the padding after the last structure
+            if (len == 0 || i + 1 + len > end) {
+                break;
+            }
+            int type = record[i + 1] & 0xff;
+            int data = i + 2;
+            int dataLength = len - 1;
+            if (type == AD_MANUFACTURER_DATA) {
+                parseManufacturerData(record, data, dataLength, frame);
+            } else if (type == AD_SERVICE_DATA) {
+                parseServiceData(record, data, dataLength, frame);
+            } else if (type == AD_TX_POWER && dataLength >= 1) {
+                frame.advertisedTxPower = record[data];
+            }
+            i += 1 + len;
+        }
+        return frame.type != BeaconFrame.TYPE_NONE;
+    }
+
+    private static void parseManufacturerData(byte[] b, int p, int n, BeaconFrame frame) {
+        if (n < 4) {
+            return;
+        }
+        int company = readLittleEndian16(b, p);
+        if (company == APPLE && n >= 25 && b[p + 2] == 0x02 && b[p + 3] == 0x15) {
+            frame.type = BeaconFrame.TYPE_IBEACON;
+            readId(b, p + 4, frame);
+            frame.major = readBigEndian16(b, p + 20);
+            frame.minor = readBigEndian16(b, p + 22);
+            frame.txPower = b[p + 24];
+        } else if (n >= 26 && (b[p + 2] & 0xff) == 0xBE && (b[p + 3] & 0xff) == 0xAC) {
+            frame.type = BeaconFrame.TYPE_ALTBEACON;
+            readId(b, p + 4, frame);
+            frame.major = readBigEndian16(b, p + 20);
+            frame.minor = readBigEndian16(b, p + 22);
+            frame.txPower = b[p + 24];
+        }
+    }
+
+    private static void parseServiceData(byte[] b, int p, int n, BeaconFrame frame) {
+        if (n < 4 || readLittleEndian16(b, p) != EDDYSTONE_SERVICE) {
+            return;
+        }
+        int frameType = b[p + 2] & 0xff;
+        if (frameType == EDDYSTONE_UID && n >= 20) {
+            frame.type = BeaconFrame.TYPE_EDDYSTONE_UID;
+            frame.txPower = b[p + 3];
+            readId(b, p + 4, frame);
+        } else if (frameType == EDDYSTONE_URL && n >= 6) {
+            int scheme = b[p + 4] & 0xff;
+            if (scheme > 3) {
+                return;
+            }
+            frame.type = BeaconFrame.TYPE_EDDYSTONE_URL;
+            frame.txPower = b[p + 3];
+            frame.urlScheme = scheme;
+            frame.urlLength = Math.min(n - 5, BeaconFrame.MAX_URL_BYTES);
+            System.arraycopy(b, p + 5, frame.url, 0, frame.urlLength);
+        }
+    }
+
+    // 16 bytes, big-endian, into idHigh and idLow
+    private static void readId(byte[] b, int p, BeaconFrame frame) {
+        frame.idHigh = readBigEndian64(b, p);
+        frame.idLow = readBigEndian64(b, p + 8);
+    }
+
+    private static long readBigEndian64(byte[] b, int p) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (b[p + i] & 0xff);
+        }
+        return v;
+    }
+
+    private static int readBigEndian16(byte[] b, int p) {
+        return ((b[p] & 0xff) << 8) | (b[p + 1] & 0xff);
+    }
+
+    private static int readLittleEndian16(byte[] b, int p) {
+        return (b[p] & 0xff) | ((b[p + 1] & 0xff) << 8);
+    }
+}
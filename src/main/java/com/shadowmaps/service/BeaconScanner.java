@@ -0,0 +1,170 @@
+package com.shadowmaps.service;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Duty-cycled BLE scanning: scans for windowMs out of every periodMs, in low power mode.
+ * Where the controller can batch, results are delivered every reportDelayMs instead of one
+ * callback per advertisement. Each result is published as an IngestEvent.BEACON.
+ */
+@TargetApi(21)
+class BeaconScanner {
+    private static final String TAG = "BLE";
+
+    private final BluetoothAdapter adapter;
+    private final CollectionEngine.EventSink sink;
+    private final long windowMs;
+    private final long periodMs;
+    private final ScanSettings settings;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private BluetoothLeScanner scanner;
+    private boolean running = false;
+    private boolean scanning = false;
+
+    private volatile long results = 0;
+    private volatile long windows = 0;
+
+    public BeaconScanner(BluetoothAdapter adapter, CollectionEngine.EventSink sink, long windowMs, long periodMs,
+                         long reportDelayMs) {
+        this.adapter = adapter;
+        this.sink = sink;
+        this.windowMs = windowMs;
+        this.periodMs = Math.max(periodMs, windowMs);
+        ScanSettings.Builder builder = new ScanSettings.Builder()
+                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER);
+        if (reportDelayMs > 0 && adapter.isOffloadedScanBatchingSupported()) {
+            builder.setReportDelay(reportDelayMs);
+        }
+        settings = builder.build();
+    }
+
+    public void start() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                running = true;
+                startWindow.run();
+            }
+        });
+    }
+
+    public void stop() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                running = false;
+                handler.removeCallbacks(startWindow);
+                handler.removeCallbacks(endWindow);
+                endWindow.run();
+            }
+        });
+    }
+
+    public long getResultCount() {
+        return results;
+    }
+
+    public long getWindowCount() {
+        return windows;
+    }
+
+    private final Runnable startWindow = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) {
+                return;
+            }
+            handler.postDelayed(this, periodMs);
+            // Scanning continuously when the window spans the whole period
+            if (scanning) {
+                return;
+            }
+            // Bluetooth may have been switched off or on since the last window
+            scanner = adapter.isEnabled() ? adapter.getBluetoothLeScanner() : null;
+            if (scanner == null) {
+                return;
+            }
+            scanner.startScan(null, settings, callback);
+            scanning = true;
+            windows++;
+            if (windowMs < periodMs) {
+                handler.postDelayed(endWindow, windowMs);
+            }
+        }
+    };
+
+    private final Runnable endWindow = new Runnable() {
+        @Override
+        public void run() {
+            if (!scanning) {
+                return;
+            }
+            scanning = false;
+            try {
+                // Hand over what the controller batched before it is discarded
+                scanner.flushPendingScanResults(callback);
+                scanner.stopScan(callback);
+            } catch (IllegalStateException e) {
+                // Bluetooth was turned off during the window
+                Log.v(TAG, "Scan ended by Bluetooth turning off");
+            }
+        }
+    };
+
+    private final ScanCallback callback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            publish(result);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> batch) {
+            for (int i = 0, n = batch.size(); i < n; i++) {
+                publish(batch.get(i));
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "BLE scan failed, error code: " + errorCode);
+        }
+    };
+
+    private void publish(ScanResult result) {
+        long address = BssidDictionary.parse(result.getDevice().getAddress());
+        if (address < 0) {
+            return;
+        }
+        IngestEvent e = sink.claim();
+        if (e == null) {
+            return;
+        }
+        e.type = IngestEvent.BEACON;
+        // The result's timestamp is in nanoseconds since boot
+        e.time = System.currentTimeMillis() - SystemClock.elapsedRealtime() + result.getTimestampNanos() / 1000000;
+        e.address = address;
+        e.arg0 = result.getRssi();
+        // The record is parsed on the ingest thread, which owns the slot's copy
+        ScanRecord scanRecord = result.getScanRecord();
+        byte[] bytes = scanRecord != null ? scanRecord.getBytes() : null;
+        if (bytes != null) {
+            e.ensureRecordCapacity();
+            e.recordLength = Math.min(bytes.length, IngestEvent.MAX_RECORD_BYTES);
+            System.arraycopy(bytes, 0, e.record, 0, e.recordLength);
+        }
+        sink.publish(e);
+        results++;
+    }
+}
@@ -0,0 +1,121 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.BeaconInfo;
+
+/**
+ * RSSI count, mean and max per BLE beacon over one epoch, in primitive arrays indexed through a
+ * BssidDictionary. A device is only added once it advertises an iBeacon, AltBeacon or Eddystone
+ * frame, so phones, headphones and other advertisers are never uploaded; its advertisements
+ * without a frame, e.g. Eddystone TLM, still count towards its RSSI. Beacons beyond the capacity
+ * are dropped for the rest of the epoch.
+ */
+class BeaconTable {
+    private final BssidDictionary index;
+    private final long[] addresses;
+    private final int[] counts;
+    private final long[] rssiSums;
+    private final int[] rssiMaxes;
+    private final long[] times;
+    // Beacon identity, from the latest advertisement that had a frame
+    private final int[] formats;
+    private final long[] idHighs;
+    private final long[] idLows;
+    private final int[] majors;
+    private final int[] minors;
+    private final int[] txPowers;
+    private final int[] urlSchemes;
+    private final byte[] urls;
+    private final int[] urlLengths;
+    private long dropped = 0;
+
+    public BeaconTable(int capacity) {
+        index = new BssidDictionary(capacity);
+        addresses = new long[capacity];
+        counts = new int[capacity];
+        rssiSums = new long[capacity];
+        rssiMaxes = new int[capacity];
+        times = new long[capacity];
+        formats = new int[capacity];
+        idHighs = new long[capacity];
+        idLows = new long[capacity];
+        majors = new int[capacity];
+        minors = new int[capacity];
+        txPowers = new int[capacity];
+        urlSchemes = new int[capacity];
+        urls = new byte[capacity * BeaconFrame.MAX_URL_BYTES];
+        urlLengths = new int[capacity];
+    }
+
+    /**
+     * @param frame the advertisement's parsed identity, copied if it has one
+     * @return false if the device is new and has no frame, or the table is full
+     */
+    public boolean add(long address, int rssi, long time, BeaconFrame frame) {
+        int i = index.get(address);
+        if (i < 0) {
+            if (frame.type == BeaconFrame.TYPE_NONE) {
+                return false;
+            }
+            if (index.size() == addresses.length) {
+                dropped++;
+                return false;
+            }
+            i = index.add(address);
+            addresses[i] = address;
+            counts[i] = 0;
+            rssiSums[i] = 0;
+            rssiMaxes[i] = rssi;
+            times[i] = time;
+        }
+        if (frame.type != BeaconFrame.TYPE_NONE) {
+            formats[i] = frame.type;
+            idHighs[i] = frame.idHigh;
+            idLows[i] = frame.idLow;
+            majors[i] = frame.major;
+            minors[i] = frame.minor;
+            txPowers[i] = frame.txPower;
+            urlSchemes[i] = frame.urlScheme;
+            urlLengths[i] = frame.urlLength;
+            System.arraycopy(frame.url, 0, urls, i * BeaconFrame.MAX_URL_BYTES, frame.urlLength);
+        }
+        counts[i]++;
+        rssiSums[i] += rssi;
+        rssiMaxes[i] = Math.max(rssiMaxes[i], rssi);
+        times[i] = Math.max(times[i], time);
+        return true;
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Adds one BeaconInfo per beacon to the epoch and empties the table.
+     */
+    public void drain(EpochBuilder epoch) {
+        for (int i = 0, n = index.size(); i < n; i++) {
+            BeaconInfo beacon = new BeaconInfo();
+            beacon.mac = addresses[i];
+            beacon.timestamp = times[i];
+            beacon.count = counts[i];
+            beacon.rssiMean = (int) Math.round((double) rssiSums[i] / counts[i]);
+            beacon.rssiMax = rssiMaxes[i];
+            beacon.format = formats[i];
+            beacon.txPower = txPowers[i];
+            if (formats[i] == BeaconFrame.TYPE_EDDYSTONE_URL) {
+                beacon.url = BeaconFrame.expandUrl(urlSchemes[i], urls, i * BeaconFrame.MAX_URL_BYTES, urlLengths[i]);
+            } else {
+                beacon.idHigh = idHighs[i];
+                beacon.idLow = idLows[i];
+                beacon.major = majors[i];
+                beacon.minor = minors[i];
+            }
+            epoch.addBeacon(beacon);
+        }
+        index.clear();
+    }
+}
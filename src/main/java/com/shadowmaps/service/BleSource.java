@@ -0,0 +1,86 @@
+package com.shadowmaps.service;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * BLE beacons heard by a duty-cycled BeaconScanner, added to each epoch as one BeaconInfo per
+ * beacon with the count, mean and max of its RSSI readings. Advertisements are parsed on the
+ * ingest thread into one reused BeaconFrame for the iBeacon, AltBeacon or Eddystone identity.
+ * Devices that advertise none of those are not added.
+ */
+class BleSource implements CollectionEngine.Source {
+    private static final String TAG = "BLE";
+    // Beacons kept per epoch
+    private static final int MAX_BEACONS = 128;
+
+    private final Context context;
+    private final long windowMs;
+    private final long periodMs;
+    private final long reportDelayMs;
+    // Only touched on the ingest thread
+    private final BeaconTable beacons = new BeaconTable(MAX_BEACONS);
+    private final BeaconFrame frame = new BeaconFrame();
+    private BeaconScanner scanner;
+
+    /**
+     * @param windowMs time spent scanning in every period
+     * @param periodMs time from the start of one scan window to the next
+     * @param reportDelayMs how long the controller may batch results, 0 for no batching
+     */
+    public BleSource(Context context, long windowMs, long periodMs, long reportDelayMs) {
+        this.context = context;
+        this.windowMs = windowMs;
+        this.periodMs = periodMs;
+        this.reportDelayMs = reportDelayMs;
+    }
+
+    @Override
+    public void start(CollectionEngine.EventSink sink) {
+        if (Build.VERSION.SDK_INT < 21) {
+            Log.v(TAG, "Bluetooth LE scanning needs API 21");
+            return;
+        }
+        if (!context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
+            Log.v(TAG, "Bluetooth LE not available");
+            return;
+        }
+        BluetoothManager manager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        BluetoothAdapter adapter = manager.getAdapter();
+        if (adapter == null) {
+            Log.v(TAG, "No Bluetooth adapter");
+            return;
+        }
+        scanner = new BeaconScanner(adapter, sink, windowMs, periodMs, reportDelayMs);
+        scanner.start();
+    }
+
+    @Override
+    public void stop() {
+        if (scanner != null) {
+            scanner.stop();
+            Log.v(TAG, scanner.getWindowCount() + " scan windows, " + scanner.getResultCount() + " results, "
+                    + beacons.getDroppedCount() + " dropped from full epochs");
+        }
+    }
+
+    @Override
+    public boolean onEvent(IngestEvent event, EpochBuilder epoch) {
+        if (event.recordLength > 0) {
+            BeaconParser.parse(event.record, 0, event.recordLength, frame);
+        } else {
+            frame.reset();
+        }
+        beacons.add(event.address, event.arg0, event.time, frame);
+        return false;
+    }
+
+    @Override
+    public void onEpochEnd(EpochBuilder epoch) {
+        beacons.drain(epoch);
+    }
+}
@@ -0,0 +1,128 @@
+package com.shadowmaps.service;
+
+import java.util.Arrays;
+
+/**
+ * Assigns session-local ids to BSSIDs, or any other 48-bit MAC address, held as longs in an
+ * open-addressing table of primitives so lookups neither parse into Strings nor box. Ids are dense, starting at 0,
+ * in the order the BSSIDs were first added.
+ */
+class BssidDictionary {
+    // No BSSID has the top bits set, so this never collides with a key
+    private static final long EMPTY = -1;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private long[] keys;
+    private int[] ids;
+    private int mask;
+    private int size = 0;
+
+    public BssidDictionary(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+        allocate(capacity);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the id of mac, or -1 if it has none
+     */
+    public int get(long mac) {
+        for (int i = slot(mac); ; i = (i + 1) & mask) {
+            long key = keys[i];
+            if (key == mac) {
+                return ids[i];
+            }
+            if (key == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Adds a BSSID that get() returned -1 for.
+     * @return its new id
+     */
+    public int add(long mac) {
+        // Keep the load factor at or below one half
+        if ((size + 1) * 2 > keys.length) {
+            long[] oldKeys = keys;
+            int[] oldIds = ids;
+            allocate(keys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    insert(oldKeys[i], oldIds[i]);
+                }
+            }
+        }
+        insert(mac, size);
+        return size++;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    private void insert(long mac, int id) {
+        int i = slot(mac);
+        while (keys[i] != EMPTY) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = mac;
+        ids[i] = id;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        ids = new int[capacity];
+        mask = capacity - 1;
+        Arrays.fill(keys, EMPTY);
+    }
+
+    private int slot(long mac) {
+        // Vendors share the upper bytes, so mix before taking the low bits
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & mask;
+    }
+
+    /**
+     * Parses "aa:bb:cc:dd:ee:ff" (either case, any single separator) without allocating.
+     * @return the BSSID as a 48-bit value, or -1 if bssid is not one
+     */
+    public static long parse(String bssid) {
+        if (bssid == null || bssid.length() != 17) {
+            return -1;
+        }
+        long mac = 0;
+        for (int i = 0; i < 17; i++) {
+            if (i % 3 == 2) {
+                continue;
+            }
+            int digit = Character.digit(bssid.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            mac = (mac << 4) | digit;
+        }
+        return mac;
+    }
+
+    /**
+     * @return mac in the lower case, colon separated form Android reports
+     */
+    public static String format(long mac) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int b = (int) (mac >>> (40 - 8 * i)) & 0xff;
+            chars[3 * i] = HEX[b >>> 4];
+            chars[3 * i + 1] = HEX[b & 0xf];
+            if (i < 5) {
+                chars[3 * i + 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,205 @@
+package com.shadowmaps.service;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.telephony.CellIdentityCdma;
+import android.telephony.CellIdentityGsm;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellIdentityWcdma;
+import android.telephony.CellInfoCdma;
+import android.telephony.CellInfoGsm;
+import android.telephony.CellInfoLte;
+import android.telephony.CellInfoWcdma;
+import android.telephony.CellLocation;
+import android.telephony.PhoneStateListener;
+import android.telephony.SignalStrength;
+import android.telephony.TelephonyManager;
+import android.telephony.cdma.CdmaCellLocation;
+import android.telephony.gsm.GsmCellLocation;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Serving and neighbour cells from the Telephony Service, added to each epoch as one aggregated
+ * CellInfo per cell.
+ *
+ * Telephony callbacks only publish markers. On API 17 and later the ingest thread then reads
+ * every cell through getAllCellInfo(). Devices that return nothing there fall back to the
+ * serving cell from its CellLocation, with the signal level taken from SignalStrength's getters.
+ */
+class CellSource extends PhoneStateListener implements CollectionEngine.Source {
+    private static final String TAG = "ShadowMaps";
+    // Serving cells plus the neighbours a modem reports, with room to spare
+    private static final int MAX_CELLS = 32;
+    // Framework value for an unknown identity field
+    private static final int UNKNOWN = Integer.MAX_VALUE;
+
+    private final TelephonyManager telephonyManager;
+    private CollectionEngine.EventSink sink;
+
+    // Data regarding cellular transmitters. Only touched on the ingest thread.
+    private final CellTable cells = new CellTable(MAX_CELLS);
+    private boolean hasCellInfo = false;
+    private int lastCellLocation = -1;
+    private int lastCellArea = -1;
+    private int lastCellRadio = 0;
+
+    public CellSource(TelephonyManager telephonyManager) {
+        this.telephonyManager = telephonyManager;
+    }
+
+    @Override
+    public void start(CollectionEngine.EventSink sink) {
+        this.sink = sink;
+        int events = PhoneStateListener.LISTEN_CELL_LOCATION | PhoneStateListener.LISTEN_SIGNAL_STRENGTHS;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            events |= PhoneStateListener.LISTEN_CELL_INFO;
+        }
+        telephonyManager.listen(this, events);
+    }
+
+    @Override
+    public void stop() {
+        telephonyManager.listen(this, PhoneStateListener.LISTEN_NONE);
+        Log.v(TAG, "Cell readings dropped from full epochs: " + cells.getDroppedCount());
+    }
+
+    @Override
+    public boolean onEvent(IngestEvent e, EpochBuilder epoch) {
+        if (e.type == IngestEvent.CELL_LOCATION) {
+            lastCellLocation = e.arg0;
+            lastCellArea = e.arg1;
+            lastCellRadio = (int) e.values[0];
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            hasCellInfo = readAllCellInfo();
+        }
+        if (!hasCellInfo && e.type == IngestEvent.SIGNAL_STRENGTH && e.valueCount > 0) {
+            cells.add(lastCellRadio, lastCellLocation, lastCellArea, -1, true, e.arg0, e.time);
+        }
+        return false;
+    }
+
+    @Override
+    public void onEpochEnd(EpochBuilder epoch) {
+        cells.drain(epoch);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private boolean readAllCellInfo() {
+        List<android.telephony.CellInfo> infos = telephonyManager.getAllCellInfo();
+        if (infos == null || infos.isEmpty()) {
+            return false;
+        }
+        long bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+        for (int i = 0, n = infos.size(); i < n; i++) {
+            android.telephony.CellInfo info = infos.get(i);
+            // Reading time, in nanoseconds since boot
+            long time = bootTime + info.getTimeStamp() / 1000000;
+            boolean serving = info.isRegistered();
+            if (info instanceof CellInfoLte) {
+                CellIdentityLte id = ((CellInfoLte) info).getCellIdentity();
+                cells.add(CellTable.RADIO_LTE, known(id.getCi()), known(id.getTac()), known(id.getPci()), serving,
+                        ((CellInfoLte) info).getCellSignalStrength().getDbm(), time);
+            } else if (info instanceof CellInfoGsm) {
+                CellIdentityGsm id = ((CellInfoGsm) info).getCellIdentity();
+                cells.add(CellTable.RADIO_GSM, known(id.getCid()), known(id.getLac()), -1, serving,
+                        ((CellInfoGsm) info).getCellSignalStrength().getDbm(), time);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 && info instanceof CellInfoWcdma) {
+                CellIdentityWcdma id = ((CellInfoWcdma) info).getCellIdentity();
+                cells.add(CellTable.RADIO_WCDMA, known(id.getCid()), known(id.getLac()), known(id.getPsc()), serving,
+                        ((CellInfoWcdma) info).getCellSignalStrength().getDbm(), time);
+            } else if (info instanceof CellInfoCdma) {
+                CellIdentityCdma id = ((CellInfoCdma) info).getCellIdentity();
+                cells.add(CellTable.RADIO_CDMA, known(id.getBasestationId()), known(id.getSystemId()), -1, serving,
+                        ((CellInfoCdma) info).getCellSignalStrength().getDbm(), time);
+            }
+        }
+        return true;
+    }
+
+    private static int known(int value) {
+        return value == UNKNOWN || value < 0 ? -1 : value;
+    }
+
+    private void publishEvent(int type, long time, int arg0, int arg1) {
+        IngestEvent e = sink.claim();
+        if (e == null) {
+            return;
+        }
+        e.type = type;
+        e.time = time;
+        e.arg0 = arg0;
+        e.arg1 = arg1;
+        sink.publish(e);
+    }
+
+    @Override
+    public void onCellLocationChanged(CellLocation location) {
+        long ts = System.currentTimeMillis();
+        int cellLocation = -1;
+        int cellArea = -1;
+        int radio = 0;
+        if (location instanceof GsmCellLocation) {
+            GsmCellLocation gcLoc = (GsmCellLocation) location;
+            cellLocation = gcLoc.getCid();
+            cellArea = gcLoc.getLac();
+            radio = CellTable.RADIO_GSM;
+        } else if (location instanceof CdmaCellLocation) {
+            CdmaCellLocation ccLoc = (CdmaCellLocation) location;
+            cellLocation = ccLoc.getBaseStationId();
+            cellArea = ccLoc.getSystemId();
+            radio = CellTable.RADIO_CDMA;
+        }
+        IngestEvent e = sink.claim();
+        if (e == null) {
+            return;
+        }
+        e.type = IngestEvent.CELL_LOCATION;
+        e.time = ts;
+        e.arg0 = cellLocation;
+        e.arg1 = cellArea;
+        e.values[0] = radio;
+        e.valueCount = 1;
+        sink.publish(e);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    @Override
+    public void onCellInfoChanged(List<android.telephony.CellInfo> cellInfo) {
+        // Read on the ingest thread, together with the neighbours
+        publishEvent(IngestEvent.CELL_INFO, System.currentTimeMillis(), 0, 0);
+    }
+
+    @Override
+    public void onDataConnectionStateChanged(int state, int networkType)
+    {
+        Log.d(TAG, "Network Type: "+networkType);
+    }
+
+    @Override
+    public void onSignalStrengthsChanged(SignalStrength signalStrength)
+    {
+        long ts = System.currentTimeMillis();
+        IngestEvent e = sink.claim();
+        if (e == null) {
+            return;
+        }
+        e.type = IngestEvent.SIGNAL_STRENGTH;
+        e.time = ts;
+        // Only needed where getAllCellInfo() has nothing, which also means no LTE level is exposed
+        int asu = signalStrength.getGsmSignalStrength();
+        if (signalStrength.isGsm() && asu != 99) {
+            e.arg0 = -113 + 2 * asu;
+            e.valueCount = 1;
+        } else if (!signalStrength.isGsm()) {
+            e.arg0 = signalStrength.getCdmaDbm();
+            e.valueCount = 1;
+        } else {
+            e.valueCount = 0;
+        }
+        sink.publish(e);
+    }
+}
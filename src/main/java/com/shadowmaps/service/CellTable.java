@@ -0,0 +1,134 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.CellInfo;
+
+/**
+ * Serving and neighbour cells seen during one epoch, in a small table of primitives keyed by
+ * (cid, lac). Readings of the same cell are averaged, and drain() adds one CellInfo per cell.
+ * Readings without a signal level still record the cell, but are not counted in its average.
+ * Cells beyond the capacity are dropped for the rest of the epoch.
+ */
+class CellTable {
+    public static final int RADIO_GSM = 1;
+    public static final int RADIO_CDMA = 2;
+    public static final int RADIO_WCDMA = 3;
+    public static final int RADIO_LTE = 4;
+
+    // Cell ids are 28 bits at most, so this marks a key made from the physical id instead
+    private static final long PHYSICAL_ID_KEY = 1L << 31;
+    // What CellSignalStrength.getDbm() returns when the modem reports no level
+    public static final int UNKNOWN_DBM = Integer.MAX_VALUE;
+
+    private final long[] keys;
+    private final int[] cids;
+    private final int[] lacs;
+    private final int[] physicalIds;
+    private final int[] radios;
+    private final boolean[] registered;
+    private final int[] counts;
+    private final long[] rssiSums;
+    private final long[] times;
+    private int size = 0;
+    private long dropped = 0;
+
+    public CellTable(int capacity) {
+        keys = new long[capacity];
+        cids = new int[capacity];
+        lacs = new int[capacity];
+        physicalIds = new int[capacity];
+        radios = new int[capacity];
+        registered = new boolean[capacity];
+        counts = new int[capacity];
+        rssiSums = new long[capacity];
+        times = new long[capacity];
+    }
+
+    /**
+     * @param cid cell id, or -1 if unknown
+     * @param lac LAC, TAC or system id, or -1 if unknown
+     * @param physicalId PCI, PSC or BSIC, or -1 if unknown; identifies the cell when cid is unknown
+     * @param dbm signal level, or UNKNOWN_DBM
+     * @param time wall clock time of the reading
+     * @return false if the cell has no usable identity or the table is full
+     */
+    public boolean add(int radio, int cid, int lac, int physicalId, boolean serving, int dbm, long time) {
+        long key;
+        if (cid >= 0) {
+            key = ((long) lac << 32) | cid;
+        } else if (physicalId >= 0) {
+            key = ((long) lac << 32) | PHYSICAL_ID_KEY | physicalId;
+        } else {
+            return false;
+        }
+        int i = indexOf(key, radio);
+        if (i < 0) {
+            if (size == keys.length) {
+                dropped++;
+                return false;
+            }
+            i = size++;
+            keys[i] = key;
+            cids[i] = cid;
+            lacs[i] = lac;
+            physicalIds[i] = physicalId;
+            radios[i] = radio;
+            registered[i] = false;
+            counts[i] = 0;
+            rssiSums[i] = 0;
+        } else if (time == times[i]) {
+            // The same reading polled again
+            return true;
+        }
+        registered[i] |= serving;
+        if (dbm != UNKNOWN_DBM) {
+            counts[i]++;
+            rssiSums[i] += dbm;
+        }
+        times[i] = time;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Adds one CellInfo per cell to the epoch and empties the table.
+     */
+    public void drain(EpochBuilder epoch) {
+        for (int i = 0; i < size; i++) {
+            CellInfo cell = new CellInfo();
+            if (cids[i] >= 0) {
+                cell.cellid = cids[i];
+            }
+            if (lacs[i] >= 0) {
+                cell.lac = lacs[i];
+            }
+            if (physicalIds[i] >= 0) {
+                cell.physicalId = physicalIds[i];
+            }
+            cell.radio = radios[i];
+            cell.registered = registered[i];
+            cell.sampleCount = counts[i];
+            if (counts[i] > 0) {
+                cell.rssi = (int) Math.round((double) rssiSums[i] / counts[i]);
+            }
+            cell.timestamp = times[i];
+            epoch.addCellInfo(cell);
+        }
+        size = 0;
+    }
+
+    private int indexOf(long key, int radio) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == key && radios[i] == radio) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
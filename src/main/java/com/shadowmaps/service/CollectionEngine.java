@@ -0,0 +1,246 @@
+package com.shadowmaps.service;
+
+import com.google.protobuf.nano.CodedOutputByteBufferNano;
+import com.shadowmaps.data.TelemetrySnapshot;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.UserInformation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects data from a set of Sources into epochs, encodes each epoch once, stores it and,
+ * when an uplink is set and the network is up, sends it.
+ *
+ * Sources register their platform listeners in start() and publish IngestEvents through the
+ * EventSink they are given. Every event is handed back to the source that published it, on the
+ * single ingest thread, to be added to the epoch being assembled. Only sources that were added
+ * are ever started, so a disabled source costs nothing.
+ *
+ * The engine only uses the interfaces below and has no Android dependencies.
+ */
+class CollectionEngine {
+
+    public interface Source {
+        /**
+         * Registers the platform listeners. Events are published through sink from any thread.
+         */
+        void start(EventSink sink);
+
+        void stop();
+
+        /**
+         * Adds one of this source's events to the epoch. Runs on the ingest thread.
+         * @return true if the event completes the epoch
+         */
+        boolean onEvent(IngestEvent event, EpochBuilder epoch);
+
+        /**
+         * Adds anything that is sampled once per epoch, just before it is built. Runs on the ingest thread.
+         */
+        void onEpochEnd(EpochBuilder epoch);
+    }
+
+    public interface EventSink {
+        /**
+         * @return a record to fill, or null if the ring is full and the event should be skipped
+         */
+        IngestEvent claim();
+
+        void publish(IngestEvent event);
+    }
+
+    public interface Store {
+        /**
+         * @return false if the epoch could not be queued for storage
+         */
+        boolean append(byte[] encoded);
+    }
+
+    public interface Uplink {
+        /**
+         * @param trace the epoch's Telemetry trace, to be marked as it is sent and answered
+         */
+        void send(LocationUpdate update, byte[] encoded, long trace);
+
+        /**
+         * Called instead of send() for an epoch that was only stored because the network was down.
+         */
+        void skipped();
+    }
+
+    public interface Network {
+        boolean isConnected();
+    }
+
+    private static final String TAG = "ShadowMapsEngine";
+
+    private final UserInformation userInfo;
+    private final Store store;
+    private final Uplink uplink;
+    private final Network network;
+    private final Telemetry telemetry;
+    private final IngestThread ingest;
+    private final List<Source> sources = new ArrayList<>();
+    private Source[] dispatch = new Source[0];
+    private boolean started = false;
+
+    // Repeated fields of the epoch currently being collected. Only touched on the ingest thread.
+    private final EpochBuilder epoch = new EpochBuilder();
+
+    // Only written on the ingest thread
+    private volatile long epochs = 0;
+    private volatile long storeDrops = 0;
+    private volatile long sent = 0;
+
+    /**
+     * @param uplink where epochs are sent as they are built, or null to only store them
+     */
+    public CollectionEngine(UserInformation userInfo, Store store, Uplink uplink, Network network,
+                            Telemetry telemetry, int ringSize) {
+        this.userInfo = userInfo;
+        this.store = store;
+        this.uplink = uplink;
+        this.network = network;
+        this.telemetry = telemetry;
+        ingest = new IngestThread(ringSize, new IngestThread.Handler() {
+            @Override
+            public void onEvent(IngestEvent event) {
+                dispatch(event);
+            }
+        });
+    }
+
+    /**
+     * Adds a source. Must be called before start().
+     */
+    public synchronized void addSource(Source source) {
+        if (started) {
+            throw new IllegalStateException("Sources must be added before the engine starts");
+        }
+        sources.add(source);
+    }
+
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        dispatch = sources.toArray(new Source[sources.size()]);
+        ingest.start();
+        for (int i = 0; i < dispatch.length; i++) {
+            try {
+                dispatch[i].start(new SourceSink(i));
+            } catch (Exception e) {
+                // A source without permission or hardware must not stop the others
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public synchronized void stop() {
+        for (Source source : dispatch) {
+            try {
+                source.stop();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        ingest.quit();
+    }
+
+    // Runs on the ingest thread
+    private void dispatch(IngestEvent event) {
+        if (dispatch[event.source].onEvent(event, epoch)) {
+            finishEpoch(event.publishedNanos);
+        }
+    }
+
+    private void finishEpoch(long captureNanos) {
+        long trace = telemetry.begin(captureNanos);
+        for (Source source : dispatch) {
+            source.onEpochEnd(epoch);
+        }
+        LocationUpdate update = epoch.build(userInfo);
+        telemetry.mark(trace, TelemetrySnapshot.STAGE_FINALIZE);
+        byte[] encoded = new byte[update.getSerializedSize()];
+        try {
+            update.writeTo(CodedOutputByteBufferNano.newInstance(encoded));
+        } catch (IOException e) {
+            // The buffer is exactly the serialized size, so this cannot happen
+            e.printStackTrace();
+            return;
+        }
+        epochs++;
+        telemetry.mark(trace, TelemetrySnapshot.STAGE_ENCODE);
+        telemetry.onEncoded(encoded.length);
+        if (!store.append(encoded)) {
+            storeDrops++;
+        }
+        if (uplink != null) {
+            if (network.isConnected()) {
+                // Once handed off, the uplink's thread may mark the next stages at any time
+                telemetry.mark(trace, TelemetrySnapshot.STAGE_ENQUEUE);
+                uplink.send(update, encoded, trace);
+                sent++;
+            } else {
+                uplink.skipped();
+            }
+        }
+    }
+
+    public long getEpochCount() {
+        return epochs;
+    }
+
+    public long getStoreDropCount() {
+        return storeDrops;
+    }
+
+    public long getSentCount() {
+        return sent;
+    }
+
+    public long getProcessedEventCount() {
+        return ingest.getProcessedCount();
+    }
+
+    public long getDroppedEventCount() {
+        return ingest.getDroppedCount();
+    }
+
+    @Override
+    public String toString() {
+        return TAG + ": " + epochs + " epochs, " + sent + " sent, " + storeDrops + " not stored, "
+                + ingest.getProcessedCount() + " events, " + ingest.getDroppedCount() + " events dropped";
+    }
+
+    // Stamps each claimed record with the index of the source that publishes it
+    private final class SourceSink implements EventSink {
+        private final int index;
+
+        SourceSink(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public IngestEvent claim() {
+            IngestEvent event = ingest.claim();
+            if (event != null) {
+                event.source = index;
+            }
+            return event;
+        }
+
+        @Override
+        public void publish(IngestEvent event) {
+            event.publishedNanos = System.nanoTime();
+            ingest.publish(event);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package com.shadowmaps.service;
+
+import com.google.protobuf.nano.MessageNano;
+import com.shadowmaps.util.api.protobufs.LocationEstimate;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.NMEAInfo;
+import com.shadowmaps.util.api.protobufs.SatInfo;
+import com.shadowmaps.util.api.protobufs.UserInformation;
+import com.shadowmaps.util.api.protobufs.WiFiInfo;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads columnar batch files (.smpb2) written by ColumnarBatchWriter.
+ * Only the header and the column directory are read when the file is opened; read() then
+ * inflates just the requested columns and returns LocationUpdates with only those fields set.
+ *
+ * File layout, big-endian:
+ *   int magic "SMC2", byte version,
+ *   UTF api key, UTF batch id, long start time, long end time, int epoch count,
+ *   int length + UserInformation shared by all epochs,
+ *   int column count, then for each column: int id, int raw length, int compressed length,
+ *   followed by the deflated column blocks in directory order.
+ */
+class ColumnarBatchReader implements Closeable {
+    static final int MAGIC = 0x534D4332;
+    static final int VERSION = 2;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Column ids. Values within a column are varints, signed ones zigzag encoded.
+    public static final int EPOCH_TIME = 0;          // sat info time, delta-of-delta
+    public static final int ESTIMATE_COUNT = 1;      // estimates per epoch
+    public static final int ESTIMATE_UTC = 2;        // delta-of-delta
+    public static final int ESTIMATE_LAT = 3;        // 1e-7 degrees, delta
+    public static final int ESTIMATE_LON = 4;        // 1e-7 degrees, delta
+    public static final int ESTIMATE_ACC = 5;        // hundredths, delta
+    public static final int ESTIMATE_ALT = 6;        // hundredths, delta
+    public static final int ESTIMATE_SPEED = 7;      // hundredths, delta
+    public static final int ESTIMATE_BEARING = 8;    // hundredths, delta
+    public static final int ESTIMATE_PROVIDER = 9;   // dictionary index
+    public static final int SAT_COUNT = 10;          // satellites per epoch
+    public static final int SAT_PRN = 11;
+    public static final int SAT_SNR = 12;            // tenths, delta against the same PRN
+    public static final int SAT_AZIMUTH = 13;        // tenths, delta against the same PRN
+    public static final int SAT_ELEVATION = 14;      // tenths, delta against the same PRN
+    public static final int SAT_FLAGS = 15;          // CompactEncoder.FLAG_* bits
+    public static final int NMEA_COUNT = 16;         // sentences per epoch
+    public static final int NMEA_TIME = 17;          // delta-of-delta
+    public static final int NMEA_SENTENCE = 18;
+    public static final int WIFI_COUNT = 19;         // access points per epoch
+    public static final int WIFI_BSSID = 20;
+    public static final int WIFI_TIME = 21;          // delta-of-delta
+    public static final int WIFI_FREQUENCY = 22;
+    public static final int WIFI_RSSI = 23;
+    public static final int REMAINDER = 24;          // length + LocationUpdate with the other fields
+    public static final int WIFI_ID = 25;            // BssidDictionary id
+    public static final int WIFI_MAC = 26;           // 48-bit BSSID, 0 if not sent
+    static final int COLUMN_COUNT = 27;
+
+    private static final int SAT_SERIES_SLOTS = 256;
+
+    private final RandomAccessFile file;
+    private final String apiKey;
+    private final String batchId;
+    private final long startTime;
+    private final long endTime;
+    private final int epochCount;
+    private final UserInformation userInfo;
+    private final long[] offsets = new long[COLUMN_COUNT];
+    private final int[] rawLengths = new int[COLUMN_COUNT];
+    private final int[] compressedLengths = new int[COLUMN_COUNT];
+
+    public ColumnarBatchReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            if (file.readInt() != MAGIC || file.readByte() != VERSION) {
+                throw new IOException("Not a columnar batch: " + path);
+            }
+            apiKey = file.readUTF();
+            batchId = file.readUTF();
+            startTime = file.readLong();
+            endTime = file.readLong();
+            epochCount = file.readInt();
+            byte[] user = new byte[file.readInt()];
+            file.readFully(user);
+            userInfo = user.length > 0 ? MessageNano.mergeFrom(new UserInformation(), user) : null;
+
+            int columnCount = file.readInt();
+            int[] ids = new int[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                ids[i] = file.readInt();
+                if (ids[i] < 0 || ids[i] >= COLUMN_COUNT) {
+                    throw new IOException("Unknown column " + ids[i] + " in " + path);
+                }
+                rawLengths[ids[i]] = file.readInt();
+                compressedLengths[ids[i]] = file.readInt();
+            }
+            long offset = file.getFilePointer();
+            for (int id : ids) {
+                offsets[id] = offset;
+                offset += compressedLengths[id];
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    public String getBatchId() {
+        return batchId;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public int getEpochCount() {
+        return epochCount;
+    }
+
+    public UserInformation getUserInfo() {
+        return userInfo;
+    }
+
+    public boolean hasColumn(int column) {
+        return compressedLengths[column] > 0;
+    }
+
+    /**
+     * Sat info time of every epoch, without decoding any other column.
+     */
+    public long[] readEpochTimes() throws IOException {
+        long[] times = new long[epochCount];
+        ColumnCursor column = load(EPOCH_TIME);
+        if (column != null) {
+            for (int i = 0; i < epochCount; i++) {
+                times[i] = column.readTime();
+            }
+        }
+        return times;
+    }
+
+    /**
+     * Decodes the given columns of every epoch. Count columns, and the PRN column for per-PRN
+     * series, are read implicitly when needed. Fields of unrequested columns keep their defaults.
+     */
+    public LocationUpdate[] read(int... columns) throws IOException {
+        boolean[] wanted = new boolean[COLUMN_COUNT];
+        for (int column : columns) {
+            wanted[column] = true;
+        }
+        for (int id = ESTIMATE_UTC; id <= ESTIMATE_PROVIDER; id++) {
+            wanted[ESTIMATE_COUNT] |= wanted[id];
+        }
+        wanted[SAT_PRN] |= wanted[SAT_SNR] || wanted[SAT_AZIMUTH] || wanted[SAT_ELEVATION];
+        for (int id = SAT_PRN; id <= SAT_FLAGS; id++) {
+            wanted[SAT_COUNT] |= wanted[id];
+        }
+        for (int id = NMEA_TIME; id <= NMEA_SENTENCE; id++) {
+            wanted[NMEA_COUNT] |= wanted[id];
+        }
+        for (int id = WIFI_BSSID; id <= WIFI_RSSI; id++) {
+            wanted[WIFI_COUNT] |= wanted[id];
+        }
+        wanted[WIFI_COUNT] |= wanted[WIFI_ID] | wanted[WIFI_MAC];
+
+        ColumnCursor[] c = new ColumnCursor[COLUMN_COUNT];
+        for (int id = 0; id < COLUMN_COUNT; id++) {
+            if (wanted[id]) {
+                c[id] = load(id);
+            }
+        }
+
+        LocationUpdate[] updates = new LocationUpdate[epochCount];
+        for (int i = 0; i < epochCount; i++) {
+            LocationUpdate lu = new LocationUpdate();
+            lu.userInfo = userInfo;
+            if (c[EPOCH_TIME] != null) {
+                lu.satInfoTime = c[EPOCH_TIME].readTime();
+            }
+            updates[i] = lu;
+        }
+        if (c[ESTIMATE_COUNT] != null) {
+            readEstimates(updates, c);
+        }
+        if (c[SAT_COUNT] != null) {
+            readSatellites(updates, c);
+        }
+        if (c[NMEA_COUNT] != null) {
+            readNmea(updates, c);
+        }
+        if (c[WIFI_COUNT] != null) {
+            readWiFi(updates, c);
+        }
+        if (c[REMAINDER] != null) {
+            ColumnCursor rest = c[REMAINDER];
+            for (LocationUpdate lu : updates) {
+                int size = (int) rest.readVarint();
+                if (size > 0) {
+                    MessageNano.mergeFrom(lu, rest.data, rest.pos, size);
+                    rest.pos += size;
+                }
+            }
+        }
+        return updates;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void readEstimates(LocationUpdate[] updates, ColumnCursor[] c) {
+        List<String> providers = new ArrayList<>();
+        for (LocationUpdate lu : updates) {
+            int n = (int) c[ESTIMATE_COUNT].readVarint();
+            lu.estimates = n == 0 ? LocationEstimate.emptyArray() : new LocationEstimate[n];
+            for (int j = 0; j < n; j++) {
+                LocationEstimate le = new LocationEstimate();
+                if (c[ESTIMATE_UTC] != null) {
+                    le.utc = c[ESTIMATE_UTC].readTime();
+                }
+                if (c[ESTIMATE_LAT] != null) {
+                    le.lat = c[ESTIMATE_LAT].readDelta() / CompactEncoder.DEGREES_E7;
+                }
+                if (c[ESTIMATE_LON] != null) {
+                    le.lon = c[ESTIMATE_LON].readDelta() / CompactEncoder.DEGREES_E7;
+                }
+                if (c[ESTIMATE_ACC] != null) {
+                    le.acc = c[ESTIMATE_ACC].readDelta() / CompactEncoder.HUNDREDTHS;
+                }
+                if (c[ESTIMATE_ALT] != null) {
+                    le.alt = c[ESTIMATE_ALT].readDelta() / CompactEncoder.HUNDREDTHS;
+                }
+                if (c[ESTIMATE_SPEED] != null) {
+                    le.speed = c[ESTIMATE_SPEED].readDelta() / CompactEncoder.HUNDREDTHS;
+                }
+                if (c[ESTIMATE_BEARING] != null) {
+                    le.bearing = c[ESTIMATE_BEARING].readDelta() / CompactEncoder.HUNDREDTHS;
+                }
+                if (c[ESTIMATE_PROVIDER] != null) {
+                    int index = (int) c[ESTIMATE_PROVIDER].readVarint();
+                    if (index == providers.size()) {
+                        providers.add(c[ESTIMATE_PROVIDER].readString());
+                    }
+                    le.provider = providers.get(index);
+                }
+                lu.estimates[j] = le;
+            }
+        }
+    }
+
+    private void readSatellites(LocationUpdate[] updates, ColumnCursor[] c) {
+        int[] snrs = new int[SAT_SERIES_SLOTS];
+        int[] azimuths = new int[SAT_SERIES_SLOTS];
+        int[] elevations = new int[SAT_SERIES_SLOTS];
+        for (LocationUpdate lu : updates) {
+            int n = (int) c[SAT_COUNT].readVarint();
+            lu.satelliteInfos = n == 0 ? SatInfo.emptyArray() : new SatInfo[n];
+            for (int j = 0; j < n; j++) {
+                SatInfo sat = new SatInfo();
+                if (c[SAT_PRN] != null) {
+                    sat.prn = (int) c[SAT_PRN].readVarint();
+                }
+                int slot = sat.prn & (SAT_SERIES_SLOTS - 1);
+                if (c[SAT_SNR] != null) {
+                    snrs[slot] += (int) c[SAT_SNR].readSigned();
+                    sat.snr = snrs[slot] / CompactEncoder.TENTHS;
+                }
+                if (c[SAT_AZIMUTH] != null) {
+                    azimuths[slot] += (int) c[SAT_AZIMUTH].readSigned();
+                    sat.azimuth = azimuths[slot] / CompactEncoder.TENTHS;
+                }
+                if (c[SAT_ELEVATION] != null) {
+                    elevations[slot] += (int) c[SAT_ELEVATION].readSigned();
+                    sat.elevation = elevations[slot] / CompactEncoder.TENTHS;
+                }
+                if (c[SAT_FLAGS] != null) {
+                    int flags = (int) c[SAT_FLAGS].readVarint();
+                    sat.ephemeris = (flags & CompactEncoder.FLAG_EPHEMERIS) != 0;
+                    sat.almanac = (flags & CompactEncoder.FLAG_ALMANAC) != 0;
+                    sat.used = (flags & CompactEncoder.FLAG_USED) != 0;
+                }
+                lu.satelliteInfos[j] = sat;
+            }
+        }
+    }
+
+    private void readNmea(LocationUpdate[] updates, ColumnCursor[] c) {
+        for (LocationUpdate lu : updates) {
+            int n = (int) c[NMEA_COUNT].readVarint();
+            lu.nmeaInfos = n == 0 ? NMEAInfo.emptyArray() : new NMEAInfo[n];
+            for (int j = 0; j < n; j++) {
+                NMEAInfo nmea = new NMEAInfo();
+                if (c[NMEA_TIME] != null) {
+                    nmea.timestamp = c[NMEA_TIME].readTime();
+                }
+                if (c[NMEA_SENTENCE] != null) {
+                    nmea.sentence = c[NMEA_SENTENCE].readString();
+                }
+                lu.nmeaInfos[j] = nmea;
+            }
+        }
+    }
+
+    private void readWiFi(LocationUpdate[] updates, ColumnCursor[] c) {
+        for (LocationUpdate lu : updates) {
+            int n = (int) c[WIFI_COUNT].readVarint();
+            lu.wifiNetworks = n == 0 ? WiFiInfo.emptyArray() : new WiFiInfo[n];
+            for (int j = 0; j < n; j++) {
+                WiFiInfo ap = new WiFiInfo();
+                if (c[WIFI_BSSID] != null) {
+                    ap.bssid = c[WIFI_BSSID].readString();
+                }
+                if (c[WIFI_TIME] != null) {
+                    ap.timestamp = c[WIFI_TIME].readTime();
+                }
+                if (c[WIFI_FREQUENCY] != null) {
+                    ap.frequency = (int) c[WIFI_FREQUENCY].readVarint();
+                }
+                if (c[WIFI_RSSI] != null) {
+                    ap.rssi = (int) c[WIFI_RSSI].readSigned();
+                }
+                if (c[WIFI_ID] != null) {
+                    ap.id = (int) c[WIFI_ID].readVarint();
+                }
+                if (c[WIFI_MAC] != null) {
+                    ap.mac = c[WIFI_MAC].readVarint();
+                }
+                lu.wifiNetworks[j] = ap;
+            }
+        }
+    }
+
+    // Reads and inflates one column block, or returns null if the batch has no such column.
+    private ColumnCursor load(int column) throws IOException {
+        if (compressedLengths[column] == 0) {
+            return null;
+        }
+        byte[] compressed = new byte[compressedLengths[column]];
+        file.seek(offsets[column]);
+        file.readFully(compressed);
+        byte[] raw = new byte[rawLengths[column]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while (n < raw.length && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, raw.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if (n != raw.length) {
+                throw new IOException("Column " + column + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Column " + column + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        return new ColumnCursor(raw);
+    }
+
+    /**
+     * Sequential reader over one inflated column. Also keeps the running value and delta
+     * for the delta and delta-of-delta encoded columns.
+     */
+    static final class ColumnCursor {
+        final byte[] data;
+        int pos = 0;
+        private long value = 0;
+        private long delta = 0;
+
+        ColumnCursor(byte[] data) {
+            this.data = data;
+        }
+
+        long readVarint() {
+            long result = 0;
+            int shift = 0;
+            while (true) {
+                byte b = data[pos++];
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+                shift += 7;
+            }
+        }
+
+        long readSigned() {
+            long n = readVarint();
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        long readDelta() {
+            value += readSigned();
+            return value;
+        }
+
+        long readTime() {
+            delta += readSigned();
+            value += delta;
+            return value;
+        }
+
+        String readString() {
+            int length = (int) readVarint();
+            String s = new String(data, pos, length, UTF_8);
+            pos += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package com.shadowmaps.service;
+
+import com.google.protobuf.nano.MessageNano;
+import com.shadowmaps.util.api.protobufs.LocationEstimate;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.NMEAInfo;
+import com.shadowmaps.util.api.protobufs.SatInfo;
+import com.shadowmaps.util.api.protobufs.UserInformation;
+import com.shadowmaps.util.api.protobufs.WiFiInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Accumulates LocationUpdates column by column and writes them out as a columnar batch (.smpb2).
+ *
+ * Each field of every epoch is appended to its own column, so values that change slowly sit next
+ * to each other: timestamps are stored as delta-of-delta varints, positions and other floats as
+ * quantized deltas, satellite SNR, azimuth and elevation as deltas against the previous value of
+ * the same PRN, and strings are written as-is so the per-column deflate can remove the repeats.
+ * Fields without a column of their own (cell, sensor data, ...) are kept in the remainder column
+ * as a LocationUpdate with the columnized fields cleared.
+ *
+ * The layout of the file is described in ColumnarBatchReader, which also holds the column ids.
+ */
+class ColumnarBatchWriter {
+    private static final int SAT_SERIES_SLOTS = 256;
+
+    private final ColumnBuffer[] columns = new ColumnBuffer[ColumnarBatchReader.COLUMN_COUNT];
+    private final List<String> providers = new ArrayList<>();
+    private UserInformation userInfo;
+    private int epochCount = 0;
+    private long startTime = 0;
+    private long endTime = 0;
+
+    // Previous values, for the delta columns
+    private final long[] prevTime = new long[ColumnarBatchReader.COLUMN_COUNT];
+    private final long[] prevDelta = new long[ColumnarBatchReader.COLUMN_COUNT];
+    private final long[] prevValue = new long[ColumnarBatchReader.COLUMN_COUNT];
+    private final int[] prevSnr = new int[SAT_SERIES_SLOTS];
+    private final int[] prevAzimuth = new int[SAT_SERIES_SLOTS];
+    private final int[] prevElevation = new int[SAT_SERIES_SLOTS];
+
+    public ColumnarBatchWriter() {
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = new ColumnBuffer();
+        }
+    }
+
+    public void add(LocationUpdate lu) {
+        if (userInfo == null) {
+            userInfo = lu.userInfo;
+        }
+        epochCount++;
+        writeTime(ColumnarBatchReader.EPOCH_TIME, lu.satInfoTime);
+
+        LocationEstimate[] estimates = lu.estimates;
+        columns[ColumnarBatchReader.ESTIMATE_COUNT].writeVarint(estimates.length);
+        for (LocationEstimate le : estimates) {
+            writeTime(ColumnarBatchReader.ESTIMATE_UTC, le.utc);
+            writeDelta(ColumnarBatchReader.ESTIMATE_LAT, Math.round(le.lat * CompactEncoder.DEGREES_E7));
+            writeDelta(ColumnarBatchReader.ESTIMATE_LON, Math.round(le.lon * CompactEncoder.DEGREES_E7));
+            writeDelta(ColumnarBatchReader.ESTIMATE_ACC, Math.round(le.acc * CompactEncoder.HUNDREDTHS));
+            writeDelta(ColumnarBatchReader.ESTIMATE_ALT, Math.round(le.alt * CompactEncoder.HUNDREDTHS));
+            writeDelta(ColumnarBatchReader.ESTIMATE_SPEED, Math.round(le.speed * CompactEncoder.HUNDREDTHS));
+            writeDelta(ColumnarBatchReader.ESTIMATE_BEARING, Math.round(le.bearing * CompactEncoder.HUNDREDTHS));
+            writeProvider(le.provider);
+            if (le.utc > 0) {
+                if (startTime == 0 || le.utc < startTime) {
+                    startTime = le.utc;
+                }
+                if (le.utc > endTime) {
+                    endTime = le.utc;
+                }
+            }
+        }
+
+        SatInfo[] sats = lu.satelliteInfos;
+        columns[ColumnarBatchReader.SAT_COUNT].writeVarint(sats.length);
+        for (SatInfo sat : sats) {
+            int slot = sat.prn & (SAT_SERIES_SLOTS - 1);
+            int snr = Math.round(sat.snr * CompactEncoder.TENTHS);
+            int azimuth = Math.round(sat.azimuth * CompactEncoder.TENTHS);
+            int elevation = Math.round(sat.elevation * CompactEncoder.TENTHS);
+            columns[ColumnarBatchReader.SAT_PRN].writeVarint(sat.prn);
+            columns[ColumnarBatchReader.SAT_SNR].writeSigned(snr - prevSnr[slot]);
+            columns[ColumnarBatchReader.SAT_AZIMUTH].writeSigned(azimuth - prevAzimuth[slot]);
+            columns[ColumnarBatchReader.SAT_ELEVATION].writeSigned(elevation - prevElevation[slot]);
+            columns[ColumnarBatchReader.SAT_FLAGS].writeVarint((sat.ephemeris ? CompactEncoder.FLAG_EPHEMERIS : 0)
+                    | (sat.almanac ? CompactEncoder.FLAG_ALMANAC : 0)
+                    | (sat.used ? CompactEncoder.FLAG_USED : 0));
+            prevSnr[slot] = snr;
+            prevAzimuth[slot] = azimuth;
+            prevElevation[slot] = elevation;
+        }
+
+        NMEAInfo[] nmeas = lu.nmeaInfos;
+        columns[ColumnarBatchReader.NMEA_COUNT].writeVarint(nmeas.length);
+        for (NMEAInfo nmea : nmeas) {
+            writeTime(ColumnarBatchReader.NMEA_TIME, nmea.timestamp);
+            columns[ColumnarBatchReader.NMEA_SENTENCE].writeString(nmea.sentence);
+        }
+
+        WiFiInfo[] aps = lu.wifiNetworks;
+        columns[ColumnarBatchReader.WIFI_COUNT].writeVarint(aps.length);
+        for (WiFiInfo ap : aps) {
+            columns[ColumnarBatchReader.WIFI_BSSID].writeString(ap.bssid);
+            writeTime(ColumnarBatchReader.WIFI_TIME, ap.timestamp);
+            columns[ColumnarBatchReader.WIFI_FREQUENCY].writeVarint(ap.frequency);
+            columns[ColumnarBatchReader.WIFI_RSSI].writeSigned(ap.rssi);
+            columns[ColumnarBatchReader.WIFI_ID].writeVarint(ap.id);
+            columns[ColumnarBatchReader.WIFI_MAC].writeVarint(ap.mac);
+        }
+
+        writeRemainder(lu);
+    }
+
+    public int size() {
+        return epochCount;
+    }
+
+    public void clear() {
+        for (ColumnBuffer column : columns) {
+            column.length = 0;
+        }
+        providers.clear();
+        userInfo = null;
+        epochCount = 0;
+        startTime = 0;
+        endTime = 0;
+        Arrays.fill(prevTime, 0);
+        Arrays.fill(prevDelta, 0);
+        Arrays.fill(prevValue, 0);
+        Arrays.fill(prevSnr, 0);
+        Arrays.fill(prevAzimuth, 0);
+        Arrays.fill(prevElevation, 0);
+    }
+
+    public byte[] toBytes(String apiKey, String batchId) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ColumnarBatchReader.MAGIC);
+        out.writeByte(ColumnarBatchReader.VERSION);
+        out.writeUTF(apiKey != null ? apiKey : "");
+        out.writeUTF(batchId != null ? batchId : "");
+        out.writeLong(startTime);
+        out.writeLong(endTime);
+        out.writeInt(epochCount);
+        byte[] user = userInfo != null ? MessageNano.toByteArray(userInfo) : new byte[0];
+        out.writeInt(user.length);
+        out.write(user);
+
+        // Compress every non-empty column, then write the directory followed by the blocks
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        byte[][] blocks = new byte[columns.length][];
+        int blockCount = 0;
+        try {
+            for (int id = 0; id < columns.length; id++) {
+                if (columns[id].length > 0) {
+                    blocks[id] = deflate(deflater, columns[id]);
+                    blockCount++;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        out.writeInt(blockCount);
+        for (int id = 0; id < columns.length; id++) {
+            if (blocks[id] != null) {
+                out.writeInt(id);
+                out.writeInt(columns[id].length);
+                out.writeInt(blocks[id].length);
+            }
+        }
+        for (byte[] block : blocks) {
+            if (block != null) {
+                out.write(block);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes this batch into file.
+     * @return true if the file was written completely
+     */
+    public boolean writeTo(File file, String apiKey, String batchId) {
+        FileOutputStream fos = null;
+        try {
+            byte[] batch_bytes = toBytes(apiKey, batchId);
+            fos = new FileOutputStream(file);
+            fos.write(batch_bytes);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                if (fos != null) {
+                    fos.close();
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+
+    private void writeTime(int column, long time) {
+        long delta = time - prevTime[column];
+        columns[column].writeSigned(delta - prevDelta[column]);
+        prevTime[column] = time;
+        prevDelta[column] = delta;
+    }
+
+    private void writeDelta(int column, long value) {
+        columns[column].writeSigned(value - prevValue[column]);
+        prevValue[column] = value;
+    }
+
+    // Providers are few, so they are written as an index into the batch's dictionary.
+    // An index equal to the dictionary size introduces a new entry, written inline.
+    private void writeProvider(String provider) {
+        ColumnBuffer column = columns[ColumnarBatchReader.ESTIMATE_PROVIDER];
+        if (provider == null) {
+            provider = "";
+        }
+        int index = providers.indexOf(provider);
+        if (index >= 0) {
+            column.writeVarint(index);
+        } else {
+            column.writeVarint(providers.size());
+            column.writeString(provider);
+            providers.add(provider);
+        }
+    }
+
+    // Fields added to LocationUpdate without a column of their own must be copied here
+    private void writeRemainder(LocationUpdate lu) {
+        LocationUpdate rest = new LocationUpdate();
+        rest.cellNetworks = lu.cellNetworks;
+        rest.sensorInfos = lu.sensorInfos;
+        rest.seq = lu.seq;
+        rest.inertialSeries = lu.inertialSeries;
+        rest.wifiIds = lu.wifiIds;
+        rest.wifiScanTime = lu.wifiScanTime;
+        rest.wifiScanSeq = lu.wifiScanSeq;
+        rest.wifiKeyframe = lu.wifiKeyframe;
+        rest.beacons = lu.beacons;
+        rest.cachedArtifactHashes = lu.cachedArtifactHashes;
+        int size = rest.getSerializedSize();
+        ColumnBuffer column = columns[ColumnarBatchReader.REMAINDER];
+        column.writeVarint(size);
+        if (size > 0) {
+            column.ensureCapacity(size);
+            MessageNano.toByteArray(rest, column.data, column.length, size);
+            column.length += size;
+        }
+    }
+
+    private static byte[] deflate(Deflater deflater, ColumnBuffer column) {
+        deflater.reset();
+        deflater.setInput(column.data, 0, column.length);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(column.length / 4 + 64);
+        byte[] chunk = new byte[4096];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(chunk);
+            out.write(chunk, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Growable byte array holding the encoded values of one column.
+     */
+    static final class ColumnBuffer {
+        byte[] data = new byte[256];
+        int length = 0;
+
+        void ensureCapacity(int extra) {
+            if (length + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+            }
+        }
+
+        void writeVarint(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        // Zigzag, so small negative deltas stay short
+        void writeSigned(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        void writeString(String value) {
+            byte[] utf8 = value != null ? value.getBytes(ColumnarBatchReader.UTF_8) : new byte[0];
+            writeVarint(utf8.length);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, data, length, utf8.length);
+            length += utf8.length;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.CompactUpdate;
+import com.shadowmaps.util.api.protobufs.LocationEstimate;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.SatInfo;
+import com.shadowmaps.util.api.protobufs.UserInformation;
+
+/**
+ * Reconstructs LocationUpdates from a sequence of CompactUpdates produced by CompactEncoder.
+ * A delta can only be applied on top of the epoch it was encoded against; if that epoch was
+ * lost, decode() returns null until the next keyframe arrives.
+ */
+class CompactDecoder {
+    private boolean synced = false;
+    private int lastSeq;
+    private UserInformation user;
+
+    private long utc;
+    private long lat;
+    private long lon;
+    private long satInfoTime;
+    private String provider;
+    private int count = 0;
+    private int[] prns = new int[IngestEvent.MAX_SATELLITES];
+    private int[] snrs = new int[IngestEvent.MAX_SATELLITES];
+    private int[] azimuths = new int[IngestEvent.MAX_SATELLITES];
+    private int[] elevations = new int[IngestEvent.MAX_SATELLITES];
+
+    private int[] nextPrns = new int[IngestEvent.MAX_SATELLITES];
+    private int[] nextSnrs = new int[IngestEvent.MAX_SATELLITES];
+    private int[] nextAzimuths = new int[IngestEvent.MAX_SATELLITES];
+    private int[] nextElevations = new int[IngestEvent.MAX_SATELLITES];
+
+    /**
+     * @return the reconstructed epoch, or null if cu is a delta against an epoch that was not decoded
+     */
+    public LocationUpdate decode(CompactUpdate cu) {
+        if (cu.keyframe) {
+            user = new UserInformation();
+            user.id = cu.id;
+            user.apiKey = cu.apiKey;
+            user.model = cu.model;
+            count = 0;
+            utc = 0;
+            lat = 0;
+            lon = 0;
+            satInfoTime = 0;
+            provider = null;
+            synced = true;
+        } else if (!synced || cu.baseSeq != lastSeq) {
+            synced = false;
+            return null;
+        }
+        lastSeq = cu.seq;
+
+        LocationUpdate lu = new LocationUpdate();
+        lu.userInfo = user;
+        satInfoTime += cu.satInfoTime;
+        lu.satInfoTime = satInfoTime;
+        if (cu.hasFix) {
+            utc += cu.utc;
+            lat += cu.lat;
+            lon += cu.lon;
+            if (cu.provider != null && cu.provider.length() > 0) {
+                provider = cu.provider;
+            }
+            LocationEstimate le = new LocationEstimate();
+            le.utc = utc;
+            le.lat = lat / CompactEncoder.DEGREES_E7;
+            le.lon = lon / CompactEncoder.DEGREES_E7;
+            le.acc = cu.acc / CompactEncoder.TENTHS;
+            le.alt = cu.alt / CompactEncoder.TENTHS;
+            le.speed = cu.speed / CompactEncoder.HUNDREDTHS;
+            le.bearing = cu.bearing / CompactEncoder.TENTHS;
+            le.provider = provider;
+            lu.estimates = new LocationEstimate[] {le};
+        }
+
+        applySatellites(cu);
+        lu.satelliteInfos = new SatInfo[count];
+        for (int i = 0; i < count; i++) {
+            SatInfo sat = new SatInfo();
+            sat.prn = prns[i];
+            sat.snr = snrs[i] / CompactEncoder.TENTHS;
+            sat.azimuth = azimuths[i] / CompactEncoder.TENTHS;
+            sat.elevation = elevations[i] / CompactEncoder.TENTHS;
+            int f = cu.flags == null ? 0 : CompactEncoder.unpackFlag(cu.flags, i);
+            sat.ephemeris = (f & CompactEncoder.FLAG_EPHEMERIS) != 0;
+            sat.almanac = (f & CompactEncoder.FLAG_ALMANAC) != 0;
+            sat.used = (f & CompactEncoder.FLAG_USED) != 0;
+            lu.satelliteInfos[i] = sat;
+        }
+        return lu;
+    }
+
+    // Merge the previous PRN set with added/removed PRNs, in ascending order, applying value deltas
+    private void applySatellites(CompactUpdate cu) {
+        int n = 0;
+        int i = 0;
+        int a = 0;
+        int r = 0;
+        while (i < count || a < cu.addedPrns.length) {
+            boolean takeAdded = i == count || (a < cu.addedPrns.length && cu.addedPrns[a] < prns[i]);
+            if (takeAdded) {
+                nextPrns[n] = cu.addedPrns[a++];
+                nextSnrs[n] = cu.snrs[n];
+                nextAzimuths[n] = cu.azimuths[n];
+                nextElevations[n] = cu.elevations[n];
+                n++;
+            } else if (r < cu.removedPrns.length && cu.removedPrns[r] == prns[i]) {
+                r++;
+                i++;
+            } else {
+                nextPrns[n] = prns[i];
+                nextSnrs[n] = snrs[i] + cu.snrs[n];
+                nextAzimuths[n] = azimuths[i] + cu.azimuths[n];
+                nextElevations[n] = elevations[i] + cu.elevations[n];
+                n++;
+                i++;
+            }
+        }
+        int[] t = prns; prns = nextPrns; nextPrns = t;
+        t = snrs; snrs = nextSnrs; nextSnrs = t;
+        t = azimuths; azimuths = nextAzimuths; nextAzimuths = t;
+        t = elevations; elevations = nextElevations; nextElevations = t;
+        count = n;
+    }
+}
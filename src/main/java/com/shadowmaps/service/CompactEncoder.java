@@ -0,0 +1,229 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.CompactUpdate;
+import com.shadowmaps.util.api.protobufs.LocationEstimate;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.SatInfo;
+import com.shadowmaps.util.api.protobufs.UserInformation;
+
+/**
+ * Encodes consecutive LocationUpdates as CompactUpdates.
+ * Every keyframeInterval epochs a keyframe with absolute values is sent; in between only the
+ * differences from the previous epoch are sent, with satellites keyed by PRN. Differences are
+ * taken between quantized values, so the decoder reconstructs exactly what was quantized and
+ * rounding never accumulates.
+ *
+ * The compact epoch carries the most recent location estimate, the satellite status and the
+ * sat info time. NMEA, sensor, Wi-Fi and cell data stay in the full LocationUpdate format.
+ */
+class CompactEncoder {
+    static final double DEGREES_E7 = 1e7;
+    static final float TENTHS = 10f;
+    static final float HUNDREDTHS = 100f;
+
+    static final int FLAG_EPHEMERIS = 1;
+    static final int FLAG_ALMANAC = 2;
+    static final int FLAG_USED = 4;
+    static final int FLAG_BITS = 3;
+
+    private final int keyframeInterval;
+    private int seq = 0;
+    private int sinceKeyframe = 0;
+    private boolean forceKeyframe = true;
+
+    // Quantized state of the previous epoch
+    private long prevUtc;
+    private long prevLat;
+    private long prevLon;
+    private long prevSatInfoTime;
+    private String prevProvider;
+    private int prevCount = 0;
+    private int[] prevPrns = new int[IngestEvent.MAX_SATELLITES];
+    private int[] prevSnrs = new int[IngestEvent.MAX_SATELLITES];
+    private int[] prevAzimuths = new int[IngestEvent.MAX_SATELLITES];
+    private int[] prevElevations = new int[IngestEvent.MAX_SATELLITES];
+
+    // Quantized state of the epoch being encoded
+    private int count = 0;
+    private int[] prns = new int[IngestEvent.MAX_SATELLITES];
+    private int[] snrs = new int[IngestEvent.MAX_SATELLITES];
+    private int[] azimuths = new int[IngestEvent.MAX_SATELLITES];
+    private int[] elevations = new int[IngestEvent.MAX_SATELLITES];
+    private int[] flags = new int[IngestEvent.MAX_SATELLITES];
+
+    public CompactEncoder(int keyframeInterval) {
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+    }
+
+    /**
+     * Makes the next epoch a keyframe, e.g. after the receiver may have lost epochs.
+     */
+    public void requestKeyframe() {
+        forceKeyframe = true;
+    }
+
+    public CompactUpdate encode(LocationUpdate lu) {
+        boolean keyframe = forceKeyframe || sinceKeyframe >= keyframeInterval;
+        CompactUpdate cu = new CompactUpdate();
+        cu.seq = ++seq;
+        if (keyframe) {
+            cu.keyframe = true;
+            UserInformation user = lu.userInfo;
+            if (user != null) {
+                cu.id = user.id;
+                cu.apiKey = user.apiKey;
+                cu.model = user.model;
+            }
+            sinceKeyframe = 0;
+            forceKeyframe = false;
+            // Keyframe values are deltas from zero
+            prevUtc = 0;
+            prevLat = 0;
+            prevLon = 0;
+            prevSatInfoTime = 0;
+            prevProvider = null;
+        } else {
+            cu.baseSeq = seq - 1;
+        }
+        sinceKeyframe++;
+
+        LocationEstimate le = lu.estimates.length > 0 ? lu.estimates[lu.estimates.length - 1] : null;
+        if (le != null) {
+            long lat = Math.round(le.lat * DEGREES_E7);
+            long lon = Math.round(le.lon * DEGREES_E7);
+            cu.hasFix = true;
+            cu.utc = le.utc - prevUtc;
+            cu.lat = lat - prevLat;
+            cu.lon = lon - prevLon;
+            cu.acc = Math.round(le.acc * TENTHS);
+            cu.alt = Math.round(le.alt * TENTHS);
+            cu.speed = Math.round(le.speed * HUNDREDTHS);
+            cu.bearing = Math.round(le.bearing * TENTHS);
+            if (le.provider != null && !le.provider.equals(prevProvider)) {
+                cu.provider = le.provider;
+            }
+            prevUtc = le.utc;
+            prevLat = lat;
+            prevLon = lon;
+            prevProvider = le.provider;
+        }
+        cu.satInfoTime = lu.satInfoTime - prevSatInfoTime;
+        prevSatInfoTime = lu.satInfoTime;
+
+        quantizeSatellites(lu.satelliteInfos);
+        encodeSatellites(cu, keyframe);
+        return cu;
+    }
+
+    // Fill the current arrays in ascending PRN order
+    private void quantizeSatellites(SatInfo[] sats) {
+        count = 0;
+        for (SatInfo sat : sats) {
+            if (sat == null || count == prns.length) {
+                continue;
+            }
+            int f = (sat.ephemeris ? FLAG_EPHEMERIS : 0) | (sat.almanac ? FLAG_ALMANAC : 0) | (sat.used ? FLAG_USED : 0);
+            int i = count++;
+            // Insertion sort, the list is short and usually already ordered
+            while (i > 0 && prns[i - 1] > sat.prn) {
+                prns[i] = prns[i - 1];
+                snrs[i] = snrs[i - 1];
+                azimuths[i] = azimuths[i - 1];
+                elevations[i] = elevations[i - 1];
+                flags[i] = flags[i - 1];
+                i--;
+            }
+            prns[i] = sat.prn;
+            snrs[i] = Math.round(sat.snr * TENTHS);
+            azimuths[i] = Math.round(sat.azimuth * TENTHS);
+            elevations[i] = Math.round(sat.elevation * TENTHS);
+            flags[i] = f;
+        }
+    }
+
+    private void encodeSatellites(CompactUpdate cu, boolean keyframe) {
+        int added = 0;
+        int removed = 0;
+        if (keyframe) {
+            added = count;
+        } else {
+            // Merge walk over the two sorted PRN lists
+            int i = 0;
+            int j = 0;
+            while (i < count || j < prevCount) {
+                if (j == prevCount || (i < count && prns[i] < prevPrns[j])) {
+                    added++;
+                    i++;
+                } else if (i == count || prns[i] > prevPrns[j]) {
+                    removed++;
+                    j++;
+                } else {
+                    i++;
+                    j++;
+                }
+            }
+        }
+        cu.addedPrns = new int[added];
+        cu.removedPrns = new int[removed];
+        cu.snrs = new int[count];
+        cu.azimuths = new int[count];
+        cu.elevations = new int[count];
+
+        int a = 0;
+        int r = 0;
+        int i = 0;
+        int j = 0;
+        while (i < count || j < prevCount) {
+            boolean isNew = keyframe || j == prevCount || (i < count && prns[i] < prevPrns[j]);
+            if (keyframe && i == count) {
+                break;
+            }
+            if (isNew) {
+                cu.addedPrns[a++] = prns[i];
+                cu.snrs[i] = snrs[i];
+                cu.azimuths[i] = azimuths[i];
+                cu.elevations[i] = elevations[i];
+                i++;
+            } else if (i == count || prns[i] > prevPrns[j]) {
+                cu.removedPrns[r++] = prevPrns[j];
+                j++;
+            } else {
+                cu.snrs[i] = snrs[i] - prevSnrs[j];
+                cu.azimuths[i] = azimuths[i] - prevAzimuths[j];
+                cu.elevations[i] = elevations[i] - prevElevations[j];
+                i++;
+                j++;
+            }
+        }
+        cu.flags = packFlags(flags, count);
+
+        // The current epoch becomes the reference for the next one
+        int[] t = prevPrns; prevPrns = prns; prns = t;
+        t = prevSnrs; prevSnrs = snrs; snrs = t;
+        t = prevAzimuths; prevAzimuths = azimuths; azimuths = t;
+        t = prevElevations; prevElevations = elevations; elevations = t;
+        prevCount = count;
+    }
+
+    static byte[] packFlags(int[] flags, int count) {
+        byte[] packed = new byte[(count * FLAG_BITS + 7) / 8];
+        for (int i = 0; i < count; i++) {
+            int bit = i * FLAG_BITS;
+            int value = flags[i] << (bit & 7);
+            packed[bit >> 3] |= (byte) value;
+            if ((bit & 7) > 8 - FLAG_BITS) {
+                packed[(bit >> 3) + 1] |= (byte) (value >> 8);
+            }
+        }
+        return packed;
+    }
+
+    static int unpackFlag(byte[] packed, int i) {
+        int bit = i * FLAG_BITS;
+        int value = (packed[bit >> 3] & 0xff) >> (bit & 7);
+        if ((bit & 7) > 8 - FLAG_BITS) {
+            value |= (packed[(bit >> 3) + 1] & 0xff) << (8 - (bit & 7));
+        }
+        return value & ((1 << FLAG_BITS) - 1);
+    }
+}
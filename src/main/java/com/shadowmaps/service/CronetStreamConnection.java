@@ -0,0 +1,163 @@
+package com.shadowmaps.service;
+
+import org.chromium.base.Log;
+import org.chromium.net.BidirectionalStream;
+import org.chromium.net.CronetEngine;
+import org.chromium.net.CronetException;
+import org.chromium.net.UrlResponseInfo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * StreamingUplink connection over a Cronet BidirectionalStream (HTTP/2 or QUIC).
+ * Cronet allows one outstanding write at a time, so queued frames are coalesced into
+ * a single reusable direct buffer for each write.
+ */
+class CronetStreamConnection implements StreamingUplink.Connection {
+    private static final String TAG = "ShadowMapsCronet";
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    private final CronetEngine engine;
+    private final String url;
+    private final Executor executor;
+
+    // Guarded by this
+    private BidirectionalStream stream;
+    private StreamingUplink.Receiver receiver;
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private boolean headersSent = false;
+    private boolean writing = false;
+    private boolean closed = false;
+
+    public CronetStreamConnection(CronetEngine engine, String url, Executor executor) {
+        this.engine = engine;
+        this.url = url;
+        this.executor = executor;
+    }
+
+    @Override
+    public synchronized void open(long resumeAfter, StreamingUplink.Receiver receiver) {
+        this.receiver = receiver;
+        stream = new BidirectionalStream.Builder(url, callback, executor, engine)
+                .setHttpMethod("POST")
+                .addHeader("Content-Type", "application/x-shadowmaps-stream")
+                .addHeader("X-ShadowMaps-Resume-After", String.valueOf(resumeAfter))
+                .build();
+        stream.start();
+    }
+
+    @Override
+    public synchronized void write(ByteBuffer frame) {
+        if (closed) {
+            return;
+        }
+        pending.addLast(frame);
+        flush();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pending.clear();
+        if (stream != null) {
+            stream.cancel();
+        }
+    }
+
+    // Must hold this
+    private void flush() {
+        if (writing || !headersSent || pending.isEmpty()) {
+            return;
+        }
+        int needed = pending.peekFirst().remaining();
+        if (needed > writeBuffer.capacity()) {
+            writeBuffer = ByteBuffer.allocateDirect(needed);
+        }
+        writeBuffer.clear();
+        while (!pending.isEmpty() && pending.peekFirst().remaining() <= writeBuffer.remaining()) {
+            writeBuffer.put(pending.pollFirst());
+        }
+        writeBuffer.flip();
+        writing = true;
+        stream.write(writeBuffer, false);
+    }
+
+    private final BidirectionalStream.Callback callback = new BidirectionalStream.Callback() {
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        @Override
+        public void onRequestHeadersSent(BidirectionalStream s) {
+            synchronized (CronetStreamConnection.this) {
+                headersSent = true;
+                flush();
+            }
+        }
+
+        @Override
+        public void onResponseHeadersReceived(BidirectionalStream s, UrlResponseInfo info) {
+            Log.i(TAG, "Stream open, status " + info.getHttpStatusCode());
+            readBuffer.clear();
+            s.read(readBuffer);
+        }
+
+        @Override
+        public void onReadCompleted(BidirectionalStream s, UrlResponseInfo info, ByteBuffer buffer) {
+            buffer.flip();
+            StreamingUplink.Receiver r;
+            synchronized (CronetStreamConnection.this) {
+                r = closed ? null : receiver;
+            }
+            if (r != null) {
+                r.onBytes(buffer);
+            }
+            buffer.clear();
+            if (!s.isDone()) {
+                s.read(buffer);
+            }
+        }
+
+        @Override
+        public void onWriteCompleted(BidirectionalStream s, UrlResponseInfo info, ByteBuffer buffer) {
+            synchronized (CronetStreamConnection.this) {
+                writing = false;
+                flush();
+            }
+        }
+
+        @Override
+        public void onSucceeded(BidirectionalStream s, UrlResponseInfo info) {
+            finish(null);
+        }
+
+        @Override
+        public void onFailed(BidirectionalStream s, UrlResponseInfo info, CronetException error) {
+            Log.i(TAG, "Stream failed: " + error.getMessage());
+            finish(error);
+        }
+
+        @Override
+        public void onCanceled(BidirectionalStream s, UrlResponseInfo info) {
+            finish(null);
+        }
+
+        private void finish(Throwable error) {
+            StreamingUplink.Receiver r;
+            synchronized (CronetStreamConnection.this) {
+                closed = true;
+                pending.clear();
+                r = receiver;
+                receiver = null;
+            }
+            if (r != null) {
+                r.onClosed(error);
+            }
+        }
+    };
+}
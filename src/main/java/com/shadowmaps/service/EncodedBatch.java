@@ -0,0 +1,122 @@
+package com.shadowmaps.service;
+
+import com.google.protobuf.nano.CodedOutputByteBufferNano;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accumulates already-encoded LocationUpdates and writes them out as a BatchUpdate.
+ * Each epoch is serialized once in finalizeProtobuf(); the batch only copies those bytes
+ * into field 6 as length-delimited messages, which is exactly how the BatchUpdate encoder
+ * would have written the embedded LocationUpdate objects.
+ */
+class EncodedBatch {
+    // Field numbers from BatchUpdate in gnss_info.proto
+    private static final int FIELD_API_KEY = 1;
+    private static final int FIELD_BATCH_ID = 2;
+    private static final int FIELD_START_TIME = 3;
+    private static final int FIELD_END_TIME = 4;
+    private static final int FIELD_UPDATES = 6;
+
+    private final List<byte[]> updates;
+    private long startTime = 0;
+    private long endTime = 0;
+
+    public EncodedBatch(int expectedSize) {
+        updates = new ArrayList<>(expectedSize);
+    }
+
+    /**
+     * @param encoded a serialized LocationUpdate
+     * @param utc time of the epoch, or 0 if it had no location estimate
+     */
+    public void add(byte[] encoded, long utc) {
+        updates.add(encoded);
+        if (utc > 0) {
+            if (startTime == 0 || utc < startTime) {
+                startTime = utc;
+            }
+            if (utc > endTime) {
+                endTime = utc;
+            }
+        }
+    }
+
+    public int size() {
+        return updates.size();
+    }
+
+    public void clear() {
+        updates.clear();
+        startTime = 0;
+        endTime = 0;
+    }
+
+    public byte[] toBatchUpdateBytes(String apiKey, String batchId) throws IOException {
+        int size = 0;
+        if (apiKey != null) {
+            size += CodedOutputByteBufferNano.computeStringSize(FIELD_API_KEY, apiKey);
+        }
+        if (batchId != null) {
+            size += CodedOutputByteBufferNano.computeStringSize(FIELD_BATCH_ID, batchId);
+        }
+        if (startTime != 0) {
+            size += CodedOutputByteBufferNano.computeUInt64Size(FIELD_START_TIME, startTime);
+        }
+        if (endTime != 0) {
+            size += CodedOutputByteBufferNano.computeUInt64Size(FIELD_END_TIME, endTime);
+        }
+        for (int i = 0; i < updates.size(); i++) {
+            size += CodedOutputByteBufferNano.computeBytesSize(FIELD_UPDATES, updates.get(i));
+        }
+
+        byte[] batch_bytes = new byte[size];
+        CodedOutputByteBufferNano out = CodedOutputByteBufferNano.newInstance(batch_bytes);
+        if (apiKey != null) {
+            out.writeString(FIELD_API_KEY, apiKey);
+        }
+        if (batchId != null) {
+            out.writeString(FIELD_BATCH_ID, batchId);
+        }
+        if (startTime != 0) {
+            out.writeUInt64(FIELD_START_TIME, startTime);
+        }
+        if (endTime != 0) {
+            out.writeUInt64(FIELD_END_TIME, endTime);
+        }
+        for (int i = 0; i < updates.size(); i++) {
+            // An embedded message is encoded on the wire exactly like a bytes field
+            out.writeBytes(FIELD_UPDATES, updates.get(i));
+        }
+        return batch_bytes;
+    }
+
+    /**
+     * Writes this batch as a BatchUpdate into file.
+     * @return true if the file was written completely
+     */
+    public boolean writeTo(File file, String apiKey, String batchId) {
+        FileOutputStream fos = null;
+        try {
+            byte[] batch_bytes = toBatchUpdateBytes(apiKey, batchId);
+            fos = new FileOutputStream(file);
+            fos.write(batch_bytes);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                if (fos != null) {
+                    fos.close();
+                }
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+    }
+}
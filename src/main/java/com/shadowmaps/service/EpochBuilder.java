@@ -0,0 +1,210 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.BeaconInfo;
+import com.shadowmaps.util.api.protobufs.CellInfo;
+import com.shadowmaps.util.api.protobufs.InertialSeries;
+import com.shadowmaps.util.api.protobufs.LocationEstimate;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.NMEAInfo;
+import com.shadowmaps.util.api.protobufs.SatInfo;
+import com.shadowmaps.util.api.protobufs.SensorInfo;
+import com.shadowmaps.util.api.protobufs.UserInformation;
+import com.shadowmaps.util.api.protobufs.WiFiInfo;
+
+import java.util.Arrays;
+
+/**
+ * Collects the repeated fields of one LocationUpdate epoch.
+ * Each field is held in a buffer that doubles when full and is kept across epochs,
+ * so steady state collection does no array copying. Exact-length arrays are only
+ * created once per epoch, in build().
+ */
+class EpochBuilder {
+    private LocationEstimate[] estimates = new LocationEstimate[4];
+    private int estimateCount = 0;
+
+    private SatInfo[] satInfos = new SatInfo[32];
+    private int satInfoCount = 0;
+
+    private WiFiInfo[] wifiInfos = new WiFiInfo[32];
+    private int wifiInfoCount = 0;
+
+    private CellInfo[] cellInfos = new CellInfo[4];
+    private int cellInfoCount = 0;
+
+    private SensorInfo[] sensorInfos = new SensorInfo[8];
+    private int sensorInfoCount = 0;
+
+    private NMEAInfo[] nmeaInfos = new NMEAInfo[16];
+    private int nmeaInfoCount = 0;
+
+    private int[] wifiIds;
+    private long wifiScanTime = 0;
+    private int wifiScanSeq = 0;
+    private boolean wifiKeyframe = false;
+
+    private long[] cachedArtifactHashes;
+
+    private BeaconInfo[] beacons = new BeaconInfo[16];
+    private int beaconCount = 0;
+
+    private InertialSeries[] inertialSeries = new InertialSeries[2];
+    private int inertialSeriesCount = 0;
+
+    private long satInfoTime = 0;
+
+    public void addEstimate(LocationEstimate estimate) {
+        if (estimateCount == estimates.length) {
+            estimates = Arrays.copyOf(estimates, estimateCount * 2);
+        }
+        estimates[estimateCount++] = estimate;
+    }
+
+    // Each GPS status event describes the full set of visible satellites, so it replaces the last one.
+    public void clearSatInfos() {
+        Arrays.fill(satInfos, 0, satInfoCount, null);
+        satInfoCount = 0;
+    }
+
+    public void addSatInfo(SatInfo sat) {
+        if (satInfoCount == satInfos.length) {
+            satInfos = Arrays.copyOf(satInfos, satInfoCount * 2);
+        }
+        satInfos[satInfoCount++] = sat;
+    }
+
+    public void addWiFiInfos(WiFiInfo[] scan) {
+        for (WiFiInfo ap : scan) {
+            if (ap == null) {
+                continue;
+            }
+            if (wifiInfoCount == wifiInfos.length) {
+                wifiInfos = Arrays.copyOf(wifiInfos, wifiInfoCount * 2);
+            }
+            wifiInfos[wifiInfoCount++] = ap;
+        }
+    }
+
+    /**
+     * @param ids dictionary ids of every access point in the scan, owned by the epoch from now on
+     * @param scanSeq number of the scan in the session
+     * @param keyframe whether the ids were all assigned afresh
+     */
+    public void setWiFiScan(int[] ids, long scanTime, int scanSeq, boolean keyframe) {
+        wifiIds = ids;
+        wifiScanTime = scanTime;
+        wifiScanSeq = scanSeq;
+        wifiKeyframe = keyframe;
+    }
+
+    public void addCellInfo(CellInfo cell) {
+        if (cellInfoCount == cellInfos.length) {
+            cellInfos = Arrays.copyOf(cellInfos, cellInfoCount * 2);
+        }
+        cellInfos[cellInfoCount++] = cell;
+    }
+
+    public void addSensorInfo(SensorInfo info) {
+        if (sensorInfoCount == sensorInfos.length) {
+            sensorInfos = Arrays.copyOf(sensorInfos, sensorInfoCount * 2);
+        }
+        sensorInfos[sensorInfoCount++] = info;
+    }
+
+    public void addNmeaInfo(NMEAInfo nmea) {
+        if (nmeaInfoCount == nmeaInfos.length) {
+            nmeaInfos = Arrays.copyOf(nmeaInfos, nmeaInfoCount * 2);
+        }
+        nmeaInfos[nmeaInfoCount++] = nmea;
+    }
+
+    /**
+     * @param hashes owned by the epoch from now on
+     */
+    public void setCachedArtifactHashes(long[] hashes) {
+        cachedArtifactHashes = hashes;
+    }
+
+    public void addBeacon(BeaconInfo beacon) {
+        if (beaconCount == beacons.length) {
+            beacons = Arrays.copyOf(beacons, beaconCount * 2);
+        }
+        beacons[beaconCount++] = beacon;
+    }
+
+    public void addInertialSeries(InertialSeries series) {
+        if (inertialSeriesCount == inertialSeries.length) {
+            inertialSeries = Arrays.copyOf(inertialSeries, inertialSeriesCount * 2);
+        }
+        inertialSeries[inertialSeriesCount++] = series;
+    }
+
+    public void setSatInfoTime(long satInfoTime) {
+        this.satInfoTime = satInfoTime;
+    }
+
+    public long getSatInfoTime() {
+        return satInfoTime;
+    }
+
+    public int getEstimateCount() {
+        return estimateCount;
+    }
+
+    public LocationEstimate getEstimate(int i) {
+        return estimates[i];
+    }
+
+    /**
+     * Copies the collected fields into a new LocationUpdate and resets the builder for the next epoch.
+     */
+    public LocationUpdate build(UserInformation userInfo) {
+        LocationUpdate lu = new LocationUpdate();
+        lu.userInfo = userInfo;
+        lu.satInfoTime = satInfoTime;
+        lu.estimates = estimateCount == 0 ? LocationEstimate.emptyArray() : Arrays.copyOf(estimates, estimateCount);
+        lu.satelliteInfos = satInfoCount == 0 ? SatInfo.emptyArray() : Arrays.copyOf(satInfos, satInfoCount);
+        lu.wifiNetworks = wifiInfoCount == 0 ? WiFiInfo.emptyArray() : Arrays.copyOf(wifiInfos, wifiInfoCount);
+        lu.cellNetworks = cellInfoCount == 0 ? CellInfo.emptyArray() : Arrays.copyOf(cellInfos, cellInfoCount);
+        lu.sensorInfos = sensorInfoCount == 0 ? SensorInfo.emptyArray() : Arrays.copyOf(sensorInfos, sensorInfoCount);
+        lu.nmeaInfos = nmeaInfoCount == 0 ? NMEAInfo.emptyArray() : Arrays.copyOf(nmeaInfos, nmeaInfoCount);
+        if (wifiIds != null) {
+            lu.wifiIds = wifiIds;
+            lu.wifiScanTime = wifiScanTime;
+            lu.wifiScanSeq = wifiScanSeq;
+            lu.wifiKeyframe = wifiKeyframe;
+        }
+        if (cachedArtifactHashes != null) {
+            lu.cachedArtifactHashes = cachedArtifactHashes;
+        }
+        lu.beacons = beaconCount == 0 ? BeaconInfo.emptyArray() : Arrays.copyOf(beacons, beaconCount);
+        lu.inertialSeries = inertialSeriesCount == 0 ? InertialSeries.emptyArray() : Arrays.copyOf(inertialSeries, inertialSeriesCount);
+        reset();
+        return lu;
+    }
+
+    // Drop references so the previous epoch can be collected, but keep the buffers.
+    public void reset() {
+        Arrays.fill(estimates, 0, estimateCount, null);
+        estimateCount = 0;
+        clearSatInfos();
+        Arrays.fill(wifiInfos, 0, wifiInfoCount, null);
+        wifiInfoCount = 0;
+        wifiIds = null;
+        wifiScanTime = 0;
+        wifiScanSeq = 0;
+        wifiKeyframe = false;
+        Arrays.fill(cellInfos, 0, cellInfoCount, null);
+        cellInfoCount = 0;
+        Arrays.fill(sensorInfos, 0, sensorInfoCount, null);
+        sensorInfoCount = 0;
+        Arrays.fill(nmeaInfos, 0, nmeaInfoCount, null);
+        nmeaInfoCount = 0;
+        cachedArtifactHashes = null;
+        Arrays.fill(beacons, 0, beaconCount, null);
+        beaconCount = 0;
+        Arrays.fill(inertialSeries, 0, inertialSeriesCount, null);
+        inertialSeriesCount = 0;
+        satInfoTime = 0;
+    }
+}
@@ -0,0 +1,99 @@
+package com.shadowmaps.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free multi-producer, single-consumer ring of preallocated IngestEvents.
+ * Each slot carries a sequence number: a producer may write a slot when its sequence equals
+ * the claimed position, and the consumer may read it once the producer has published pos + 1.
+ * When the ring is full claim() returns null and the event is counted as dropped,
+ * so callbacks never block on the ingestion thread.
+ */
+final class EventRing {
+    private final IngestEvent[] events;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    // Only touched by the consumer
+    private long head = 0;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    public EventRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        events = new IngestEvent[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            events[i] = new IngestEvent();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Claims the next free slot for a producer.
+     * @return an event to fill and then publish(), or null if the ring is full
+     */
+    public IngestEvent claim() {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    IngestEvent event = events[index];
+                    event.sequence = pos;
+                    return event;
+                }
+            } else if (diff < 0) {
+                dropped.incrementAndGet();
+                return null;
+            }
+            // Another producer claimed this position first; retry.
+        }
+    }
+
+    /**
+     * A full volatile store rather than lazySet: IngestThread reads its sleeping flag right after,
+     * and only a volatile store and load pair keeps the consumer from both missing the event and
+     * not being woken for it.
+     */
+    public void publish(IngestEvent event) {
+        sequences.set((int) (event.sequence & mask), event.sequence + 1);
+    }
+
+    /**
+     * Consumer only. Returns the next published event without removing it, or null if none is ready.
+     */
+    public IngestEvent peek() {
+        int index = (int) (head & mask);
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        return events[index];
+    }
+
+    /**
+     * Consumer only. Hands the slot returned by peek() back to producers.
+     */
+    public void release(IngestEvent event) {
+        event.clear();
+        sequences.lazySet((int) (head & mask), head + events.length);
+        head++;
+    }
+
+    public boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    public int capacity() {
+        return events.length;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,95 @@
+package com.shadowmaps.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Splits a byte stream into varint length-delimited frames.
+ * Bytes arrive in arbitrary chunks; complete frames are handed to the FrameHandler
+ * and any partial frame is kept until the rest of it arrives.
+ */
+class FrameDecoder {
+
+    public interface FrameHandler {
+        void onFrame(byte[] data, int offset, int length) throws IOException;
+    }
+
+    private final int maxFrameSize;
+    private byte[] buffer = new byte[4096];
+    private int length = 0;
+
+    public FrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public void append(ByteBuffer chunk, FrameHandler handler) throws IOException {
+        int n = chunk.remaining();
+        if (length + n > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + n));
+        }
+        chunk.get(buffer, length, n);
+        length += n;
+
+        int pos = 0;
+        while (pos < length) {
+            // Read the varint length prefix, stopping if it is not complete yet
+            int frameLength = 0;
+            int shift = 0;
+            int p = pos;
+            boolean complete = false;
+            while (p < length && shift < 35) {
+                byte b = buffer[p++];
+                frameLength |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    complete = true;
+                    break;
+                }
+                shift += 7;
+            }
+            if (!complete) {
+                if (shift >= 35) {
+                    throw new IOException("Malformed frame length");
+                }
+                break;
+            }
+            if (frameLength < 0 || frameLength > maxFrameSize) {
+                throw new IOException("Frame of " + frameLength + " bytes exceeds limit");
+            }
+            if (length - p < frameLength) {
+                break;
+            }
+            handler.onFrame(buffer, p, frameLength);
+            pos = p + frameLength;
+        }
+        // Keep the partial frame at the start of the buffer
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, length - pos);
+            length -= pos;
+        }
+    }
+
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * @return the number of bytes needed to prefix a frame of the given length
+     */
+    public static int prefixSize(int frameLength) {
+        int size = 1;
+        while ((frameLength & ~0x7f) != 0) {
+            frameLength >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void writePrefix(ByteBuffer out, int frameLength) {
+        while ((frameLength & ~0x7f) != 0) {
+            out.put((byte) ((frameLength & 0x7f) | 0x80));
+            frameLength >>>= 7;
+        }
+        out.put((byte) frameLength);
+    }
+}
@@ -0,0 +1,108 @@
+package com.shadowmaps.service;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Bundle;
+import android.provider.Settings;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+
+/**
+ * Location fixes from the Google Play services FusedLocationProvider.
+ * When mock locations are allowed, improved locations can be fed back through the provider,
+ * so apps pick them up with almost no new code.
+ */
+class FusedLocationSource extends LocationSource implements GoogleApiClient.ConnectionCallbacks,
+        GoogleApiClient.OnConnectionFailedListener, com.google.android.gms.location.LocationListener {
+    private static final String TAG = "ShadowMaps";
+
+    private final Context context;
+    private final long intervalMs;
+    private GoogleApiClient mGoogleApiClient;
+    private volatile boolean mock = false;
+
+    public FusedLocationSource(Context context, long intervalMs, boolean finalizes) {
+        super(null, "fused", intervalMs, finalizes);
+        this.context = context;
+        this.intervalMs = intervalMs;
+    }
+
+    @Override
+    public synchronized void start(CollectionEngine.EventSink sink) {
+        setSink(sink);
+        Log.i(TAG, "Building GoogleApiClient");
+        mGoogleApiClient = new GoogleApiClient.Builder(context)
+                .addConnectionCallbacks(this)
+                .addOnConnectionFailedListener(this)
+                .addApi(LocationServices.API)
+                .build();
+        mGoogleApiClient.connect();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mGoogleApiClient.isConnected()) {
+            LocationServices.FusedLocationApi.removeLocationUpdates(mGoogleApiClient, this);
+            mGoogleApiClient.disconnect();
+        }
+    }
+
+    protected LocationRequest createLocationRequest(long update_interval) {
+        LocationRequest mLocationRequest = new LocationRequest();
+        mLocationRequest.setInterval(update_interval);
+        mLocationRequest.setFastestInterval(0);
+        mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+        return mLocationRequest;
+    }
+
+    @Override
+    public void onConnected(Bundle connectionHint) {
+        Log.v("ShadowMaps", "Connected");
+        LocationServices.FusedLocationApi.requestLocationUpdates(
+                mGoogleApiClient, createLocationRequest(intervalMs), this);
+        //     java.lang.SecurityException: In order to use mock mode functionality app com.shadowmaps.example must have the ACCESS_MOCK_LOCATION permission and the Settings.Secure.ALLOW_MOCK_LOCATION system setting must be enabled.
+        if (isMockSettingsON(context)) {
+            LocationServices.FusedLocationApi.setMockMode(mGoogleApiClient, true);
+            mock = true;
+        } else {
+            Log.v("ShadowMaps", "Mock Locations Disabled, not setting mock mode");
+            mock = false;
+        }
+    }
+
+    public static boolean isMockSettingsON(Context context) {
+        // returns true if mock location enabled, false if not enabled.
+        return !"0".equals(Settings.Secure.getString(context.getContentResolver(),
+                Settings.Secure.ALLOW_MOCK_LOCATION));
+    }
+
+    @Override
+    public void onConnectionFailed(ConnectionResult result) {
+        // Refer to the javadoc for ConnectionResult to see what error codes might be returned in
+        // onConnectionFailed.
+        Log.i(TAG, "Connection failed: ConnectionResult.getErrorCode() = " + result.getErrorCode());
+    }
+
+    @Override
+    public void onConnectionSuspended(int cause) {
+        // The connection to Google Play services was lost for some reason. We call connect() to
+        // attempt to re-establish the connection.
+        Log.i(TAG, "Connection suspended");
+        mGoogleApiClient.connect();
+    }
+
+    /**
+     * @return false unless mock mode is on and the location was handed to the provider
+     */
+    public boolean setMockLocation(Location location) {
+        if (!mock) {
+            return false;
+        }
+        LocationServices.FusedLocationApi.setMockLocation(mGoogleApiClient, location);
+        return true;
+    }
+}
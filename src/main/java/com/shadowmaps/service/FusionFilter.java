@@ -0,0 +1,309 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+/**
+ * Constant velocity Kalman filter over east and north position and velocity, in meters relative
+ * to an anchor near the device.
+ *
+ * Server improvements are measurement updates. They describe a fix that is already old when the
+ * response arrives, so the position is carried forward to the arrival time, with the server's
+ * own prediction when it sent one and along the reported velocity otherwise. Between responses
+ * the filter predicts; steps with a fresh absolute heading update the velocity, and when there
+ * are neither steps nor a reported speed the velocity is pulled to zero.
+ *
+ * Not thread safe. Times are SystemClock.elapsedRealtime() values.
+ */
+final class FusionFilter {
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    // Spectral density of the acceleration noise, in m^2/s^3
+    static final double MOVING_NOISE = 2.0;
+    static final double STATIONARY_NOISE = 0.05;
+    // Variances in m^2/s^2
+    static final double SPEED_VARIANCE = 0.25;
+    static final double INITIAL_VELOCITY_VARIANCE = 4.0;
+    static final double ZERO_VELOCITY_VARIANCE = 0.01;
+    static final double STEP_VARIANCE = 0.25;
+    static final float STEP_LENGTH = 0.7f;
+    // Steps closer or further apart than this are not walking
+    static final long MIN_STEP_INTERVAL_MS = 200;
+    static final long MAX_STEP_INTERVAL_MS = 2000;
+    // A heading further than this from a step is not used for it
+    static final long MAX_HEADING_AGE_MS = 1000;
+    // Fixes older than this are carried forward no further
+    static final long MAX_LAG_MS = 5000;
+    // Without a measurement for this long the estimate is no longer worth emitting
+    static final long STALE_MS = 30000;
+    // A position this far outside the estimate's uncertainty restarts the filter
+    static final double RESET_SIGMAS = 5;
+    // Past this distance from the anchor the filter is re-anchored, so the projection stays accurate
+    static final double MAX_ANCHOR_DISTANCE = 5000;
+    static final float MIN_ACCURACY = 1;
+
+    private double anchorLat;
+    private double anchorLon;
+    private double metersPerDegreeLon;
+
+    // East, north, east velocity, north velocity and their covariance, row major
+    private final double[] x = new double[4];
+    private final double[] p = new double[16];
+    // Rows of p observed by an update
+    private final double[] observed = new double[8];
+    private final double[] gain = new double[8];
+
+    private boolean initialized = false;
+    private long timeMs;
+    private long lastMeasurementMs;
+    private float reportedSpeed = 0;
+    private long lastStepMs = Long.MIN_VALUE / 2;
+    private long stepIntervalMs = 0;
+    private float azimuth;
+    private long headingMs = Long.MIN_VALUE / 2;
+    private int resets = 0;
+
+    /**
+     * @param lagMs how long ago the improved fix was taken
+     */
+    public void onMeasurement(long nowMs, LocationImprovement r, long lagMs) {
+        if (r.lat == 0 && r.lon == 0) {
+            return;
+        }
+        boolean restart = !initialized || nowMs - lastMeasurementMs > STALE_MS;
+        if (restart) {
+            anchor(r.lat, r.lon);
+        } else {
+            predict(nowMs);
+            if (Math.hypot(x[0], x[1]) > MAX_ANCHOR_DISTANCE) {
+                anchor(getLatitude(), getLongitude());
+                x[0] = 0;
+                x[1] = 0;
+            }
+        }
+        double lag = Math.max(0, Math.min(lagMs, MAX_LAG_MS)) / 1000.0;
+        boolean hasVelocity = r.speed > 0;
+        double ve = 0;
+        double vn = 0;
+        if (hasVelocity) {
+            double bearing = Math.toRadians(r.bearing);
+            ve = r.speed * Math.sin(bearing);
+            vn = r.speed * Math.cos(bearing);
+        }
+
+        double e;
+        double n;
+        double ree;
+        double ren = 0;
+        double rnn;
+        if (r.predLat != 0 && r.predLon != 0 && r.predAcc > 0) {
+            e = east(r.predLon);
+            n = north(r.predLat);
+            ree = rnn = r.predAcc * r.predAcc;
+        } else {
+            e = east(r.lon) + ve * lag;
+            n = north(r.lat) + vn * lag;
+            if (r.covHoriz.length == 3 || r.covHoriz.length == 4) {
+                // East and north variances and their covariance, as [ee, en, nn] or [ee, en, ne, nn]
+                ree = r.covHoriz[0];
+                ren = r.covHoriz[1];
+                rnn = r.covHoriz[r.covHoriz.length - 1];
+            } else {
+                float acc = Math.max(r.acc, MIN_ACCURACY);
+                ree = rnn = acc * acc;
+            }
+            double drift = lag * lag * (hasVelocity ? SPEED_VARIANCE : INITIAL_VELOCITY_VARIANCE);
+            ree += drift;
+            rnn += drift;
+        }
+
+        if (restart || !update(0, e, n, ree, ren, rnn, RESET_SIGMAS * RESET_SIGMAS)) {
+            if (!restart) {
+                resets++;
+            }
+            reset(e, n, ree, ren, rnn);
+            x[2] = ve;
+            x[3] = vn;
+            p[10] = p[15] = hasVelocity ? SPEED_VARIANCE : INITIAL_VELOCITY_VARIANCE;
+        } else if (hasVelocity) {
+            update(2, ve, vn, SPEED_VARIANCE, 0, SPEED_VARIANCE, Double.POSITIVE_INFINITY);
+        }
+        timeMs = nowMs;
+        lastMeasurementMs = nowMs;
+        reportedSpeed = r.speed;
+        initialized = true;
+    }
+
+    public void onStep(long nowMs) {
+        long interval = nowMs - lastStepMs;
+        lastStepMs = nowMs;
+        if (interval < MIN_STEP_INTERVAL_MS || interval > MAX_STEP_INTERVAL_MS) {
+            return;
+        }
+        stepIntervalMs = stepIntervalMs == 0 ? interval : (3 * stepIntervalMs + interval) / 4;
+        if (!initialized || Math.abs(nowMs - headingMs) > MAX_HEADING_AGE_MS) {
+            return;
+        }
+        predict(nowMs);
+        double speed = STEP_LENGTH * 1000.0 / stepIntervalMs;
+        // The device need not point where its carrier walks
+        double variance = STEP_VARIANCE + 0.25 * speed * speed;
+        update(2, speed * Math.sin(azimuth), speed * Math.cos(azimuth), variance, 0, variance,
+                Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param azimuth radians clockwise from north, from an absolute orientation
+     */
+    public void onHeading(long nowMs, float azimuth) {
+        this.azimuth = azimuth;
+        this.headingMs = nowMs;
+    }
+
+    /**
+     * Moves the estimate forward to nowMs.
+     */
+    public void predict(long nowMs) {
+        if (!initialized || nowMs <= timeMs) {
+            return;
+        }
+        double dt = (nowMs - timeMs) / 1000.0;
+        timeMs = nowMs;
+        boolean moving = isMoving(nowMs);
+        double q = moving ? MOVING_NOISE : STATIONARY_NOISE;
+        x[0] += dt * x[2];
+        x[1] += dt * x[3];
+        // P = F P F' + Q
+        for (int i = 0; i < 4; i++) {
+            p[i] += dt * p[8 + i];
+            p[4 + i] += dt * p[12 + i];
+        }
+        for (int i = 0; i < 4; i++) {
+            p[4 * i] += dt * p[4 * i + 2];
+            p[4 * i + 1] += dt * p[4 * i + 3];
+        }
+        double pp = q * dt * dt * dt / 3;
+        double pv = q * dt * dt / 2;
+        double vv = q * dt;
+        p[0] += pp;
+        p[5] += pp;
+        p[2] += pv;
+        p[8] += pv;
+        p[7] += pv;
+        p[13] += pv;
+        p[10] += vv;
+        p[15] += vv;
+        if (!moving) {
+            update(2, 0, 0, ZERO_VELOCITY_VARIANCE, 0, ZERO_VELOCITY_VARIANCE, Double.POSITIVE_INFINITY);
+        }
+    }
+
+    public boolean isValid(long nowMs) {
+        return initialized && nowMs - lastMeasurementMs <= STALE_MS;
+    }
+
+    public double getLatitude() {
+        return anchorLat + x[1] / METERS_PER_DEGREE;
+    }
+
+    public double getLongitude() {
+        return anchorLon + x[0] / metersPerDegreeLon;
+    }
+
+    // Meters, one standard deviation along the least certain axis
+    public float getAccuracy() {
+        double a = (p[0] + p[5]) / 2;
+        double b = Math.sqrt((p[0] - p[5]) * (p[0] - p[5]) / 4 + p[1] * p[1]);
+        return (float) Math.sqrt(a + b);
+    }
+
+    public float getSpeed() {
+        return (float) Math.hypot(x[2], x[3]);
+    }
+
+    // Degrees clockwise from north
+    public float getBearing() {
+        double bearing = Math.toDegrees(Math.atan2(x[2], x[3]));
+        return (float) (bearing < 0 ? bearing + 360 : bearing);
+    }
+
+    /**
+     * @return measurements so far from the estimate that the filter started over
+     */
+    public int getResetCount() {
+        return resets;
+    }
+
+    private boolean isMoving(long nowMs) {
+        return nowMs - lastStepMs < MAX_STEP_INTERVAL_MS || reportedSpeed >= MotionState.MOVING_SPEED;
+    }
+
+    private void anchor(double lat, double lon) {
+        anchorLat = lat;
+        anchorLon = lon;
+        metersPerDegreeLon = METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(lat)), 1e-6);
+    }
+
+    private double east(double lon) {
+        return (lon - anchorLon) * metersPerDegreeLon;
+    }
+
+    private double north(double lat) {
+        return (lat - anchorLat) * METERS_PER_DEGREE;
+    }
+
+    private void reset(double e, double n, double ree, double ren, double rnn) {
+        x[0] = e;
+        x[1] = n;
+        x[2] = 0;
+        x[3] = 0;
+        for (int i = 0; i < 16; i++) {
+            p[i] = 0;
+        }
+        p[0] = ree;
+        p[1] = p[4] = ren;
+        p[5] = rnn;
+    }
+
+    /**
+     * Kalman update with a 2D measurement of the states at offset and offset + 1.
+     * @param gate largest squared Mahalanobis distance to accept
+     * @return false if the measurement was rejected by the gate
+     */
+    private boolean update(int offset, double z0, double z1, double r00, double r01, double r11, double gate) {
+        double s00 = p[5 * offset] + r00;
+        double s01 = p[5 * offset + 1] + r01;
+        double s11 = p[5 * offset + 5] + r11;
+        double det = s00 * s11 - s01 * s01;
+        if (det <= 0) {
+            return false;
+        }
+        double i00 = s11 / det;
+        double i01 = -s01 / det;
+        double i11 = s00 / det;
+        double y0 = z0 - x[offset];
+        double y1 = z1 - x[offset + 1];
+        if (y0 * (i00 * y0 + i01 * y1) + y1 * (i01 * y0 + i11 * y1) > gate) {
+            return false;
+        }
+        System.arraycopy(p, 4 * offset, observed, 0, 8);
+        for (int i = 0; i < 4; i++) {
+            // Column offset and offset + 1 of p equal the observed rows, p being symmetric
+            double c0 = observed[i];
+            double c1 = observed[4 + i];
+            gain[2 * i] = c0 * i00 + c1 * i01;
+            gain[2 * i + 1] = c0 * i01 + c1 * i11;
+            x[i] += gain[2 * i] * y0 + gain[2 * i + 1] * y1;
+        }
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                p[4 * i + j] -= gain[2 * i] * observed[j] + gain[2 * i + 1] * observed[4 + j];
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            for (int j = i + 1; j < 4; j++) {
+                double mean = (p[4 * i + j] + p[4 * j + i]) / 2;
+                p[4 * i + j] = p[4 * j + i] = mean;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,103 @@
+package com.shadowmaps.service;
+
+import android.location.GpsSatellite;
+import android.location.GpsStatus;
+import android.location.LocationManager;
+import android.util.Log;
+
+import com.shadowmaps.util.api.protobufs.SatInfo;
+
+/**
+ * Satellite PRNs, signal to noise ratios and azimuth/elevation from the GPS status listener.
+ * Status is only reported while some location source keeps the GPS engine running.
+ */
+class GnssStatusSource implements CollectionEngine.Source, GpsStatus.Listener {
+    private final LocationManager locMgr;
+    private CollectionEngine.EventSink sink;
+
+    public GnssStatusSource(LocationManager locMgr) {
+        this.locMgr = locMgr;
+    }
+
+    @Override
+    public void start(CollectionEngine.EventSink sink) {
+        this.sink = sink;
+        locMgr.addGpsStatusListener(this);
+    }
+
+    @Override
+    public void stop() {
+        locMgr.removeGpsStatusListener(this);
+    }
+
+    @Override
+    public void onGpsStatusChanged(int event) {
+        if (event == GpsStatus.GPS_EVENT_SATELLITE_STATUS) {
+            Log.v("SATS", "GPS Satellite info at " + System.currentTimeMillis());
+            try {
+                GpsStatus status = locMgr.getGpsStatus(null);
+                publishSatellites(status, System.currentTimeMillis());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Copy the satellite snapshot into the event record, the GpsStatus is reused by the framework.
+    private void publishSatellites(GpsStatus status, long time) {
+        IngestEvent e = sink.claim();
+        if (e == null) {
+            return;
+        }
+        e.type = IngestEvent.SATELLITES;
+        e.time = time;
+        e.ensureSatelliteCapacity();
+        int count = 0;
+        for (GpsSatellite satellite : status.getSatellites()) {
+            if (count == IngestEvent.MAX_SATELLITES) {
+                break;
+            }
+            e.prns[count] = satellite.getPrn();
+            e.snrs[count] = satellite.getSnr();
+            e.elevations[count] = satellite.getElevation();
+            e.azimuths[count] = satellite.getAzimuth();
+            byte flags = 0;
+            if (satellite.hasEphemeris()) {
+                flags |= IngestEvent.SAT_EPHEMERIS;
+            }
+            if (satellite.hasAlmanac()) {
+                flags |= IngestEvent.SAT_ALMANAC;
+            }
+            if (satellite.usedInFix()) {
+                flags |= IngestEvent.SAT_USED;
+            }
+            e.flags[count] = flags;
+            count++;
+        }
+        e.satCount = count;
+        sink.publish(e);
+    }
+
+    @Override
+    public boolean onEvent(IngestEvent status, EpochBuilder epoch) {
+        epoch.setSatInfoTime(status.time);
+        // The latest status replaces any satellites seen earlier in this epoch
+        epoch.clearSatInfos();
+        for (int i = 0; i < status.satCount; i++) {
+            SatInfo newSat = new SatInfo();
+            newSat.prn = status.prns[i];
+            newSat.snr = status.snrs[i];
+            newSat.elevation = status.elevations[i];
+            newSat.azimuth = status.azimuths[i];
+            newSat.ephemeris = (status.flags[i] & IngestEvent.SAT_EPHEMERIS) != 0;
+            newSat.almanac = (status.flags[i] & IngestEvent.SAT_ALMANAC) != 0;
+            newSat.used = (status.flags[i] & IngestEvent.SAT_USED) != 0;
+            epoch.addSatInfo(newSat);
+        }
+        return false;
+    }
+
+    @Override
+    public void onEpochEnd(EpochBuilder epoch) {
+    }
+}
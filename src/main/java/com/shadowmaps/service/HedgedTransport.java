@@ -0,0 +1,330 @@
+package com.shadowmaps.service;
+
+import android.util.Log;
+
+import com.shadowmaps.data.TelemetrySnapshot;
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sends each epoch on whichever of two paths has been faster on the current network, and if no
+ * answer has come after that path's hedge percentile, sends it again on the other one. The first
+ * response wins and the other request is cancelled. If the first path fails outright, the other
+ * one is tried at once.
+ *
+ * Without hedging an update is sent on one path only, even if it fails there: a request that
+ * failed may still have reached the server, so sending it again could deliver it twice.
+ *
+ * Round trips are kept per network (Wi-Fi, or each cellular carrier) in a LatencyHistogram per
+ * path. A path is only compared once it has MIN_SAMPLES there; until then the network type's
+ * usual winner goes first. Only the winning request's round trip is known, so every
+ * EXPLORE_INTERVAL sends on a network start on the other path to keep its histogram current.
+ */
+class HedgedTransport implements RealtimeUploader.Transport {
+
+    /**
+     * One way of sending an update, e.g. OkHttp over TCP or Cronet over QUIC.
+     */
+    public interface Path {
+        /**
+         * Starts sending update without blocking. Unless the returned Call is cancelled,
+         * exactly one of callback's onResponse and onFailure follows.
+         */
+        Call start(byte[] update, Callback callback);
+    }
+
+    public interface Call {
+        void cancel();
+    }
+
+    public interface Callback {
+        void onFirstByte();
+
+        /**
+         * @param improvement the improvement, or null if the server did not return one
+         */
+        void onResponse(LocationImprovement improvement);
+
+        void onFailure(IOException e);
+    }
+
+    public interface Networks {
+        /**
+         * @return the network requests go out on, e.g. "wifi" or "cell:310260"
+         */
+        String current();
+
+        boolean isCellular();
+    }
+
+    public static final int PATH_TCP = 0;
+    public static final int PATH_QUIC = 1;
+    private static final String[] PATH_NAMES = {"tcp", "quic"};
+
+    private static final String TAG = "ShadowMapsHedge";
+    static final int MIN_SAMPLES = 8;
+    static final int EXPLORE_INTERVAL = 16;
+    static final long DEFAULT_HEDGE_DELAY_MS = 500;
+    static final long MIN_HEDGE_DELAY_MS = 20;
+    static final long MAX_HEDGE_DELAY_MS = 5000;
+    // Give up on both paths after this long
+    static final long TIMEOUT_MS = 30000;
+    // Networks whose histograms are kept, least recently used dropped first
+    static final int MAX_NETWORKS = 8;
+
+    private final Path[] paths;
+    private final Networks networks;
+    private final Telemetry telemetry;
+    private final boolean hedge;
+    private final double hedgePercentile;
+
+    // Guarded by this
+    private final LinkedHashMap<String, NetworkStats> stats = new LinkedHashMap<>(MAX_NETWORKS, 0.75f, true);
+    private final long[] wins = new long[2];
+    private long hedges = 0;
+    private long hedgeWins = 0;
+    private long failovers = 0;
+
+    /**
+     * @param hedge false to only pick the faster path and never send again on the other, for updates
+     *              that must not be sent twice
+     * @param hedgePercentile percentile of the first path's round trips after which the other is tried
+     */
+    public HedgedTransport(Path tcp, Path quic, Networks networks, Telemetry telemetry, boolean hedge,
+                           double hedgePercentile) {
+        this.paths = new Path[]{tcp, quic};
+        this.networks = networks;
+        this.telemetry = telemetry;
+        this.hedge = hedge;
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    @Override
+    public LocationImprovement send(byte[] update, long trace) throws IOException {
+        NetworkStats network;
+        int first;
+        long hedgeDelayMs;
+        synchronized (this) {
+            network = statsFor(networks.current(), networks.isCellular());
+            first = network.choose();
+            hedgeDelayMs = network.hedgeDelayMs(first, hedgePercentile);
+        }
+        Race race = new Race(trace);
+        race.start(first, update);
+        long hedgeAt = race.started[first] + hedgeDelayMs;
+        long deadline = race.started[first] + TIMEOUT_MS;
+        boolean hedged = false;
+        boolean failover = false;
+        try {
+            while (true) {
+                boolean startOther = false;
+                synchronized (race) {
+                    long now = now();
+                    if (race.done || (race.failed[0] && race.failed[1]) || (!hedge && race.failed[first])
+                            || now >= deadline) {
+                        break;
+                    }
+                    if (hedge && !hedged && (race.failed[first] || now >= hedgeAt)) {
+                        startOther = true;
+                        failover = race.failed[first];
+                    } else {
+                        waitFor(race, (hedged || !hedge ? deadline : hedgeAt) - now);
+                    }
+                }
+                if (startOther) {
+                    // Started outside the lock, since a path may call back on this thread
+                    hedged = true;
+                    race.start(1 - first, update);
+                }
+            }
+        } finally {
+            race.cancelLosers();
+        }
+        if (!race.done) {
+            throw race.error != null ? race.error : new IOException("No response in " + TIMEOUT_MS + " ms");
+        }
+        synchronized (this) {
+            network.record(race.winner, race.finished - race.started[race.winner]);
+            wins[race.winner]++;
+            if (hedged) {
+                if (failover) {
+                    failovers++;
+                } else {
+                    hedges++;
+                    if (race.winner != first) {
+                        hedgeWins++;
+                    }
+                }
+            }
+        }
+        return race.improvement;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder(TAG).append(": ").append(wins[PATH_TCP]).append(" tcp wins, ")
+                .append(wins[PATH_QUIC]).append(" quic wins, ").append(hedges).append(" hedges (")
+                .append(hedgeWins).append(" won), ").append(failovers).append(" failovers");
+        for (Map.Entry<String, NetworkStats> entry : stats.entrySet()) {
+            sb.append("; ").append(entry.getKey()).append(' ').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    // Holds the lock
+    private NetworkStats statsFor(String key, boolean cellular) {
+        NetworkStats network = stats.get(key);
+        if (network == null) {
+            // TCP tends to win on Wi-Fi and QUIC on lossy cellular links
+            network = new NetworkStats(cellular ? PATH_QUIC : PATH_TCP);
+            stats.put(key, network);
+            Iterator<String> eldest = stats.keySet().iterator();
+            while (stats.size() > MAX_NETWORKS) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return network;
+    }
+
+    private static void waitFor(Object lock, long ms) throws InterruptedIOException {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            lock.wait(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+        }
+    }
+
+    // Monotonic
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static final class NetworkStats {
+        final LatencyHistogram[] roundTrips = {new LatencyHistogram(), new LatencyHistogram()};
+        final int preferred;
+        long sends = 0;
+
+        NetworkStats(int preferred) {
+            this.preferred = preferred;
+        }
+
+        int choose() {
+            sends++;
+            int best = preferred;
+            if (roundTrips[0].getCount() >= MIN_SAMPLES && roundTrips[1].getCount() >= MIN_SAMPLES) {
+                best = roundTrips[0].percentile(0.5) <= roundTrips[1].percentile(0.5) ? 0 : 1;
+            }
+            return sends % EXPLORE_INTERVAL == 0 ? 1 - best : best;
+        }
+
+        long hedgeDelayMs(int path, double percentile) {
+            if (roundTrips[path].getCount() < MIN_SAMPLES) {
+                return DEFAULT_HEDGE_DELAY_MS;
+            }
+            long ms = roundTrips[path].percentile(percentile / 100) / 1000;
+            return Math.max(MIN_HEDGE_DELAY_MS, Math.min(ms, MAX_HEDGE_DELAY_MS));
+        }
+
+        void record(int path, long ms) {
+            roundTrips[path].record(ms * 1000);
+        }
+
+        @Override
+        public String toString() {
+            return PATH_NAMES[0] + " p50=" + roundTrips[0].percentile(0.5) / 1000 + "ms n=" + roundTrips[0].getCount()
+                    + ", " + PATH_NAMES[1] + " p50=" + roundTrips[1].percentile(0.5) / 1000 + "ms n="
+                    + roundTrips[1].getCount();
+        }
+    }
+
+    // One update sent on up to both paths. Guarded by itself.
+    private final class Race {
+        final long trace;
+        final Call[] calls = new Call[2];
+        final long[] started = new long[2];
+        final boolean[] failed = new boolean[2];
+        boolean done = false;
+        boolean firstByte = false;
+        int winner = -1;
+        long finished;
+        LocationImprovement improvement;
+        IOException error;
+
+        Race(long trace) {
+            this.trace = trace;
+        }
+
+        void start(final int path, byte[] update) {
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                started[path] = now();
+            }
+            Call call = paths[path].start(update, new Callback() {
+                @Override
+                public void onFirstByte() {
+                    synchronized (Race.this) {
+                        if (firstByte) {
+                            return;
+                        }
+                        firstByte = true;
+                    }
+                    telemetry.mark(trace, TelemetrySnapshot.STAGE_FIRST_BYTE);
+                }
+
+                @Override
+                public void onResponse(LocationImprovement response) {
+                    synchronized (Race.this) {
+                        if (done) {
+                            return;
+                        }
+                        done = true;
+                        winner = path;
+                        finished = now();
+                        improvement = response;
+                        Race.this.notifyAll();
+                    }
+                }
+
+                @Override
+                public void onFailure(IOException e) {
+                    synchronized (Race.this) {
+                        if (done) {
+                            // Most likely cancelled as the loser
+                            return;
+                        }
+                        Log.v(TAG, PATH_NAMES[path] + " failed: " + e.getMessage());
+                        failed[path] = true;
+                        error = e;
+                        Race.this.notifyAll();
+                    }
+                }
+            });
+            synchronized (this) {
+                calls[path] = call;
+                if (done && winner != path) {
+                    call.cancel();
+                }
+            }
+        }
+
+        synchronized void cancelLosers() {
+            for (int i = 0; i < 2; i++) {
+                if (calls[i] != null && i != winner && !failed[i]) {
+                    calls[i].cancel();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.shadowmaps.service;
+
+import android.util.Log;
+
+import com.shadowmaps.data.ImprovedLocation;
+import com.shadowmaps.listener.ImprovedLocationListener;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * In-process registry of improved location listeners, each with its own executor.
+ * dispatch() hands the same immutable ImprovedLocation to every listener. A listener has at most
+ * one delivery queued on its executor; locations that arrive meanwhile replace the queued one,
+ * so a slow listener skips stale locations instead of building a backlog.
+ */
+class ImprovementDispatcher {
+    private static final String TAG = "ShadowMaps";
+
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<>();
+    private final AtomicLong conflated = new AtomicLong();
+
+    public void add(ImprovedLocationListener listener, Executor executor) {
+        add(listener, listener, executor);
+    }
+
+    /**
+     * @param key what remove() is called with, e.g. the listener that delegate adapts
+     */
+    public void add(Object key, ImprovedLocationListener delegate, Executor executor) {
+        remove(key);
+        registrations.add(new Registration(key, delegate, executor));
+    }
+
+    public boolean remove(Object key) {
+        for (Registration registration : registrations) {
+            if (registration.key == key) {
+                registration.removed = true;
+                return registrations.remove(registration);
+            }
+        }
+        return false;
+    }
+
+    public boolean hasListeners() {
+        return !registrations.isEmpty();
+    }
+
+    public void dispatch(ImprovedLocation location) {
+        for (Registration registration : registrations) {
+            registration.offer(location);
+        }
+    }
+
+    /**
+     * @return locations replaced before a slow listener got to them
+     */
+    public long getConflatedCount() {
+        return conflated.get();
+    }
+
+    private final class Registration implements Runnable {
+        final Object key;
+        final ImprovedLocationListener listener;
+        final Executor executor;
+        final AtomicReference<ImprovedLocation> pending = new AtomicReference<>();
+        volatile boolean removed = false;
+
+        Registration(Object key, ImprovedLocationListener listener, Executor executor) {
+            this.key = key;
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void offer(ImprovedLocation location) {
+            if (pending.getAndSet(location) != null) {
+                // A delivery is already queued and will pick up this location instead
+                conflated.incrementAndGet();
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                pending.set(null);
+                Log.v(TAG, "Listener executor rejected an improved location");
+            }
+        }
+
+        @Override
+        public void run() {
+            ImprovedLocation location = pending.getAndSet(null);
+            if (location == null || removed) {
+                return;
+            }
+            try {
+                listener.onImprovedLocation(location);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
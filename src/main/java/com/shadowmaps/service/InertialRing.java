@@ -0,0 +1,69 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.InertialSeries;
+
+/**
+ * Fixed-capacity ring of three-axis samples, stored interleaved as x0, y0, z0, x1, ...
+ * Once full, the oldest samples are overwritten, so memory stays bounded however long an epoch lasts.
+ * drain() turns the samples into one packed InertialSeries and empties the ring.
+ */
+class InertialRing {
+    private final int sensorType;
+    private final float[] xyz;
+    private final long[] times;
+    private int head = 0;
+    private int count = 0;
+    private long overwritten = 0;
+
+    public InertialRing(int sensorType, int capacity) {
+        this.sensorType = sensorType;
+        xyz = new float[capacity * 3];
+        times = new long[capacity];
+    }
+
+    public void add(long time, float x, float y, float z) {
+        int i = (head + count) % times.length;
+        if (count == times.length) {
+            head = (head + 1) % times.length;
+            overwritten++;
+        } else {
+            count++;
+        }
+        times[i] = time;
+        xyz[3 * i] = x;
+        xyz[3 * i + 1] = y;
+        xyz[3 * i + 2] = z;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public long getOverwrittenCount() {
+        return overwritten;
+    }
+
+    /**
+     * @return the samples as one series, or null if there are none
+     */
+    public InertialSeries drain() {
+        if (count == 0) {
+            return null;
+        }
+        InertialSeries series = new InertialSeries();
+        series.sensorType = sensorType;
+        series.baseTimestamp = times[head];
+        if (count > 1) {
+            long last = times[(head + count - 1) % times.length];
+            // Sensor timestamps are in nanoseconds; the mean spacing is enough to place samples
+            series.samplePeriodUs = (int) ((last - times[head]) / (count - 1) / 1000);
+        }
+        series.xyz = new float[count * 3];
+        int first = Math.min(count, times.length - head);
+        System.arraycopy(xyz, 3 * head, series.xyz, 0, 3 * first);
+        System.arraycopy(xyz, 0, series.xyz, 3 * first, 3 * (count - first));
+        head = 0;
+        count = 0;
+        return series;
+    }
+}
@@ -0,0 +1,101 @@
+package com.shadowmaps.service;
+
+/**
+ * A preallocated, reusable record for one callback event.
+ * Producers fill a record claimed from the EventRing and publish it;
+ * only the ingestion thread reads it. Records are recycled, so nothing here
+ * may be retained after the handler returns.
+ */
+final class IngestEvent {
+    public static final int LOCATION = 1;
+    public static final int SATELLITES = 2;
+    public static final int NMEA = 3;
+    public static final int SENSOR = 4;
+    public static final int WIFI_SCAN = 5;
+    public static final int CELL_LOCATION = 6;
+    public static final int SIGNAL_STRENGTH = 7;
+    public static final int CELL_INFO = 8;
+    public static final int BEACON = 9;
+
+    // Satellite flags packed into flags[]
+    public static final byte SAT_EPHEMERIS = 1;
+    public static final byte SAT_ALMANAC = 2;
+    public static final byte SAT_USED = 4;
+
+    public static final int MAX_SATELLITES = 64;
+    public static final int MAX_VALUES = 6;
+    // Legacy advertising and scan response data, 31 bytes each
+    public static final int MAX_RECORD_BYTES = 62;
+
+    // Ring slot sequence, owned by EventRing
+    long sequence;
+
+    // Index of the publishing source, set by CollectionEngine
+    public int source;
+    // System.nanoTime() at publish, set by CollectionEngine
+    public long publishedNanos;
+    public int type;
+    // Wall clock or sensor timestamp, depending on type
+    public long time;
+    // Sensor: SystemClock.elapsedRealtimeNanos() when the sample was delivered
+    public long deliveredNanos;
+    // Location: lat, lon
+    public double lat;
+    public double lon;
+    // Location: alt, acc, speed, bearing
+    public float alt;
+    public float acc;
+    public float speed;
+    public float bearing;
+    // Sensor: sensor type; Cell: cid or rssi; Beacon: rssi
+    public int arg0;
+    // Cell: lac
+    public int arg1;
+    // Beacon: 48-bit device address
+    public long address;
+    // Location provider or NMEA sentence
+    public String text;
+
+    // Sensor values; Cell location: radio type
+    public final float[] values = new float[MAX_VALUES];
+    public int valueCount;
+
+    // Satellite snapshot, allocated the first time this slot carries one
+    public int satCount;
+    public int[] prns;
+    public float[] snrs;
+    public float[] azimuths;
+    public float[] elevations;
+    public byte[] flags;
+
+    // Beacon: raw scan record, allocated the first time this slot carries one
+    public byte[] record;
+    public int recordLength;
+
+    void ensureSatelliteCapacity() {
+        if (prns == null) {
+            prns = new int[MAX_SATELLITES];
+            snrs = new float[MAX_SATELLITES];
+            azimuths = new float[MAX_SATELLITES];
+            elevations = new float[MAX_SATELLITES];
+            flags = new byte[MAX_SATELLITES];
+        }
+    }
+
+    void ensureRecordCapacity() {
+        if (record == null) {
+            record = new byte[MAX_RECORD_BYTES];
+        }
+    }
+
+    void clear() {
+        type = 0;
+        text = null;
+        valueCount = 0;
+        satCount = 0;
+        arg0 = 0;
+        arg1 = 0;
+        address = 0;
+        recordLength = 0;
+    }
+}
@@ -0,0 +1,98 @@
+package com.shadowmaps.service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The single thread that owns epoch state.
+ * Sensor, GNSS, Wi-Fi and cell callbacks claim a record from the EventRing, fill it and publish it;
+ * this thread drains the ring and hands each record to the Handler in publication order.
+ */
+final class IngestThread extends Thread {
+
+    public interface Handler {
+        void onEvent(IngestEvent event);
+    }
+
+    private final EventRing ring;
+    private final Handler handler;
+    private final AtomicBoolean sleeping = new AtomicBoolean(false);
+    private volatile boolean running = true;
+
+    // Throughput counters, written by this thread only
+    private volatile long processed = 0;
+    private volatile long wakeups = 0;
+    private volatile int maxBacklog = 0;
+
+    public IngestThread(int capacity, Handler handler) {
+        super("ShadowMapsIngest");
+        this.ring = new EventRing(capacity);
+        this.handler = handler;
+        setDaemon(true);
+    }
+
+    /**
+     * @return a record to fill, or null if the ring is full and the event should be skipped
+     */
+    public IngestEvent claim() {
+        return ring.claim();
+    }
+
+    public void publish(IngestEvent event) {
+        ring.publish(event);
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    public void quit() {
+        running = false;
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            int drained = 0;
+            IngestEvent event;
+            while ((event = ring.peek()) != null) {
+                try {
+                    handler.onEvent(event);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                ring.release(event);
+                drained++;
+            }
+            if (drained > 0) {
+                processed += drained;
+                if (drained > maxBacklog) {
+                    maxBacklog = drained;
+                }
+            }
+            sleeping.set(true);
+            // Re-check after announcing we sleep, so a publish in between is not missed
+            if (ring.isEmpty() && running) {
+                LockSupport.park(this);
+                wakeups++;
+            }
+            sleeping.set(false);
+        }
+    }
+
+    public long getProcessedCount() {
+        return processed;
+    }
+
+    public long getDroppedCount() {
+        return ring.getDroppedCount();
+    }
+
+    public long getWakeupCount() {
+        return wakeups;
+    }
+
+    public int getMaxBacklog() {
+        return maxBacklog;
+    }
+}
@@ -0,0 +1,81 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.data.TelemetrySnapshot;
+
+/**
+ * Fixed-memory log-linear histogram of durations in microseconds.
+ *
+ * Each power of two is split into SUB_BUCKETS linear buckets, so a recorded value is known to
+ * within 1 / SUB_BUCKETS of itself whatever its magnitude, from 1 us up to MAX_VALUE_US.
+ * Larger values count in the last bucket. Not thread safe.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // About 9.5 hours
+    static final long MAX_VALUE_US = (1L << 35) - 1;
+    private static final int BUCKETS = index(MAX_VALUE_US) + 1;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    public void record(long us) {
+        if (us < 0) {
+            us = 0;
+        }
+        counts[index(Math.min(us, MAX_VALUE_US))]++;
+        count++;
+        sum += us;
+        min = Math.min(min, us);
+        max = Math.max(max, us);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the value below which fraction of the recorded values fall, to bucket precision
+     */
+    public long percentile(double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long mid = (lowerBound(i) + lowerBound(i + 1) - 1) / 2;
+                return Math.max(min, Math.min(max, mid));
+            }
+        }
+        return max;
+    }
+
+    public TelemetrySnapshot.Latency snapshot() {
+        return new TelemetrySnapshot.Latency(count, count == 0 ? 0 : min, count == 0 ? 0 : sum / count, max,
+                percentile(0.5), percentile(0.9), percentile(0.99));
+    }
+
+    static int index(long us) {
+        if (us < SUB_BUCKETS) {
+            return (int) us;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(us);
+        int group = magnitude - SUB_BITS + 1;
+        int sub = (int) (us >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return group * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int group = index / SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (group - 1);
+    }
+}
@@ -0,0 +1,113 @@
+package com.shadowmaps.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.shadowmaps.data.ImprovedLocation;
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Emits smoothed positions at a fixed rate between server improvements, so listeners see the
+ * position move every frame instead of jumping once per round trip.
+ *
+ * Server improvements arrive on network threads and steps and headings on the ingest thread;
+ * all of them go to one FusionFilter under this object's lock. Each tick predicts the filter to
+ * the current time and dispatches the estimate, unless nobody listens or the last improvement
+ * is too old.
+ */
+class LocationFusion {
+    private static final String TAG = "ShadowMapsFusion";
+
+    private final ImprovementDispatcher output;
+    private final long periodMs;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, TAG);
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Guarded by this
+    private final FusionFilter filter = new FusionFilter();
+    // Carries what the filter does not estimate into the fused locations
+    private LocationImprovement last;
+    private long lastSkyviewKey;
+    private long emitted = 0;
+
+    public LocationFusion(ImprovementDispatcher output, int rateHz) {
+        this.output = output;
+        this.periodMs = Math.max(1, 1000 / rateHz);
+    }
+
+    public void start() {
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        Log.v(TAG, toString());
+    }
+
+    public synchronized void onImprovement(LocationImprovement improvement, long skyviewKey) {
+        long lagMs = improvement.utc > 0 ? System.currentTimeMillis() - improvement.utc : 0;
+        filter.onMeasurement(SystemClock.elapsedRealtime(), improvement, lagMs);
+        last = improvement;
+        lastSkyviewKey = skyviewKey;
+    }
+
+    // Times are when the sample was taken, in elapsedRealtime like the ticks
+    public synchronized void onStep(long timeMs) {
+        filter.onStep(timeMs);
+    }
+
+    public synchronized void onHeading(long timeMs, float azimuth) {
+        filter.onHeading(timeMs, azimuth);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return TAG + ": " + emitted + " fused locations every " + periodMs + " ms, "
+                + filter.getResetCount() + " filter resets";
+    }
+
+    private void tick() {
+        if (!output.hasListeners()) {
+            return;
+        }
+        LocationImprovement fused = new LocationImprovement();
+        long skyviewKey;
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            if (!filter.isValid(now)) {
+                return;
+            }
+            filter.predict(now);
+            fused.lat = filter.getLatitude();
+            fused.lon = filter.getLongitude();
+            fused.acc = filter.getAccuracy();
+            fused.speed = filter.getSpeed();
+            fused.bearing = filter.getBearing();
+            fused.utc = System.currentTimeMillis();
+            fused.alt = last.alt;
+            fused.probIndoors = last.probIndoors;
+            fused.geocoded = last.geocoded;
+            fused.skyview = last.skyview;
+            fused.skyviewHash = last.skyviewHash;
+            skyviewKey = lastSkyviewKey;
+            emitted++;
+        }
+        output.dispatch(new ImprovedLocation(fused, skyviewKey));
+    }
+}
@@ -0,0 +1,107 @@
+package com.shadowmaps.service;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.shadowmaps.util.api.protobufs.LocationEstimate;
+
+/**
+ * Location fixes from one LocationManager provider, e.g. GPS or passive.
+ * A finalizing source closes the epoch with each fix that is newer than the satellite status.
+ */
+class LocationSource implements CollectionEngine.Source, LocationListener {
+    private static final String TAG = "ShadowMaps";
+
+    private final LocationManager locMgr;
+    private final String provider;
+    private final long intervalMs;
+    private final boolean finalizes;
+    private CollectionEngine.EventSink sink;
+
+    /**
+     * @param finalizes whether a fix from this source completes the epoch
+     */
+    public LocationSource(LocationManager locMgr, String provider, long intervalMs, boolean finalizes) {
+        this.locMgr = locMgr;
+        this.provider = provider;
+        this.intervalMs = intervalMs;
+        this.finalizes = finalizes;
+    }
+
+    @Override
+    public void start(CollectionEngine.EventSink sink) {
+        setSink(sink);
+        Log.v(TAG, String.format("Requesting %s location updates with interval of %sms", provider, intervalMs));
+        // No distance limits
+        locMgr.requestLocationUpdates(provider, intervalMs, 0, this);
+    }
+
+    @Override
+    public void stop() {
+        locMgr.removeUpdates(this);
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        Log.v("LOC", "Updating Location from " + location.getProvider() + " at " + location.getTime());
+        publish(location);
+    }
+
+    protected void setSink(CollectionEngine.EventSink sink) {
+        this.sink = sink;
+    }
+
+    protected void publish(Location location) {
+        IngestEvent e = sink.claim();
+        if (e == null) {
+            return;
+        }
+        e.type = IngestEvent.LOCATION;
+        e.lat = location.getLatitude();
+        e.lon = location.getLongitude();
+        e.alt = (float) location.getAltitude();
+        e.acc = location.getAccuracy();
+        e.speed = location.getSpeed();
+        e.bearing = location.getBearing();
+        e.text = location.getProvider();
+        e.time = location.getTime();
+        sink.publish(e);
+    }
+
+    @Override
+    public boolean onEvent(IngestEvent location, EpochBuilder epoch) {
+        LocationEstimate le = new LocationEstimate();
+        le.lat = location.lat;
+        le.lon = location.lon;
+        le.alt = location.alt;
+        le.acc = location.acc;
+        le.speed = location.speed;
+        le.bearing = location.bearing;
+        le.provider = location.text;
+        le.utc = location.time;
+        epoch.addEstimate(le);
+        return finalizes && location.time > epoch.getSatInfoTime();
+    }
+
+    @Override
+    public void onEpochEnd(EpochBuilder epoch) {
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {
+        Log.v(TAG, "GPS Status Changed from " + provider);
+    }
+
+    @Override
+    public void onProviderEnabled(String provider) {
+        Log.v(TAG, "GPS enabled from " + provider);
+    }
+
+    @Override
+    public void onProviderDisabled(String provider) {
+        Log.v(TAG, "GPS disabled from " + provider);
+    }
+}
@@ -0,0 +1,42 @@
+package com.shadowmaps.service;
+
+/**
+ * Whether the device is moving, judged from steps, linear acceleration and fix speed.
+ * Each cue counts as movement for HOLD_MS after it was last seen. Only used on the ingest thread;
+ * times are SystemClock.elapsedRealtime() values.
+ */
+class MotionState {
+    // Long enough to cover sensor samples that waited in a hardware FIFO
+    static final long HOLD_MS = 10000;
+    // Fix speeds below this are mostly noise in a stationary fix
+    static final float MOVING_SPEED = 0.8f;
+    // Smoothed linear acceleration magnitude, in m/s^2, a hand-held device exceeds when carried
+    static final float MOVING_ACCELERATION = 0.6f;
+    // Weight of a new sample in the smoothed magnitude
+    private static final float SMOOTHING = 0.1f;
+
+    private float acceleration = 0;
+    private long lastMovementMs = -HOLD_MS;
+
+    public void onStep(long nowMs) {
+        lastMovementMs = nowMs;
+    }
+
+    public void onLinearAcceleration(long nowMs, float x, float y, float z) {
+        float magnitude = (float) Math.sqrt(x * x + y * y + z * z);
+        acceleration += SMOOTHING * (magnitude - acceleration);
+        if (acceleration >= MOVING_ACCELERATION) {
+            lastMovementMs = nowMs;
+        }
+    }
+
+    public void onSpeed(long nowMs, float speed) {
+        if (speed >= MOVING_SPEED) {
+            lastMovementMs = nowMs;
+        }
+    }
+
+    public boolean isMoving(long nowMs) {
+        return nowMs - lastMovementMs < HOLD_MS;
+    }
+}
@@ -1,9 +1,9 @@
 package com.shadowmaps.service;
 
 import android.content.Context;
-import android.content.Intent;
 import android.os.Environment;
 
+import com.google.protobuf.nano.MessageNano;
 import com.shadowmaps.util.api.protobufs.LocationImprovement;
 
 import org.chromium.base.Log;
@@ -14,13 +14,14 @@ import org.chromium.net.UrlRequest;
 import org.chromium.net.UrlRequestException;
 import org.chromium.net.UrlResponseInfo;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Created by user on 1/10/16.
@@ -32,8 +33,37 @@ public class NetworkProcessor {
     private static final String TAG = "ShadowMapsCronet";
     private CronetEngine mCronetEngine = null;
     private static final String appUrl = "https://and.shadowmaps.com:8080";
+    private static final String streamUrl = appUrl + "/v1/stream/";
     private Context context;
 
+    // One long-lived thread runs all Cronet callbacks and upload reads
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ShadowMapsCronet");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Hands improvements from sendUpdate to listeners, so their work does not hold up other requests
+    private static final ExecutorService sDispatchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ShadowMapsDispatch");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Recycled buffers for reading and accumulating response bodies
+    private static final int READ_BUFFER_SIZE = 32 * 1024;
+    private static final int RESPONSE_BUFFER_SIZE = 4 * 1024;
+    private static final int MAX_POOLED_RESPONSE_SIZE = 256 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final ArrayDeque<ByteBuffer> sReadBuffers = new ArrayDeque<>(MAX_POOLED_BUFFERS);
+    private static final ArrayDeque<ResponseBuffer> sResponseBuffers = new ArrayDeque<>(MAX_POOLED_BUFFERS);
+
     public NetworkProcessor(Context c){
         CronetEngine.Builder myBuilder = new CronetEngine.Builder(c);
         context = c;
@@ -50,8 +80,8 @@ public class NetworkProcessor {
     }
 
     class SimpleUrlRequestCallback extends UrlRequest.Callback {
-        private ByteArrayOutputStream mBytesReceived = new ByteArrayOutputStream();
-        private WritableByteChannel mReceiveChannel = Channels.newChannel(mBytesReceived);
+        private ByteBuffer mReadBuffer;
+        private ResponseBuffer mBytesReceived;
 
         @Override
         public void onRedirectReceived(
@@ -64,67 +94,140 @@ public class NetworkProcessor {
         public void onResponseStarted(UrlRequest request, UrlResponseInfo info) {
             Log.i(TAG, "****** Response Started ******");
             Log.i(TAG, "*** Headers Are *** " + info.getAllHeaders());
-
-            request.readNew(ByteBuffer.allocateDirect(32 * 1024));
+            mReadBuffer = acquireReadBuffer();
+            mBytesReceived = acquireResponseBuffer();
+            request.readNew(mReadBuffer);
         }
 
         @Override
         public void onReadCompleted(
                 UrlRequest request, UrlResponseInfo info, ByteBuffer byteBuffer) {
-            Log.i(TAG, "****** onReadCompleted ******" + byteBuffer);
+            // Chunks may split a message anywhere, so only accumulate here and parse in onSucceeded.
             byteBuffer.flip();
-            try {
-                if(info.getHttpStatusCode() == 200 || info.getHttpStatusCode() == 202) {
-                    mReceiveChannel.write(byteBuffer);
-                    LocationImprovement updated_location = LocationImprovement.parseFrom(byteBuffer.array());
-                    // Broadcast Intent
-                    long request_end = System.currentTimeMillis();
-                    shareLocationImprovement(updated_location);
-                }
-            } catch (IOException e) {
-                Log.i(TAG, "IOException during ByteBuffer read. Details: ", e);
-            }
+            mBytesReceived.append(byteBuffer);
             byteBuffer.clear();
             request.readNew(byteBuffer);
         }
 
-        void shareLocationImprovement(LocationImprovement response) {
-            Intent intent = new Intent();
-            double lon = response.lon;
-            double lat = response.lat;
-            double acc = response.acc;
-            long utc = response.utc;
-            android.util.Log.v("ShadowMaps", "ShadowMaps update received, " + (System.currentTimeMillis() - utc) + "ms delay.");
-            intent.setAction("shadowmaps.location.update");
-            intent.putExtra("lat", lat);
-            intent.putExtra("lon", lon);
-            intent.putExtra("radius", acc);
-
-            if(response.geocoded != null) {
-                intent.putExtra("street", response.geocoded);
-            }
-            if(response.skyview != null) {
-                intent.putExtra("skyview_png", response.skyview);
-            }
-            context.sendBroadcast(intent);
+        void shareLocationImprovement(final LocationImprovement response) {
+            android.util.Log.v("ShadowMaps", "ShadowMaps update received, "
+                    + (ShadowMaps.telemetry.toServerTime(System.currentTimeMillis()) - response.utc) + "ms delay.");
+            // Dispatch reads the artifact cache and runs listeners, too slow for the Cronet thread
+            sDispatchExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    ShadowMaps.dispatchImprovement(response);
+                }
+            });
+        }
 
+        // Called instead of shareLocationImprovement when the request produced no improvement
+        void onNoImprovement(IOException e) {
         }
 
         @Override
         public void onSucceeded(UrlRequest request, final UrlResponseInfo info) {
             Log.i(TAG, "****** Request Completed, status code is " + info.getHttpStatusCode()
                     + ", total received bytes is " + info.getReceivedBytesCount());
-
-            final String receivedData = mBytesReceived.toString();
-            final String url = info.getUrl();
-            final String text = "Completed " + url + " (" + info.getHttpStatusCode() + ")";
-            Log.v(TAG, "Info received: " + info.toString());
-            Log.v(TAG, "Info received: " + receivedData);
+            try {
+                // Like OkHttpTransport, only a 200 with a body carries an improvement
+                if (info.getHttpStatusCode() != 200) {
+                    onNoImprovement(new IOException("Unexpected response: " + info.getHttpStatusCode()));
+                } else if (mBytesReceived == null || mBytesReceived.length == 0) {
+                    onNoImprovement(new IOException("Empty response"));
+                } else {
+                    LocationImprovement updated_location = MessageNano.mergeFrom(new LocationImprovement(),
+                            mBytesReceived.data, 0, mBytesReceived.length);
+                    shareLocationImprovement(updated_location);
+                }
+            } catch (IOException e) {
+                Log.i(TAG, "IOException while parsing response. Details: ", e);
+                onNoImprovement(e);
+            } finally {
+                releaseBuffers();
+            }
         }
 
         @Override
         public void onFailed(UrlRequest request, UrlResponseInfo info, UrlRequestException error) {
             Log.i(TAG, "****** onFailed, error is: " + error.getMessage());
+            releaseBuffers();
+            onNoImprovement(error);
+        }
+
+        @Override
+        public void onCanceled(UrlRequest request, UrlResponseInfo info) {
+            releaseBuffers();
+        }
+
+        private void releaseBuffers() {
+            if (mReadBuffer != null) {
+                releaseReadBuffer(mReadBuffer);
+                mReadBuffer = null;
+            }
+            if (mBytesReceived != null) {
+                releaseResponseBuffer(mBytesReceived);
+                mBytesReceived = null;
+            }
+        }
+    }
+
+    /**
+     * Growable byte array that collects the chunks of one response body.
+     */
+    static final class ResponseBuffer {
+        byte[] data = new byte[RESPONSE_BUFFER_SIZE];
+        int length = 0;
+
+        void append(ByteBuffer chunk) {
+            int n = chunk.remaining();
+            if (length + n > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + n));
+            }
+            chunk.get(data, length, n);
+            length += n;
+        }
+    }
+
+    private static ByteBuffer acquireReadBuffer() {
+        synchronized (sReadBuffers) {
+            ByteBuffer buffer = sReadBuffers.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    }
+
+    private static void releaseReadBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        synchronized (sReadBuffers) {
+            if (sReadBuffers.size() < MAX_POOLED_BUFFERS) {
+                sReadBuffers.addFirst(buffer);
+            }
+        }
+    }
+
+    private static ResponseBuffer acquireResponseBuffer() {
+        synchronized (sResponseBuffers) {
+            ResponseBuffer buffer = sResponseBuffers.pollFirst();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new ResponseBuffer();
+    }
+
+    private static void releaseResponseBuffer(ResponseBuffer buffer) {
+        buffer.length = 0;
+        // Do not keep a buffer that grew for an unusually large response (e.g. a skyview image)
+        if (buffer.data.length > MAX_POOLED_RESPONSE_SIZE) {
+            return;
+        }
+        synchronized (sResponseBuffers) {
+            if (sResponseBuffers.size() < MAX_POOLED_BUFFERS) {
+                sResponseBuffers.addFirst(buffer);
+            }
         }
     }
 
@@ -176,13 +279,64 @@ public class NetworkProcessor {
     public void sendUpdate(byte[] postData) {
 
         Log.i(TAG, "Cronet started: " + appUrl);
-        Executor executor = Executors.newSingleThreadExecutor();
         UrlRequest.Callback callback = new SimpleUrlRequestCallback();
-        UrlRequest.Builder builder = new UrlRequest.Builder(appUrl, callback, executor, mCronetEngine);
-        applyPostDataToUrlRequestBuilder(builder, executor, postData);
+        UrlRequest.Builder builder = new UrlRequest.Builder(appUrl, callback, sExecutor, mCronetEngine);
+        applyPostDataToUrlRequestBuilder(builder, sExecutor, postData);
         builder.build().start();
     }
 
+    /**
+     * Path for a HedgedTransport that posts updates to url through this engine, over QUIC
+     * when the server supports it.
+     */
+    HedgedTransport.Path postPath(final String url) {
+        return new HedgedTransport.Path() {
+            @Override
+            public HedgedTransport.Call start(byte[] update, final HedgedTransport.Callback callback) {
+                UrlRequest.Callback requestCallback = new SimpleUrlRequestCallback() {
+                    @Override
+                    public void onResponseStarted(UrlRequest request, UrlResponseInfo info) {
+                        callback.onFirstByte();
+                        super.onResponseStarted(request, info);
+                    }
+
+                    @Override
+                    void shareLocationImprovement(LocationImprovement response) {
+                        callback.onResponse(response);
+                    }
+
+                    @Override
+                    void onNoImprovement(IOException e) {
+                        callback.onFailure(e);
+                    }
+                };
+                UrlRequest.Builder builder = new UrlRequest.Builder(url, requestCallback, sExecutor, mCronetEngine);
+                builder.addHeader("Accept", "application/octet-stream");
+                applyPostDataToUrlRequestBuilder(builder, sExecutor, update);
+                final UrlRequest request = builder.build();
+                request.start();
+                return new HedgedTransport.Call() {
+                    @Override
+                    public void cancel() {
+                        request.cancel();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Connector for a StreamingUplink that opens a bidirectional HTTP/2 or QUIC stream through this engine.
+     */
+    public StreamingUplink.Connector streamConnector() {
+        return new StreamingUplink.Connector() {
+            @Override
+            public StreamingUplink.Connection newConnection() {
+                return new CronetStreamConnection(mCronetEngine, streamUrl, sExecutor);
+            }
+        };
+    }
+
     private void startNetLog() {
         mCronetEngine.startNetLogToFile(
                 Environment.getExternalStorageDirectory().getPath() + "/cronet_sample_netlog.json",
@@ -0,0 +1,56 @@
+package com.shadowmaps.service;
+
+import android.location.GpsStatus;
+import android.location.LocationManager;
+import android.util.Log;
+
+import com.shadowmaps.util.api.protobufs.NMEAInfo;
+
+/**
+ * Raw NMEA sentences from the GPS engine.
+ */
+class NmeaSource implements CollectionEngine.Source, GpsStatus.NmeaListener {
+    private final LocationManager locMgr;
+    private CollectionEngine.EventSink sink;
+
+    public NmeaSource(LocationManager locMgr) {
+        this.locMgr = locMgr;
+    }
+
+    @Override
+    public void start(CollectionEngine.EventSink sink) {
+        this.sink = sink;
+        locMgr.addNmeaListener(this);
+    }
+
+    @Override
+    public void stop() {
+        locMgr.removeNmeaListener(this);
+    }
+
+    @Override
+    public void onNmeaReceived(long timestamp, String nmea) {
+        Log.v("NMEA", "" + timestamp + "," + nmea);
+        IngestEvent e = sink.claim();
+        if (e == null) {
+            return;
+        }
+        e.type = IngestEvent.NMEA;
+        e.time = timestamp;
+        e.text = nmea;
+        sink.publish(e);
+    }
+
+    @Override
+    public boolean onEvent(IngestEvent event, EpochBuilder epoch) {
+        NMEAInfo newNmea = new NMEAInfo();
+        newNmea.timestamp = event.time;
+        newNmea.sentence = event.text;
+        epoch.addNmeaInfo(newNmea);
+        return false;
+    }
+
+    @Override
+    public void onEpochEnd(EpochBuilder epoch) {
+    }
+}
@@ -0,0 +1,102 @@
+package com.shadowmaps.service;
+
+import android.util.Log;
+
+import com.shadowmaps.data.TelemetrySnapshot;
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+import java.io.IOException;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Posts encoded LocationUpdates to the ShadowMaps HTTP endpoint with OkHttp, blocking for
+ * RealtimeUploader or asynchronously as one path of a HedgedTransport.
+ */
+class OkHttpTransport implements RealtimeUploader.Transport, HedgedTransport.Path {
+    private static final MediaType PROTOBUF = MediaType.parse("application/octet-stream");
+    private static final String TAG = "HTTP";
+
+    private final OkHttpClient client;
+    private final String url;
+    private final Telemetry telemetry;
+
+    public OkHttpTransport(OkHttpClient client, String url, Telemetry telemetry) {
+        this.client = client;
+        this.url = url;
+        this.telemetry = telemetry;
+    }
+
+    @Override
+    public LocationImprovement send(byte[] update, long trace) throws IOException {
+        // Returns once the status line and headers are read
+        Response response = client.newCall(request(update)).execute();
+        telemetry.mark(trace, TelemetrySnapshot.STAGE_FIRST_BYTE);
+        try {
+            if (response.code() != 200) {
+                Log.v(TAG, "Unexpected response from ShadowMaps:" + response.code() + ":" + response.message());
+                return null;
+            }
+            byte[] body = response.body().bytes();
+            if (body.length == 0) {
+                Log.v(TAG, "Empty response from ShadowMaps");
+                return null;
+            }
+            return LocationImprovement.parseFrom(body);
+        } finally {
+            response.body().close();
+        }
+    }
+
+    @Override
+    public HedgedTransport.Call start(byte[] update, final HedgedTransport.Callback callback) {
+        final Call call = client.newCall(request(update));
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                callback.onFailure(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                callback.onFirstByte();
+                try {
+                    if (response.code() != 200) {
+                        callback.onFailure(new IOException("Unexpected response: " + response.code()));
+                        return;
+                    }
+                    byte[] body = response.body().bytes();
+                    if (body.length == 0) {
+                        callback.onFailure(new IOException("Empty response"));
+                    } else {
+                        callback.onResponse(LocationImprovement.parseFrom(body));
+                    }
+                } catch (IOException e) {
+                    callback.onFailure(e);
+                } finally {
+                    response.body().close();
+                }
+            }
+        });
+        return new HedgedTransport.Call() {
+            @Override
+            public void cancel() {
+                call.cancel();
+            }
+        };
+    }
+
+    private Request request(byte[] update) {
+        return new Request.Builder()
+                .url(url)
+                .header("Accept", "application/octet-stream")
+                .post(RequestBody.create(PROTOBUF, update))
+                .build();
+    }
+}
@@ -0,0 +1,88 @@
+package com.shadowmaps.service;
+
+import com.google.protobuf.nano.MessageNano;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+
+/**
+ * Sends each epoch as it is built, over the persistent stream when there is one,
+ * otherwise through the RealtimeUploader, delta-encoded when a CompactEncoder is set.
+ *
+ * Compact epochs are encoded by the uploader as it sends them, so each delta is relative to the
+ * epoch sent before it and the uploader can drop queued epochs freely; a failed send makes the
+ * next one a keyframe. Any other epoch that was dropped, failed or never sent breaks the delta
+ * chains of the full format, so the LossListener is told to start again from a keyframe.
+ */
+class RealtimeUplink implements CollectionEngine.Uplink {
+
+    public interface LossListener {
+        /**
+         * Called on the ingest thread when the receiver may have missed an epoch.
+         */
+        void onLoss();
+    }
+
+    private final RealtimeUploader uploader;
+    private final StreamingUplink streamingUplink;
+    private final RealtimeUploader.Encoder compactEncoder;
+    private volatile LossListener lossListener;
+    // Only touched on the ingest thread
+    private long lastLoss = 0;
+
+    /**
+     * @param streamingUplink stream to send full epochs on, or null to POST them
+     * @param compactEncoder encoder for the compact wire format, or null to send full epochs
+     */
+    public RealtimeUplink(RealtimeUploader uploader, StreamingUplink streamingUplink, CompactEncoder compactEncoder) {
+        this.uploader = uploader;
+        this.streamingUplink = streamingUplink;
+        this.compactEncoder = compactEncoder == null ? null : compactEncoder(compactEncoder);
+    }
+
+    // Runs on the uploader's worker
+    private static RealtimeUploader.Encoder compactEncoder(final CompactEncoder encoder) {
+        return new RealtimeUploader.Encoder() {
+            @Override
+            public byte[] encode(LocationUpdate update) {
+                return MessageNano.toByteArray(encoder.encode(update));
+            }
+
+            @Override
+            public void onLost() {
+                encoder.requestKeyframe();
+            }
+        };
+    }
+
+    public void setLossListener(LossListener listener) {
+        lossListener = listener;
+    }
+
+    @Override
+    public void send(LocationUpdate update, byte[] encoded, long trace) {
+        long loss = uploader.getDroppedCount() + uploader.getFailedCount()
+                + (streamingUplink != null ? streamingUplink.getDroppedCount() : 0);
+        if (loss != lastLoss) {
+            lastLoss = loss;
+            onLoss();
+        }
+        if (compactEncoder != null) {
+            uploader.submit(update, compactEncoder, trace);
+        } else if (streamingUplink != null) {
+            streamingUplink.submit(encoded, trace);
+        } else {
+            uploader.submit(encoded, trace);
+        }
+    }
+
+    @Override
+    public void skipped() {
+        onLoss();
+    }
+
+    private void onLoss() {
+        LossListener listener = lossListener;
+        if (listener != null) {
+            listener.onLoss();
+        }
+    }
+}
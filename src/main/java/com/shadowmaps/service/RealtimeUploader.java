@@ -0,0 +1,254 @@
+package com.shadowmaps.service;
+
+import android.util.Log;
+
+import com.shadowmaps.data.TelemetrySnapshot;
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Dedicated upload pipeline for realtime epochs.
+ * At most maxInFlight requests are outstanding at once, each on its own worker thread.
+ * Epochs that arrive while the window is full wait in a small queue; when that queue is full
+ * the oldest waiting epoch is dropped, so the server always receives the most recent data
+ * and latency and memory stay bounded when RTT exceeds the epoch interval.
+ *
+ * Epochs submitted with an Encoder are encoded only as a worker takes them, so in a delta format
+ * each one is relative to the epoch sent before it, whatever was dropped from the queue between.
+ */
+class RealtimeUploader {
+
+    public interface Transport {
+        /**
+         * Sends one encoded LocationUpdate and blocks until the response is parsed.
+         * Marks trace at STAGE_FIRST_BYTE when the response starts to arrive.
+         * @return the improvement, or null if the server did not return one
+         */
+        LocationImprovement send(byte[] update, long trace) throws IOException;
+    }
+
+    public interface Listener {
+        void onImprovement(LocationImprovement improvement);
+    }
+
+    /**
+     * Encodes epochs that depend on the previous one sent. Called under the uploader's lock, in
+     * the order epochs are sent, which is the order they were taken when maxInFlight is 1.
+     */
+    public interface Encoder {
+        byte[] encode(LocationUpdate update);
+
+        /**
+         * The last encoded epoch may not have reached the server, so the next must not depend on it.
+         */
+        void onLost();
+    }
+
+    private static final String TAG = "ShadowMapsUpload";
+
+    private static final class Pending {
+        // Set when the epoch is taken if it has an encoder
+        byte[] update;
+        final LocationUpdate epoch;
+        final Encoder encoder;
+        final long trace;
+        final long enqueuedNanos;
+
+        Pending(byte[] update, LocationUpdate epoch, Encoder encoder, long trace, long enqueuedNanos) {
+            this.update = update;
+            this.epoch = epoch;
+            this.encoder = encoder;
+            this.trace = trace;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private final Transport transport;
+    private final Listener listener;
+    private final Telemetry telemetry;
+    private final int maxQueued;
+    private final ArrayDeque<Pending> queue;
+    private final Thread[] workers;
+    private boolean running = true;
+
+    // Statistics, guarded by this
+    private long submitted = 0;
+    private long dropped = 0;
+    private long succeeded = 0;
+    private long failed = 0;
+    private long totalQueueWaitNanos = 0;
+    private long maxQueueWaitNanos = 0;
+    private long dequeued = 0;
+    private int inFlight = 0;
+
+    /**
+     * @param maxInFlight number of requests allowed on the network at once
+     * @param maxQueued number of epochs that may wait for a free slot before the oldest is dropped
+     */
+    public RealtimeUploader(Transport transport, Listener listener, Telemetry telemetry, int maxInFlight,
+                            int maxQueued) {
+        this.transport = transport;
+        this.listener = listener;
+        this.telemetry = telemetry;
+        this.maxQueued = Math.max(1, maxQueued);
+        this.queue = new ArrayDeque<>(this.maxQueued);
+        workers = new Thread[Math.max(1, maxInFlight)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "ShadowMapsUpload-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Queues an encoded epoch for upload, replacing the oldest waiting epoch if the queue is full.
+     * @param trace the epoch's Telemetry trace
+     */
+    public void submit(byte[] update, long trace) {
+        enqueue(new Pending(update, null, null, trace, System.nanoTime()));
+    }
+
+    /**
+     * Queues an epoch to be encoded with encoder once a worker takes it, replacing the oldest
+     * waiting epoch if the queue is full.
+     * @param trace the epoch's Telemetry trace
+     */
+    public void submit(LocationUpdate update, Encoder encoder, long trace) {
+        enqueue(new Pending(null, update, encoder, trace, System.nanoTime()));
+    }
+
+    private synchronized void enqueue(Pending pending) {
+        if (!running) {
+            return;
+        }
+        submitted++;
+        if (queue.size() >= maxQueued) {
+            telemetry.fail(queue.pollFirst().trace);
+            dropped++;
+        }
+        queue.addLast(pending);
+        notify();
+    }
+
+    public synchronized void shutdown() {
+        running = false;
+        queue.clear();
+        notifyAll();
+    }
+
+    private Pending take() throws InterruptedException {
+        synchronized (this) {
+            while (running && queue.isEmpty()) {
+                wait();
+            }
+            if (!running) {
+                return null;
+            }
+            Pending next = queue.pollFirst();
+            if (next.encoder != null) {
+                next.update = next.encoder.encode(next.epoch);
+            }
+            long waited = System.nanoTime() - next.enqueuedNanos;
+            totalQueueWaitNanos += waited;
+            if (waited > maxQueueWaitNanos) {
+                maxQueueWaitNanos = waited;
+            }
+            dequeued++;
+            inFlight++;
+            return next;
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Pending next;
+            try {
+                next = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (next == null) {
+                return;
+            }
+            boolean ok = false;
+            try {
+                long start = System.nanoTime();
+                telemetry.mark(next.trace, TelemetrySnapshot.STAGE_SEND, start);
+                telemetry.onSent(next.update.length);
+                LocationImprovement improvement = transport.send(next.update, next.trace);
+                telemetry.mark(next.trace, TelemetrySnapshot.STAGE_PARSE);
+                Log.v(TAG, "Total RTT:" + (System.nanoTime() - start) / 1000000 + " ms");
+                if (improvement != null) {
+                    // A rejected upload counts as failed, so the compact delta chain restarts
+                    ok = true;
+                    listener.onImprovement(improvement);
+                    telemetry.complete(next.trace, improvement);
+                } else {
+                    telemetry.fail(next.trace);
+                }
+            } catch (Exception e) {
+                Log.v(TAG, "Upload failed: " + e.getMessage());
+                telemetry.fail(next.trace);
+            } finally {
+                synchronized (this) {
+                    inFlight--;
+                    if (ok) {
+                        succeeded++;
+                    } else {
+                        failed++;
+                        if (next.encoder != null) {
+                            next.encoder.onLost();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized long getSubmittedCount() {
+        return submitted;
+    }
+
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    public synchronized long getSucceededCount() {
+        return succeeded;
+    }
+
+    public synchronized long getFailedCount() {
+        return failed;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    public synchronized long getMeanQueueWaitMs() {
+        return dequeued == 0 ? 0 : totalQueueWaitNanos / dequeued / 1000000;
+    }
+
+    public synchronized long getMaxQueueWaitMs() {
+        return maxQueueWaitNanos / 1000000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "submitted=" + submitted + " dropped=" + dropped + " ok=" + succeeded + " failed=" + failed
+                + " inFlight=" + inFlight + " queued=" + queue.size()
+                + " meanWaitMs=" + getMeanQueueWaitMs() + " maxWaitMs=" + getMaxQueueWaitMs();
+    }
+}
@@ -0,0 +1,294 @@
+package com.shadowmaps.service;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Logs improved locations (utc, lat, lon, acc) to local files for evaluation, off the thread
+ * that receives them.
+ *
+ * log() only copies the four values into a preallocated ring of primitive records. A writer
+ * thread formats them straight into a byte buffer, without intermediate Strings, and writes the
+ * buffer once it holds flushBytes or the oldest record in it is flushIntervalMs old. Files are
+ * rotated once they reach maxFileBytes.
+ *
+ * Records are written as CSV lines, or with FORMAT_BINARY as fixed-width big-endian records
+ * [long utc][double lat][double lon][float acc] after an [int MAGIC][int record size] header.
+ */
+class ResultLogger {
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_BINARY = 1;
+
+    public static final int MAGIC = 0x534D5231;
+    public static final int BINARY_RECORD_SIZE = 28;
+
+    private static final String TAG = "ShadowMapsLog";
+    // Longest CSV line: 20 digit utc, two 7 decimal coordinates, 2 decimal accuracy
+    private static final int MAX_LINE = 96;
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L};
+
+    private final File dir;
+    private final String baseName;
+    private final int format;
+    private final long maxFileBytes;
+    private final long flushIntervalMs;
+    private final Thread thread;
+
+    // Ring of pending records, guarded by this
+    private final long[] utcs;
+    private final double[] lats;
+    private final double[] lons;
+    private final float[] accs;
+    private int head = 0;
+    private int count = 0;
+    private boolean running = true;
+    private long logged = 0;
+    private long dropped = 0;
+
+    // Only touched on the writer thread
+    private final byte[] buffer;
+    private int buffered = 0;
+    private long firstBufferedMs;
+    private FileOutputStream out;
+    private long fileBytes;
+    private int fileIndex = 0;
+    private long written = 0;
+
+    /**
+     * @param baseName file name without extension; rotated files get _1, _2, ... appended
+     * @param capacity records held while the writer is busy; more are dropped
+     * @param flushBytes buffered bytes that trigger a write
+     */
+    public ResultLogger(File dir, String baseName, int format, int capacity, int flushBytes,
+                        long flushIntervalMs, long maxFileBytes) {
+        this.dir = dir;
+        this.baseName = baseName;
+        this.format = format;
+        this.maxFileBytes = maxFileBytes;
+        this.flushIntervalMs = flushIntervalMs;
+        utcs = new long[capacity];
+        lats = new double[capacity];
+        lons = new double[capacity];
+        accs = new float[capacity];
+        buffer = new byte[Math.max(flushBytes, MAX_LINE) + MAX_LINE];
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues one result. Never blocks on disk or allocates.
+     * @return false if the ring is full and the result was dropped
+     */
+    public synchronized boolean log(long utc, double lat, double lon, double acc) {
+        if (!running || count == utcs.length) {
+            dropped++;
+            return false;
+        }
+        int i = (head + count) % utcs.length;
+        utcs[i] = utc;
+        lats[i] = lat;
+        lons[i] = lon;
+        accs[i] = (float) acc;
+        count++;
+        logged++;
+        // The writer sleeps until its flush deadline, so only wake it for the first record
+        if (count == 1) {
+            notify();
+        }
+        return true;
+    }
+
+    /**
+     * Writes what is queued and stops the writer thread.
+     */
+    public synchronized void close() {
+        running = false;
+        notify();
+    }
+
+    public synchronized long getLoggedCount() {
+        return logged;
+    }
+
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    private void work() {
+        while (true) {
+            boolean stop;
+            synchronized (this) {
+                while (running && count == 0) {
+                    long wait = buffered == 0 ? 0 : firstBufferedMs + flushIntervalMs - System.currentTimeMillis();
+                    if (buffered > 0 && wait <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                // Format under the lock; it is a few hundred nanoseconds per record
+                while (count > 0 && buffered + MAX_LINE <= buffer.length) {
+                    if (buffered == 0) {
+                        firstBufferedMs = System.currentTimeMillis();
+                    }
+                    format(utcs[head], lats[head], lons[head], accs[head]);
+                    head = (head + 1) % utcs.length;
+                    count--;
+                }
+                stop = !running && count == 0;
+            }
+            try {
+                if (stop || buffered + MAX_LINE > buffer.length
+                        || (buffered > 0 && System.currentTimeMillis() - firstBufferedMs >= flushIntervalMs)) {
+                    flush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                buffered = 0;
+                closeFile();
+            }
+            if (stop) {
+                break;
+            }
+        }
+        closeFile();
+        Log.v(TAG, "Result log closed, " + written + " results written");
+    }
+
+    private void format(long utc, double lat, double lon, float acc) {
+        if (format == FORMAT_BINARY) {
+            putLong(utc);
+            putLong(Double.doubleToLongBits(lat));
+            putLong(Double.doubleToLongBits(lon));
+            putInt(Float.floatToIntBits(acc));
+        } else {
+            putInteger(utc);
+            buffer[buffered++] = ',';
+            putDecimal(lat, 7);
+            buffer[buffered++] = ',';
+            putDecimal(lon, 7);
+            buffer[buffered++] = ',';
+            putDecimal(acc, 2);
+            buffer[buffered++] = '\n';
+        }
+        written++;
+    }
+
+    private void flush() throws IOException {
+        if (buffered == 0) {
+            return;
+        }
+        if (out == null || fileBytes >= maxFileBytes) {
+            openFile();
+        }
+        out.write(buffer, 0, buffered);
+        fileBytes += buffered;
+        buffered = 0;
+    }
+
+    private void openFile() throws IOException {
+        closeFile();
+        String extension = format == FORMAT_BINARY ? ".smr" : ".csv";
+        File file;
+        do {
+            file = new File(dir, baseName + (fileIndex == 0 ? "" : "_" + fileIndex) + extension);
+            fileIndex++;
+        } while (file.exists() && file.length() >= maxFileBytes);
+        Log.v(TAG, "Logging to " + file.getPath());
+        boolean append = file.exists() && file.length() > 0;
+        out = new FileOutputStream(file, append);
+        fileBytes = append ? file.length() : 0;
+        if (format == FORMAT_BINARY && !append) {
+            byte[] header = new byte[8];
+            writeInt(header, 0, MAGIC);
+            writeInt(header, 4, BINARY_RECORD_SIZE);
+            out.write(header);
+            fileBytes += header.length;
+        }
+    }
+
+    private void closeFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        out = null;
+    }
+
+    // Fixed point decimal with the given number of fraction digits, rounded half up
+    private void putDecimal(double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) >= 9e11) {
+            System.arraycopy(NAN, 0, buffer, buffered, NAN.length);
+            buffered += NAN.length;
+            return;
+        }
+        long scaled = Math.round(Math.abs(value) * POW10[decimals]);
+        if (value < 0 && scaled != 0) {
+            buffer[buffered++] = '-';
+        }
+        putDigits(scaled / POW10[decimals], 1);
+        if (decimals > 0) {
+            buffer[buffered++] = '.';
+            putDigits(scaled % POW10[decimals], decimals);
+        }
+    }
+
+    private void putInteger(long value) {
+        if (value < 0) {
+            buffer[buffered++] = '-';
+            value = -value;
+        }
+        putDigits(value, 1);
+    }
+
+    // Writes a non-negative value with at least minDigits digits
+    private void putDigits(long value, int minDigits) {
+        int digits = 1;
+        for (long v = value / 10; v != 0; v /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        for (int i = buffered + digits - 1; i >= buffered; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        buffered += digits;
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >>> 32));
+        putInt((int) v);
+    }
+
+    private void putInt(int v) {
+        writeInt(buffer, buffered, v);
+        buffered += 4;
+    }
+
+    private static void writeInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,476 @@
+package com.shadowmaps.service;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of encoded epochs, so data reaches disk as soon as it is collected and
+ * survives the process being killed.
+ *
+ * Records are appended to the open segment by a dedicated thread. Each record is stored as
+ * [int length][int CRC32 of the payload][payload]. The record that takes the open segment to
+ * maxSegmentBytes or maxSegmentAgeMs is its last; the segment is sealed after it is written, and
+ * sealed segments are handed to the SealListener, which normally exports them as a batch file.
+ * Since this is decided when the record is appended, the SegmentListener learns of the boundary
+ * before the next record is built, e.g. so that record can be a keyframe. On start, an open
+ * segment left behind by a crash is truncated after its last intact record and sealed, and
+ * sealed segments that were never exported are handed to the listener again.
+ *
+ * Segments, and other files in the journal directory accepted by quotaFilter (e.g. exported
+ * batches), count against quotaBytes; when it is exceeded the oldest of them are deleted.
+ */
+class SegmentJournal implements CollectionEngine.Store {
+
+    public interface SealListener {
+        /**
+         * Called on the journal thread for every sealed segment, oldest first.
+         * @return true if the segment has been dealt with and can be deleted
+         */
+        boolean onSegmentSealed(File segment);
+    }
+
+    public interface SegmentListener {
+        /**
+         * Called on the appending thread when the next record will not follow the last one in the
+         * same segment: the last one ended the segment or was dropped. Also called on the journal
+         * thread when a write error cuts a segment short.
+         */
+        void onSegmentBreak();
+    }
+
+    public interface RecordHandler {
+        void onRecord(byte[] data, int offset, int length);
+    }
+
+    // fsync policies, otherwise the interval in ms between syncs
+    public static final long FSYNC_EVERY_RECORD = 0;
+    public static final long FSYNC_NEVER = -1;
+
+    private static final String TAG = "ShadowMapsJournal";
+    private static final String OPEN_SUFFIX = ".smj.open";
+    private static final String SEALED_SUFFIX = ".smj";
+    private static final int MAGIC = 0x534D4A31;
+    private static final int HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+    // Queued after the last record of a segment
+    private static final byte[] SEAL = new byte[0];
+
+    private final File dir;
+    private final SealListener listener;
+    private final long maxSegmentBytes;
+    private final long maxSegmentAgeMs;
+    private final long quotaBytes;
+    private final FileFilter quotaFilter;
+    private final long fsyncIntervalMs;
+    private final int maxQueued;
+    private final Thread thread;
+
+    // Guarded by this
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private boolean running = true;
+    private long appended = 0;
+    private long dropped = 0;
+    private SegmentListener segmentListener;
+    // Size and start of the segment the next record is appended to, 0 bytes when it starts a new one
+    private long appendSegmentBytes = 0;
+    private long appendSegmentStartMs;
+
+    // Only touched on the journal thread
+    private RandomAccessFile segmentFile;
+    private FileChannel segment;
+    private File segmentPath;
+    private long lastSyncMs;
+    private boolean unsynced = false;
+    private int segmentCounter = 0;
+    private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+    private final ByteBuffer[] record = new ByteBuffer[2];
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * @param quotaFilter other files in dir that count against quotaBytes, or null
+     * @param maxQueued number of records that may wait for the disk before new ones are dropped
+     * @param fsyncIntervalMs FSYNC_EVERY_RECORD, FSYNC_NEVER, or the longest time a written
+     *                        record may stay unsynced
+     */
+    public SegmentJournal(File dir, SealListener listener, long maxSegmentBytes, long maxSegmentAgeMs,
+                          long quotaBytes, FileFilter quotaFilter, long fsyncIntervalMs, int maxQueued) {
+        this.dir = dir;
+        this.listener = listener;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxSegmentAgeMs = maxSegmentAgeMs;
+        this.quotaBytes = quotaBytes;
+        this.quotaFilter = quotaFilter;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+        this.maxQueued = Math.max(1, maxQueued);
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, TAG);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public synchronized void setSegmentListener(SegmentListener listener) {
+        segmentListener = listener;
+    }
+
+    /**
+     * Queues one encoded record for the open segment. Never blocks on disk.
+     * @return false if the record was dropped because the queue is full or the journal closed
+     */
+    @Override
+    public boolean append(byte[] data) {
+        boolean queued;
+        boolean broken;
+        SegmentListener listener;
+        synchronized (this) {
+            queued = running && queue.size() < maxQueued;
+            if (queued) {
+                long now = System.currentTimeMillis();
+                if (appendSegmentBytes == 0) {
+                    appendSegmentBytes = 4;
+                    appendSegmentStartMs = now;
+                }
+                appendSegmentBytes += HEADER_SIZE + data.length;
+                queue.addLast(data);
+                broken = appendSegmentBytes >= maxSegmentBytes || now - appendSegmentStartMs >= maxSegmentAgeMs;
+                if (broken) {
+                    appendSegmentBytes = 0;
+                    queue.addLast(SEAL);
+                }
+                notify();
+            } else {
+                dropped++;
+                broken = true;
+            }
+            listener = segmentListener;
+        }
+        if (broken && listener != null) {
+            listener.onSegmentBreak();
+        }
+        return queued;
+    }
+
+    /**
+     * Writes what is queued, seals the open segment and stops the journal thread.
+     */
+    public synchronized void close() {
+        running = false;
+        notify();
+    }
+
+    public synchronized long getAppendedCount() {
+        return appended;
+    }
+
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Reads every intact record of a segment, in order.
+     * @return the number of bytes covered by intact records, i.e. where the segment should end
+     */
+    public static long readRecords(File segment, RecordHandler handler) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment, "r");
+        try {
+            long length = file.length();
+            if (length < 4 || file.readInt() != MAGIC) {
+                return 0;
+            }
+            long good = 4;
+            CRC32 crc = new CRC32();
+            byte[] buffer = new byte[4096];
+            while (good + HEADER_SIZE <= length) {
+                int size = file.readInt();
+                int checksum = file.readInt();
+                if (size < 0 || size > MAX_RECORD_SIZE || good + HEADER_SIZE + size > length) {
+                    break;
+                }
+                if (size > buffer.length) {
+                    buffer = new byte[Math.max(size, buffer.length * 2)];
+                }
+                file.readFully(buffer, 0, size);
+                crc.reset();
+                crc.update(buffer, 0, size);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                if (handler != null) {
+                    handler.onRecord(buffer, 0, size);
+                }
+                good += HEADER_SIZE + size;
+            }
+            return good;
+        } finally {
+            file.close();
+        }
+    }
+
+    private void work() {
+        recover();
+        while (true) {
+            byte[] next;
+            boolean stop;
+            synchronized (this) {
+                while (running && queue.isEmpty()) {
+                    long deadline = nextSyncDeadline();
+                    long wait = deadline == Long.MAX_VALUE ? 0 : deadline - System.currentTimeMillis();
+                    if (deadline != Long.MAX_VALUE && wait <= 0) {
+                        break;
+                    }
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        running = false;
+                    }
+                }
+                next = queue.pollFirst();
+                stop = !running && next == null;
+                if (next != null && next != SEAL) {
+                    appended++;
+                }
+            }
+            if (stop) {
+                break;
+            }
+            try {
+                if (next == SEAL) {
+                    seal();
+                } else if (next != null) {
+                    write(next);
+                }
+                if (unsynced && fsyncIntervalMs > 0 && System.currentTimeMillis() - lastSyncMs >= fsyncIntervalMs) {
+                    sync();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                // Start a fresh segment rather than appending after a partial write
+                closeSegment();
+                File sealed = repair(segmentPath);
+                if (sealed != null) {
+                    deliver(sealed);
+                }
+                SegmentListener broken;
+                synchronized (this) {
+                    broken = segmentListener;
+                }
+                if (broken != null) {
+                    broken.onSegmentBreak();
+                }
+            }
+        }
+        try {
+            seal();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        Log.v(TAG, "Journal closed, " + appended + " records appended, " + dropped + " dropped");
+    }
+
+    // Time at which the open segment must be synced even without new records
+    private long nextSyncDeadline() {
+        if (segment == null || !unsynced || fsyncIntervalMs <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return lastSyncMs + fsyncIntervalMs;
+    }
+
+    private void write(byte[] data) throws IOException {
+        if (segment == null) {
+            openSegment();
+        }
+        crc.reset();
+        crc.update(data, 0, data.length);
+        header.clear();
+        header.putInt(data.length).putInt((int) crc.getValue());
+        header.flip();
+        record[0] = header;
+        record[1] = ByteBuffer.wrap(data);
+        while (record[1].hasRemaining()) {
+            segment.write(record);
+        }
+        record[1] = null;
+        unsynced = true;
+        if (fsyncIntervalMs == FSYNC_EVERY_RECORD) {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException {
+        segment.force(false);
+        unsynced = false;
+        lastSyncMs = System.currentTimeMillis();
+    }
+
+    private void openSegment() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        long now = System.currentTimeMillis();
+        segmentPath = new File(dir, String.format("journal_%013d_%03d%s", now, segmentCounter++ % 1000, OPEN_SUFFIX));
+        segmentFile = new RandomAccessFile(segmentPath, "rw");
+        segment = segmentFile.getChannel();
+        header.clear();
+        header.putInt(MAGIC);
+        header.flip();
+        while (header.hasRemaining()) {
+            segment.write(header);
+        }
+        lastSyncMs = now;
+    }
+
+    private void closeSegment() {
+        if (segmentFile != null) {
+            try {
+                segmentFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        segmentFile = null;
+        segment = null;
+    }
+
+    // Syncs and closes the open segment, renames it to sealed and hands it to the listener.
+    private void seal() throws IOException {
+        if (segment == null) {
+            return;
+        }
+        File path = segmentPath;
+        try {
+            if (fsyncIntervalMs != FSYNC_NEVER) {
+                sync();
+            }
+        } finally {
+            closeSegment();
+        }
+        File sealed = sealedName(path);
+        if (path.renameTo(sealed)) {
+            deliver(sealed);
+        }
+        enforceQuota();
+    }
+
+    private void deliver(File sealed) {
+        try {
+            if (listener.onSegmentSealed(sealed) && !sealed.delete()) {
+                Log.v(TAG, "Could not delete " + sealed);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Repairs segments left open by a crash, then delivers every sealed segment not yet exported.
+    private void recover() {
+        for (File path : list(OPEN_SUFFIX)) {
+            repair(path);
+        }
+        for (File sealed : list(SEALED_SUFFIX)) {
+            deliver(sealed);
+        }
+        enforceQuota();
+    }
+
+    // Truncates an open segment after its last intact record and seals it.
+    // Returns the sealed segment, or null if nothing in it was worth keeping.
+    private File repair(File path) {
+        try {
+            long good = readRecords(path, null);
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                if (good < file.length()) {
+                    Log.v(TAG, "Truncating " + path.getName() + " from " + file.length() + " to " + good + " bytes");
+                    file.setLength(good);
+                }
+            } finally {
+                file.close();
+            }
+            File sealed = sealedName(path);
+            if (good > 4 && path.renameTo(sealed)) {
+                return sealed;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        path.delete();
+        return null;
+    }
+
+    private void enforceQuota() {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && !f.equals(segmentPath)
+                        && (isJournalFile(f) || (quotaFilter != null && quotaFilter.accept(f)));
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        if (total <= quotaBytes) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long la = a.lastModified();
+                long lb = b.lastModified();
+                return la < lb ? -1 : (la == lb ? 0 : 1);
+            }
+        });
+        for (File f : files) {
+            if (total <= quotaBytes) {
+                break;
+            }
+            long size = f.length();
+            if (f.delete()) {
+                Log.v(TAG, "Disk quota exceeded, deleted " + f.getName());
+                total -= size;
+            }
+        }
+    }
+
+    private File[] list(final String suffix) {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && isJournalFile(f) && f.getName().endsWith(suffix);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // Names start with the creation time, so this is oldest first
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static boolean isJournalFile(File f) {
+        return f.getName().startsWith("journal_");
+    }
+
+    private static File sealedName(File open) {
+        String name = open.getName();
+        return new File(open.getParentFile(), name.substring(0, name.length() - OPEN_SUFFIX.length()) + SEALED_SUFFIX);
+    }
+}
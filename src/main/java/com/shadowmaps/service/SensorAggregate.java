@@ -0,0 +1,79 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.SensorInfo;
+
+/**
+ * Running count, mean, min, max and variance of one sensor's samples, per axis,
+ * updated in place with Welford's method so adding a sample allocates nothing.
+ */
+class SensorAggregate {
+    public static final int MAX_AXES = 3;
+
+    private final int sensorType;
+    private final int axes;
+    private final double[] mean = new double[MAX_AXES];
+    private final double[] m2 = new double[MAX_AXES];
+    private final float[] min = new float[MAX_AXES];
+    private final float[] max = new float[MAX_AXES];
+    private int count = 0;
+    private long lastTime = 0;
+
+    public SensorAggregate(int sensorType, int axes) {
+        this.sensorType = sensorType;
+        this.axes = Math.min(axes, MAX_AXES);
+    }
+
+    public int getSensorType() {
+        return sensorType;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void add(long time, float[] values, int valueCount) {
+        count++;
+        lastTime = time;
+        int n = Math.min(axes, valueCount);
+        for (int i = 0; i < n; i++) {
+            float v = values[i];
+            double delta = v - mean[i];
+            mean[i] += delta / count;
+            m2[i] += delta * (v - mean[i]);
+            if (count == 1 || v < min[i]) {
+                min[i] = v;
+            }
+            if (count == 1 || v > max[i]) {
+                max[i] = v;
+            }
+        }
+    }
+
+    /**
+     * @return the aggregate as a SensorInfo, or null if there were no samples; resets for the next epoch
+     */
+    public SensorInfo build() {
+        if (count == 0) {
+            return null;
+        }
+        SensorInfo info = new SensorInfo();
+        info.timestamp = lastTime;
+        info.sensorType = sensorType;
+        info.sampleCount = count;
+        info.mean = new float[axes];
+        info.min = new float[axes];
+        info.max = new float[axes];
+        info.variance = new float[axes];
+        for (int i = 0; i < axes; i++) {
+            info.mean[i] = (float) mean[i];
+            info.min[i] = min[i];
+            info.max[i] = max[i];
+            // Population variance of the samples in this epoch
+            info.variance[i] = (float) (m2[i] / count);
+            mean[i] = 0;
+            m2[i] = 0;
+        }
+        count = 0;
+        return info;
+    }
+}
@@ -0,0 +1,326 @@
+package com.shadowmaps.service;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.shadowmaps.util.api.protobufs.InertialSeries;
+import com.shadowmaps.util.api.protobufs.SensorInfo;
+
+import java.util.Arrays;
+
+/**
+ * Environmental, inertial and step sensors, plus the battery level and step counts
+ * that are added once per epoch.
+ *
+ * Environmental and inertial samples are reduced to one aggregate SensorInfo per sensor and
+ * epoch. Those sensors are registered with hardware FIFO batching where the device supports it,
+ * so samples arrive in bursts instead of waking the CPU one at a time; an aggregate then covers
+ * the samples delivered during the epoch.
+ *
+ * Orientation comes from the rotation vector when the device has one, otherwise it is computed
+ * from accelerometer and magnetometer pairs. Either way the inertial path works in preallocated
+ * buffers and allocates nothing per event.
+ *
+ * Samples are uploaded with their sensor timestamps. MotionState and LocationFusion are told the
+ * time a sample was taken in elapsedRealtime, which sensor timestamps only share on some devices
+ * before API 24. The offset between the two clocks is estimated as the smallest seen when samples are delivered,
+ * i.e. from the sample that waited least, over windows long enough to include a FIFO flush.
+ */
+class SensorSource implements CollectionEngine.Source, SensorEventListener {
+    private final Context context;
+    private final int maxReportLatencyUs;
+    private final MotionState motion;
+    private final LocationFusion fusion;
+    private SensorManager mSensorManager;
+    private CollectionEngine.EventSink sink;
+
+    // One per registered environmental or inertial sensor, published by start().
+    // The aggregates themselves are only touched on the ingest thread.
+    private volatile SensorAggregate[] aggregates = new SensorAggregate[0];
+
+    // Inertial samples of the current epoch, drained into it as packed series
+    private final InertialRing accelerationRing;
+    private final InertialRing orientationRing;
+
+    // Owned copies of the latest readings. Only touched on the ingest thread.
+    private final float[] gravity = new float[3];
+    private final float[] geomagnetic = new float[3];
+    private boolean hasGravity = false;
+    private boolean hasGeomagnetic = false;
+    // Some devices reject rotation vectors with more than 4 values
+    private final float[] rotationVector = new float[4];
+    private final float[] rotationVector3 = new float[3];
+    private final float[] rotationMatrix = new float[9];
+    private final float[] inclinationMatrix = new float[9];
+    // Azimuth, pitch and roll in radians
+    private final float[] orientation = new float[3];
+
+    // Sensor timestamp to elapsedRealtime offset. Only touched on the ingest thread.
+    private final long offsetWindowNanos;
+    private long offsetNanos = Long.MAX_VALUE;
+    private long windowOffsetNanos = Long.MAX_VALUE;
+    private long windowEndNanos = 0;
+
+    // Step counters values
+    private int stepsCounted = 0;
+    private int lastStepsCounted = 0;
+    private int stepsDetected = 0;
+
+    /**
+     * @param maxReportLatencyMs how long batched samples may wait in the sensor FIFO, 0 for no batching
+     * @param inertialCapacity inertial samples per sensor kept for one epoch; older ones are overwritten
+     * @param motion told about steps and linear acceleration
+     * @param fusion told about steps and absolute headings, or null
+     */
+    public SensorSource(Context context, int maxReportLatencyMs, int inertialCapacity, MotionState motion,
+                        LocationFusion fusion) {
+        this.context = context;
+        this.maxReportLatencyUs = maxReportLatencyMs * 1000;
+        this.motion = motion;
+        this.fusion = fusion;
+        offsetWindowNanos = (2L * maxReportLatencyUs + 1000000) * 1000;
+        accelerationRing = new InertialRing(Sensor.TYPE_LINEAR_ACCELERATION, inertialCapacity);
+        orientationRing = new InertialRing(Sensor.TYPE_ORIENTATION, inertialCapacity);
+    }
+
+    @Override
+    public void start(CollectionEngine.EventSink sink) {
+        this.sink = sink;
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        PackageManager pm = context.getPackageManager();
+        if (pm.hasSystemFeature(PackageManager.FEATURE_SENSOR_STEP_DETECTOR)) {
+            register(Sensor.TYPE_STEP_DETECTOR, SensorManager.SENSOR_DELAY_UI);
+        } else {
+            Log.v("Steps", "Step detector not available!");
+        }
+        if (pm.hasSystemFeature(PackageManager.FEATURE_SENSOR_STEP_COUNTER)) {
+            register(Sensor.TYPE_STEP_COUNTER, SensorManager.SENSOR_DELAY_UI);
+        } else {
+            Log.v("Steps", "Step counter not available!");
+        }
+        SensorAggregate[] registered = new SensorAggregate[6];
+        int count = 0;
+        count = registerAggregated(Sensor.TYPE_PRESSURE, 1, maxReportLatencyUs, registered, count);
+        count = registerAggregated(Sensor.TYPE_LIGHT, 1, maxReportLatencyUs, registered, count);
+        count = registerAggregated(Sensor.TYPE_AMBIENT_TEMPERATURE, 1, maxReportLatencyUs, registered, count);
+        count = registerAggregated(Sensor.TYPE_LINEAR_ACCELERATION, 3, maxReportLatencyUs, registered, count);
+        // Fusion matches each step with the heading when it was taken, which a batch delivers too late
+        int orientationLatencyUs = fusion != null ? 0 : maxReportLatencyUs;
+        // The fused rotation vector is cheaper and better than accelerometer + magnetometer on the CPU
+        if (register(Sensor.TYPE_ROTATION_VECTOR, SensorManager.SENSOR_DELAY_NORMAL, orientationLatencyUs)) {
+            Log.v("Orientation", "Using rotation vector");
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && register(Sensor.TYPE_GAME_ROTATION_VECTOR, SensorManager.SENSOR_DELAY_NORMAL, maxReportLatencyUs)) {
+            Log.v("Orientation", "Using game rotation vector, azimuth is relative");
+        } else {
+            count = registerAggregated(Sensor.TYPE_ACCELEROMETER, 3, orientationLatencyUs, registered, count);
+            count = registerAggregated(Sensor.TYPE_MAGNETIC_FIELD, 3, orientationLatencyUs, registered, count);
+        }
+        aggregates = Arrays.copyOf(registered, count);
+    }
+
+    private int registerAggregated(int type, int axes, int latencyUs, SensorAggregate[] registered, int count) {
+        if (register(type, SensorManager.SENSOR_DELAY_NORMAL, latencyUs)) {
+            registered[count++] = new SensorAggregate(type, axes);
+        }
+        return count;
+    }
+
+    private boolean register(int type, int delay) {
+        return register(type, delay, 0);
+    }
+
+    // Uses the sensor's hardware FIFO, if it has one, to deliver samples up to latencyUs late in batches
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private boolean register(int type, int delay, int latencyUs) {
+        Sensor sensor = mSensorManager.getDefaultSensor(type);
+        if (sensor == null) {
+            return false;
+        }
+        if (latencyUs > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && sensor.getFifoMaxEventCount() > 0) {
+            return mSensorManager.registerListener(this, sensor, delay, latencyUs);
+        }
+        return mSensorManager.registerListener(this, sensor, delay);
+    }
+
+    @Override
+    public void stop() {
+        mSensorManager.unregisterListener(this);
+    }
+
+    @Override
+    public final void onSensorChanged(SensorEvent event) {
+        IngestEvent e = sink.claim();
+        if (e == null) {
+            return;
+        }
+        e.type = IngestEvent.SENSOR;
+        e.time = event.timestamp;
+        e.deliveredNanos = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1
+                ? SystemClock.elapsedRealtimeNanos() : SystemClock.elapsedRealtime() * 1000000;
+        e.arg0 = event.sensor.getType();
+        int count = Math.min(event.values.length, IngestEvent.MAX_VALUES);
+        System.arraycopy(event.values, 0, e.values, 0, count);
+        e.valueCount = count;
+        sink.publish(e);
+    }
+
+    @Override
+    public final void onAccuracyChanged(Sensor sensor, int accuracy) {
+        // We don't care, but must override
+    }
+
+    @Override
+    public boolean onEvent(IngestEvent event, EpochBuilder epoch) {
+        int sensor = event.arg0;
+        // This is very chatty, Sensors 5/6 update frequently.
+        //Log.v(TAG, "Sensor reading from " + sensor);
+        for (SensorAggregate aggregate : aggregates) {
+            if (aggregate.getSensorType() == sensor) {
+                aggregate.add(event.time, event.values, event.valueCount);
+                break;
+            }
+        }
+        if (sensor == Sensor.TYPE_LINEAR_ACCELERATION) {
+            accelerationRing.add(event.time, event.values[0], event.values[1], event.values[2]);
+            motion.onLinearAcceleration(elapsedRealtimeMs(event), event.values[0], event.values[1], event.values[2]);
+        } else if (sensor == Sensor.TYPE_STEP_COUNTER) {
+            float[] values = event.values;
+            int value = -1;
+            if (event.valueCount > 0) {
+                value = (int) values[0];
+                Log.v("Steps", "Step Counter Incremented : " + value);
+                stepsCounted = value;
+            }
+        } else if (sensor == Sensor.TYPE_STEP_DETECTOR) {
+            float[] values = event.values;
+            int value = -1;
+            if (event.valueCount > 0) {
+                value = (int) values[0];
+                Log.v("Steps", "Step Detected : " + value);
+                stepsDetected = stepsDetected + 1;
+                long timeMs = elapsedRealtimeMs(event);
+                motion.onStep(timeMs);
+                if (fusion != null) {
+                    fusion.onStep(timeMs);
+                }
+            }
+        } else if (sensor == Sensor.TYPE_ROTATION_VECTOR || sensor == Sensor.TYPE_GAME_ROTATION_VECTOR) {
+            float[] vector = event.valueCount >= 4 ? rotationVector : rotationVector3;
+            System.arraycopy(event.values, 0, vector, 0, vector.length);
+            SensorManager.getRotationMatrixFromVector(rotationMatrix, vector);
+            SensorManager.getOrientation(rotationMatrix, orientation);
+            orientationRing.add(event.time, orientation[0], orientation[1], orientation[2]);
+            // The game rotation vector's azimuth is relative to where it started
+            if (fusion != null && sensor == Sensor.TYPE_ROTATION_VECTOR) {
+                fusion.onHeading(elapsedRealtimeMs(event), orientation[0]);
+            }
+        } else if (sensor == Sensor.TYPE_ACCELEROMETER) {
+            System.arraycopy(event.values, 0, gravity, 0, 3);
+            hasGravity = true;
+        } else if (sensor == Sensor.TYPE_MAGNETIC_FIELD) {
+            System.arraycopy(event.values, 0, geomagnetic, 0, 3);
+            hasGeomagnetic = true;
+        }
+        if (hasGravity && hasGeomagnetic) {
+            if (SensorManager.getRotationMatrix(rotationMatrix, inclinationMatrix, gravity, geomagnetic)) {
+                SensorManager.getOrientation(rotationMatrix, orientation);
+                orientationRing.add(event.time, orientation[0], orientation[1], orientation[2]);
+                if (fusion != null) {
+                    fusion.onHeading(elapsedRealtimeMs(event), orientation[0]);
+                }
+            }
+            // Wait for a fresh pair
+            hasGravity = false;
+            hasGeomagnetic = false;
+        }
+        return false;
+    }
+
+    // When the sample was taken, in elapsedRealtime milliseconds
+    private long elapsedRealtimeMs(IngestEvent event) {
+        long offset = event.deliveredNanos - event.time;
+        // A clock that stops in deep sleep moves the offset either way, so it is re-estimated every window
+        if (event.deliveredNanos >= windowEndNanos) {
+            if (windowOffsetNanos != Long.MAX_VALUE) {
+                offsetNanos = windowOffsetNanos;
+            }
+            windowOffsetNanos = Long.MAX_VALUE;
+            windowEndNanos = event.deliveredNanos + offsetWindowNanos;
+        }
+        windowOffsetNanos = Math.min(windowOffsetNanos, offset);
+        offsetNanos = Math.min(offsetNanos, offset);
+        return (event.time + offsetNanos) / 1000000;
+    }
+
+    @Override
+    public void onEpochEnd(EpochBuilder epoch) {
+        InertialSeries acceleration = accelerationRing.drain();
+        if (acceleration != null) {
+            epoch.addInertialSeries(acceleration);
+        }
+        InertialSeries rotation = orientationRing.drain();
+        if (rotation != null) {
+            epoch.addInertialSeries(rotation);
+        }
+        for (SensorAggregate aggregate : aggregates) {
+            SensorInfo info = aggregate.build();
+            if (info == null) {
+                continue;
+            }
+            // Readers of the scalar fields get the epoch mean
+            if (info.sensorType == Sensor.TYPE_PRESSURE) {
+                info.pressure = info.mean[0];
+            } else if (info.sensorType == Sensor.TYPE_LIGHT) {
+                info.light = info.mean[0];
+            } else if (info.sensorType == Sensor.TYPE_AMBIENT_TEMPERATURE) {
+                info.temperature = info.mean[0];
+            }
+            epoch.addSensorInfo(info);
+        }
+        SensorInfo battery = new SensorInfo();
+        battery.battery = getBatteryLevel();
+        battery.timestamp = System.currentTimeMillis();
+        epoch.addSensorInfo(battery);
+
+        int stepsThisTime = stepsCounted - lastStepsCounted;
+        lastStepsCounted = stepsCounted;
+        // Create Steps sensor object
+        SensorInfo steps = new SensorInfo();
+        steps.timestamp = System.currentTimeMillis();
+        steps.stepsCounted = stepsThisTime;
+        steps.stepsDetected = stepsDetected;
+        // Reset step counters
+        stepsDetected = 0;
+        epoch.addSensorInfo(steps);
+    }
+
+    /**
+     * Returns current battery level in range [0,1]
+     * @return float batteryPct
+     */
+    private float getBatteryLevel() {
+        float batteryPct = -1;
+        try {
+            IntentFilter ifilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+            Intent batteryStatus = context.registerReceiver(null, ifilter);
+            int level = batteryStatus.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = batteryStatus.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            batteryPct = level / (float)scale;
+        } catch (Exception e) {
+            Log.v("Battery", "Error getting battery info.");
+        }
+        return batteryPct;
+    }
+}
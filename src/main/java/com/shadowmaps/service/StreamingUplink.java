@@ -0,0 +1,334 @@
+package com.shadowmaps.service;
+
+import android.util.Log;
+
+import com.google.protobuf.nano.CodedOutputByteBufferNano;
+import com.google.protobuf.nano.MessageNano;
+import com.shadowmaps.data.TelemetrySnapshot;
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends LocationUpdates over one long-lived bidirectional stream instead of one POST per epoch.
+ * Each epoch is written as a varint length-delimited frame and the server answers with
+ * length-delimited LocationImprovement frames as soon as it has them.
+ *
+ * Every frame carries a sequence number (LocationUpdate.seq). Frames stay in a bounded replay
+ * window until the server acknowledges them through LocationImprovement.ack_seq; after a
+ * reconnect the window is replayed, so the stream resumes from the last acknowledged epoch.
+ *
+ * Improvements are delivered in order on a thread of their own, never on the connection's
+ * callback thread, which may be shared with other requests.
+ */
+class StreamingUplink {
+
+    /**
+     * A single bidirectional byte stream, e.g. an HTTP/2 or QUIC stream.
+     */
+    public interface Connection {
+        /**
+         * Opens the stream. Bytes and the eventual close are reported to receiver.
+         * @param resumeAfter the last sequence number acknowledged on a previous stream
+         */
+        void open(long resumeAfter, Receiver receiver);
+
+        /**
+         * Queues bytes to be written. May be called before the stream is fully open.
+         */
+        void write(ByteBuffer frame);
+
+        void close();
+    }
+
+    public interface Connector {
+        Connection newConnection();
+    }
+
+    public interface Receiver {
+        void onBytes(ByteBuffer chunk);
+
+        void onClosed(Throwable error);
+    }
+
+    private static final String TAG = "ShadowMapsStream";
+    // LocationUpdate.seq, appended to the already-encoded epoch
+    private static final int FIELD_SEQ = 13;
+    private static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+    private static final long MIN_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30000;
+
+    private static final class Frame {
+        final long seq;
+        final ByteBuffer bytes;
+        final long trace;
+        boolean written = false;
+
+        Frame(long seq, ByteBuffer bytes, long trace) {
+            this.seq = seq;
+            this.bytes = bytes;
+            this.trace = trace;
+        }
+    }
+
+    private final Connector connector;
+    private final RealtimeUploader.Listener listener;
+    private final Telemetry telemetry;
+    private final int replayWindow;
+    private final ArrayDeque<Frame> unacked = new ArrayDeque<>();
+    private final FrameDecoder decoder = new FrameDecoder(MAX_FRAME_SIZE);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ShadowMapsStream");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final ExecutorService delivery = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ShadowMapsStreamDelivery");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Guarded by this
+    private Connection connection;
+    private Receiver currentReceiver;
+    private boolean running = true;
+    private boolean reconnectScheduled = false;
+    private long nextSeq = 1;
+    private long lastAcked = 0;
+    private long backoffMs = MIN_BACKOFF_MS;
+    private long framesSent = 0;
+    private long framesDropped = 0;
+    private long improvements = 0;
+    private long reconnects = 0;
+
+    /**
+     * @param replayWindow number of unacknowledged epochs kept for resending after a reconnect
+     */
+    public StreamingUplink(Connector connector, RealtimeUploader.Listener listener, Telemetry telemetry,
+                           int replayWindow) {
+        this.connector = connector;
+        this.listener = listener;
+        this.telemetry = telemetry;
+        this.replayWindow = Math.max(1, replayWindow);
+    }
+
+    public synchronized void start() {
+        connect();
+    }
+
+    /**
+     * Frames an encoded LocationUpdate, assigns it the next sequence number and writes it to the stream.
+     * @param trace the epoch's Telemetry trace
+     */
+    public synchronized void submit(byte[] update, long trace) {
+        if (!running) {
+            return;
+        }
+        long seq = nextSeq++;
+        // Appending a field to an encoded message is equivalent to setting it, so the epoch is not re-encoded.
+        int bodyLength = update.length + CodedOutputByteBufferNano.computeUInt64Size(FIELD_SEQ, seq);
+        ByteBuffer frame = ByteBuffer.allocate(FrameDecoder.prefixSize(bodyLength) + bodyLength);
+        FrameDecoder.writePrefix(frame, bodyLength);
+        frame.put(update);
+        try {
+            byte[] seqField = new byte[bodyLength - update.length];
+            CodedOutputByteBufferNano.newInstance(seqField).writeUInt64(FIELD_SEQ, seq);
+            frame.put(seqField);
+        } catch (IOException e) {
+            // Cannot happen, the array is sized exactly
+            throw new IllegalStateException(e);
+        }
+        frame.flip();
+
+        if (unacked.size() >= replayWindow) {
+            telemetry.fail(unacked.pollFirst().trace);
+            framesDropped++;
+        }
+        Frame f = new Frame(seq, frame, trace);
+        unacked.addLast(f);
+        if (connection != null) {
+            write(f);
+        }
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+        scheduler.shutdownNow();
+        delivery.shutdown();
+        Log.v(TAG, "Stream closed: " + this);
+    }
+
+    // Must hold this
+    private void connect() {
+        if (!running) {
+            return;
+        }
+        decoder.reset();
+        final Connection c = connector.newConnection();
+        final Receiver receiver = new Receiver() {
+            @Override
+            public void onBytes(ByteBuffer chunk) {
+                onStreamBytes(this, chunk);
+            }
+
+            @Override
+            public void onClosed(Throwable error) {
+                onStreamClosed(this, error);
+            }
+        };
+        connection = c;
+        currentReceiver = receiver;
+        c.open(lastAcked, receiver);
+        // Replay everything the server has not acknowledged yet
+        for (Frame f : unacked) {
+            write(f);
+        }
+    }
+
+    // Must hold this
+    private void write(Frame f) {
+        if (!f.written) {
+            f.written = true;
+            telemetry.mark(f.trace, TelemetrySnapshot.STAGE_SEND);
+            telemetry.onSent(f.bytes.remaining());
+        }
+        connection.write(f.bytes.duplicate());
+        framesSent++;
+    }
+
+    private void onStreamBytes(Receiver from, ByteBuffer chunk) {
+        final long arrivedNanos = System.nanoTime();
+        final ArrayList<LocationImprovement> received = new ArrayList<>(1);
+        final ArrayList<Long> traces = new ArrayList<>(1);
+        synchronized (this) {
+            if (from != currentReceiver) {
+                return;
+            }
+            try {
+                decoder.append(chunk, new FrameDecoder.FrameHandler() {
+                    @Override
+                    public void onFrame(byte[] data, int offset, int length) throws IOException {
+                        LocationImprovement improvement = MessageNano.mergeFrom(new LocationImprovement(), data, offset, length);
+                        long trace = traceOf(improvement.ackSeq);
+                        telemetry.mark(trace, TelemetrySnapshot.STAGE_FIRST_BYTE, arrivedNanos);
+                        telemetry.mark(trace, TelemetrySnapshot.STAGE_PARSE);
+                        onAck(improvement);
+                        received.add(improvement);
+                        traces.add(trace);
+                    }
+                });
+            } catch (IOException e) {
+                Log.v(TAG, "Bad frame from server: " + e.getMessage());
+                connection.close();
+                onStreamClosed(from, e);
+            }
+        }
+        if (received.isEmpty()) {
+            return;
+        }
+        // Deliver outside the lock and off the connection's thread, so a slow listener holds up
+        // neither writes nor reads
+        try {
+            delivery.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < received.size(); i++) {
+                        listener.onImprovement(received.get(i));
+                        telemetry.complete(traces.get(i), received.get(i));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Stopped meanwhile
+        }
+    }
+
+    // Must hold this. The improvement answering a frame acknowledges it.
+    private long traceOf(long seq) {
+        for (Frame f : unacked) {
+            if (f.seq == seq) {
+                return f.trace;
+            }
+        }
+        return 0;
+    }
+
+    // Must hold this
+    private void onAck(LocationImprovement improvement) {
+        improvements++;
+        // A successful exchange means the link is healthy again
+        backoffMs = MIN_BACKOFF_MS;
+        if (improvement.ackSeq > lastAcked) {
+            lastAcked = improvement.ackSeq;
+            Iterator<Frame> it = unacked.iterator();
+            while (it.hasNext() && it.next().seq <= lastAcked) {
+                it.remove();
+            }
+        }
+    }
+
+    private synchronized void onStreamClosed(Receiver from, Throwable error) {
+        if (from != currentReceiver) {
+            return;
+        }
+        connection = null;
+        currentReceiver = null;
+        if (!running || reconnectScheduled) {
+            return;
+        }
+        Log.v(TAG, "Stream closed, reconnecting in " + backoffMs + " ms: " + (error == null ? "eof" : error.getMessage()));
+        reconnectScheduled = true;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (StreamingUplink.this) {
+                    reconnectScheduled = false;
+                    reconnects++;
+                    connect();
+                }
+            }
+        }, backoffMs, TimeUnit.MILLISECONDS);
+        backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+    }
+
+    public synchronized long getLastAcked() {
+        return lastAcked;
+    }
+
+    /**
+     * @return epochs pushed out of the replay window before they were acknowledged
+     */
+    public synchronized long getDroppedCount() {
+        return framesDropped;
+    }
+
+    public synchronized int getUnackedCount() {
+        return unacked.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "sent=" + framesSent + " unacked=" + unacked.size() + " dropped=" + framesDropped
+                + " improvements=" + improvements + " reconnects=" + reconnects + " lastAcked=" + lastAcked;
+    }
+}
@@ -0,0 +1,178 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.data.TelemetrySnapshot;
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+/**
+ * Times every epoch through the realtime pipeline and counts what passes through it.
+ *
+ * begin() gives an epoch a trace id, which travels with it to the uplink and back with its
+ * improvement. Each stage marks the trace with System.nanoTime(), and the time since the
+ * previous mark goes into that stage's histogram. Traces live in a fixed ring of slots, so
+ * memory stays constant; an epoch that never gets an answer just has its slot reused.
+ *
+ * Responses carrying LocationImprovement.server_time also give a clock offset sample, taken
+ * midway between send and first byte. The sample with the shortest round trip among the last
+ * CLOCK_SAMPLES is used, since it has the smallest error bound.
+ */
+class Telemetry {
+    // Epochs that can be in flight at once without losing their timing
+    static final int TRACE_SLOTS = 64;
+    static final int CLOCK_SAMPLES = 16;
+    private static final int STAGES = TelemetrySnapshot.STAGE_COUNT;
+
+    private final long startNanos = System.nanoTime();
+
+    // Guarded by this
+    private final long[] traceIds = new long[TRACE_SLOTS];
+    private final long[] stamps = new long[TRACE_SLOTS * STAGES];
+    private final LatencyHistogram[] stages = new LatencyHistogram[STAGES];
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+    private long nextTrace = 1;
+    private long epochs = 0;
+    private long encodedBytes = 0;
+    private long sentEpochs = 0;
+    private long sentBytes = 0;
+    private long improvements = 0;
+    private long failures = 0;
+    private long lostTraces = 0;
+    private final long[] clockOffsets = new long[CLOCK_SAMPLES];
+    private final long[] clockRoundTrips = new long[CLOCK_SAMPLES];
+    private int clockSamples = 0;
+    private int clockBest = -1;
+
+    public Telemetry() {
+        for (int i = 0; i < STAGES; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Starts timing an epoch.
+     * @param captureNanos System.nanoTime() when the event that completed the epoch was published
+     * @return the epoch's trace id
+     */
+    public synchronized long begin(long captureNanos) {
+        long trace = nextTrace++;
+        int slot = slot(trace);
+        if (traceIds[slot] != 0) {
+            lostTraces++;
+        }
+        traceIds[slot] = trace;
+        for (int i = 0; i < STAGES; i++) {
+            stamps[slot * STAGES + i] = 0;
+        }
+        stamps[slot * STAGES + TelemetrySnapshot.STAGE_CAPTURE] = captureNanos;
+        return trace;
+    }
+
+    public void mark(long trace, int stage) {
+        mark(trace, stage, System.nanoTime());
+    }
+
+    public synchronized void mark(long trace, int stage, long nanos) {
+        int slot = slot(trace);
+        if (trace <= 0 || traceIds[slot] != trace) {
+            return;
+        }
+        int base = slot * STAGES;
+        stamps[base + stage] = nanos;
+        for (int previous = stage - 1; previous >= 0; previous--) {
+            if (stamps[base + previous] != 0) {
+                stages[stage].record((nanos - stamps[base + previous]) / 1000);
+                return;
+            }
+        }
+    }
+
+    public synchronized void onEncoded(int bytes) {
+        epochs++;
+        encodedBytes += bytes;
+    }
+
+    public synchronized void onSent(int bytes) {
+        sentEpochs++;
+        sentBytes += bytes;
+    }
+
+    /**
+     * Marks the trace dispatched and ends it.
+     */
+    public void complete(long trace, LocationImprovement improvement) {
+        long now = System.nanoTime();
+        long wallNow = System.currentTimeMillis();
+        synchronized (this) {
+            improvements++;
+            mark(trace, TelemetrySnapshot.STAGE_DISPATCH, now);
+            int slot = slot(trace);
+            if (trace <= 0 || traceIds[slot] != trace) {
+                return;
+            }
+            int base = slot * STAGES;
+            endToEnd.record((now - stamps[base + TelemetrySnapshot.STAGE_CAPTURE]) / 1000);
+            long sent = stamps[base + TelemetrySnapshot.STAGE_SEND];
+            long received = stamps[base + TelemetrySnapshot.STAGE_FIRST_BYTE];
+            if (received == 0) {
+                received = stamps[base + TelemetrySnapshot.STAGE_PARSE];
+            }
+            if (improvement.serverTime != 0 && sent != 0 && received > sent) {
+                // Wall clock times of send and receive, from the monotonic stamps
+                long midpointMs = wallNow - (now - (sent + received) / 2) / 1000000;
+                addClockSample(improvement.serverTime - midpointMs, (received - sent) / 1000000);
+            }
+            traceIds[slot] = 0;
+        }
+    }
+
+    /**
+     * Ends a trace whose send failed or got no improvement.
+     */
+    public synchronized void fail(long trace) {
+        failures++;
+        int slot = slot(trace);
+        if (trace > 0 && traceIds[slot] == trace) {
+            traceIds[slot] = 0;
+        }
+    }
+
+    /**
+     * @return wallMs on the server's clock, or wallMs itself until an offset is known
+     */
+    public synchronized long toServerTime(long wallMs) {
+        return clockBest < 0 ? wallMs : wallMs + clockOffsets[clockBest];
+    }
+
+    public synchronized TelemetrySnapshot snapshot() {
+        TelemetrySnapshot.Latency[] latencies = new TelemetrySnapshot.Latency[STAGES];
+        for (int i = 0; i < STAGES; i++) {
+            latencies[i] = stages[i].snapshot();
+        }
+        boolean hasOffset = clockBest >= 0;
+        return new TelemetrySnapshot((System.nanoTime() - startNanos) / 1000000, latencies, endToEnd.snapshot(),
+                epochs, encodedBytes, sentEpochs, sentBytes, improvements, failures, lostTraces, hasOffset,
+                hasOffset ? clockOffsets[clockBest] : 0, hasOffset ? clockRoundTrips[clockBest] / 2 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+
+    // Holds the lock
+    private void addClockSample(long offsetMs, long roundTripMs) {
+        int i = clockSamples++ % CLOCK_SAMPLES;
+        clockOffsets[i] = offsetMs;
+        clockRoundTrips[i] = roundTripMs;
+        clockBest = 0;
+        int filled = Math.min(clockSamples, CLOCK_SAMPLES);
+        for (int j = 1; j < filled; j++) {
+            if (clockRoundTrips[j] < clockRoundTrips[clockBest]) {
+                clockBest = j;
+            }
+        }
+    }
+
+    private static int slot(long trace) {
+        return (int) (trace & (TRACE_SLOTS - 1));
+    }
+}
@@ -0,0 +1,90 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.WiFiInfo;
+
+import java.util.Arrays;
+
+/**
+ * Expands the dictionary-encoded Wi-Fi scans written by WifiSource back into one WiFiInfo,
+ * with a BSSID string, per access point. Epochs of a session must be decoded in order.
+ * A keyframe forgets every id. After a gap in the scan numbers, or before the first keyframe,
+ * the ids may belong to a dictionary this decoder never saw, so whole scans are dropped until
+ * the next keyframe.
+ */
+class WifiDecoder {
+    private long[] macs = new long[256];
+    private int[] rssis = new int[256];
+    private int[] frequencies = new int[256];
+    private long[] times = new long[256];
+    // Number of the epoch that last sent each id
+    private int[] sentIn = new int[256];
+    private int epochs = 0;
+    private int dropped = 0;
+    // Number of the last scan decoded, or -1 while waiting for a keyframe
+    private long lastScanSeq = -1;
+
+    /**
+     * Replaces lu.wifiNetworks with the full scan. Epochs without wifiIds are left as they are.
+     */
+    public void decode(LocationUpdate lu) {
+        int[] ids = lu.wifiIds;
+        if (ids.length == 0) {
+            return;
+        }
+        if (lu.wifiKeyframe) {
+            Arrays.fill(macs, 0);
+        } else if (lastScanSeq < 0 || lu.wifiScanSeq != lastScanSeq + 1) {
+            lastScanSeq = -1;
+            dropped += ids.length;
+            lu.wifiNetworks = WiFiInfo.emptyArray();
+            lu.wifiIds = new int[0];
+            return;
+        }
+        lastScanSeq = lu.wifiScanSeq;
+        epochs++;
+        for (WiFiInfo ap : lu.wifiNetworks) {
+            int id = ap.id;
+            if (id >= macs.length) {
+                int capacity = Math.max(id + 1, macs.length * 2);
+                macs = Arrays.copyOf(macs, capacity);
+                rssis = Arrays.copyOf(rssis, capacity);
+                frequencies = Arrays.copyOf(frequencies, capacity);
+                times = Arrays.copyOf(times, capacity);
+                sentIn = Arrays.copyOf(sentIn, capacity);
+            }
+            if (ap.mac != 0) {
+                macs[id] = ap.mac;
+            }
+            rssis[id] = ap.rssi;
+            frequencies[id] = ap.frequency;
+            times[id] = ap.timestamp;
+            sentIn[id] = epochs;
+        }
+
+        WiFiInfo[] scan = new WiFiInfo[ids.length];
+        int count = 0;
+        for (int id : ids) {
+            if (id >= macs.length || macs[id] == 0) {
+                dropped++;
+                continue;
+            }
+            WiFiInfo ap = new WiFiInfo();
+            ap.bssid = BssidDictionary.format(macs[id]);
+            ap.rssi = rssis[id];
+            ap.frequency = frequencies[id];
+            // Unchanged access points were seen again in this scan
+            ap.timestamp = sentIn[id] == epochs ? times[id] : lu.wifiScanTime;
+            scan[count++] = ap;
+        }
+        lu.wifiNetworks = count == scan.length ? scan : Arrays.copyOf(scan, count);
+        lu.wifiIds = new int[0];
+    }
+
+    /**
+     * @return access points dropped because their id was not known or their scan followed a gap
+     */
+    public int getDroppedCount() {
+        return dropped;
+    }
+}
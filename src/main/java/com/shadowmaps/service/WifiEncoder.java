@@ -0,0 +1,94 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.WiFiInfo;
+
+import java.util.Arrays;
+
+/**
+ * Encodes Wi-Fi scans as a delta against what was already sent. Each BSSID gets a session-local
+ * id from a BssidDictionary the first time it is seen, and the epoch carries the ids of every AP
+ * in the scan, plus a WiFiInfo only for APs that are new or whose signal changed. New APs carry
+ * their BSSID as a 48-bit mac. A keyframe sends every AP in full under freshly assigned ids, so
+ * nothing after it depends on earlier epochs. Keyframes are sent every KEYFRAME_SCANS scans and
+ * after requestKeyframe(). Scans are numbered and keyframes flagged, so a receiver that missed a
+ * scan knows to ignore ids until the next keyframe. WifiDecoder reverses the encoding.
+ *
+ * Only touched on the ingest thread, except for requestKeyframe().
+ */
+class WifiEncoder {
+    // Smaller RSSI changes are within scan-to-scan noise and are not sent
+    static final int RSSI_CHANGE_DB = 3;
+    static final int KEYFRAME_SCANS = 16;
+    // Ids are reassigned from 0 once this many BSSIDs have been seen
+    static final int MAX_IDS = 1 << 16;
+
+    // What the receiver knows about each id
+    private final BssidDictionary dictionary = new BssidDictionary(256);
+    private int[] sentRssis = new int[256];
+    private int[] sentFrequencies = new int[256];
+    private int scansSinceKeyframe = KEYFRAME_SCANS;
+    private int scanSeq = 0;
+    private volatile boolean keyframeRequested = false;
+
+    /**
+     * Makes the next scan a keyframe. May be called from any thread.
+     */
+    public void requestKeyframe() {
+        keyframeRequested = true;
+    }
+
+    /**
+     * Adds the first count access points of a scan to epoch.
+     */
+    public void encode(long[] macs, int[] rssis, int[] frequencies, long[] times, int count, long scanTime,
+                       EpochBuilder epoch) {
+        boolean keyframe = ++scansSinceKeyframe >= KEYFRAME_SCANS;
+        if (keyframeRequested) {
+            keyframeRequested = false;
+            keyframe = true;
+        }
+        // Ids from before a keyframe may be unknown to its receiver, so they are all assigned again
+        if (!keyframe && dictionary.size() + count > MAX_IDS) {
+            keyframe = true;
+        }
+        if (keyframe) {
+            dictionary.clear();
+            scansSinceKeyframe = 0;
+        }
+
+        int[] ids = new int[count];
+        WiFiInfo[] changed = new WiFiInfo[count];
+        int changedCount = 0;
+        for (int i = 0; i < count; i++) {
+            long mac = macs[i];
+            int id = dictionary.get(mac);
+            boolean added = id < 0;
+            if (added) {
+                id = dictionary.add(mac);
+                if (id == sentRssis.length) {
+                    sentRssis = Arrays.copyOf(sentRssis, id * 2);
+                    sentFrequencies = Arrays.copyOf(sentFrequencies, id * 2);
+                }
+            }
+            ids[i] = id;
+            int rssi = rssis[i];
+            int frequency = frequencies[i];
+            if (added || keyframe || frequency != sentFrequencies[id]
+                    || Math.abs(rssi - sentRssis[id]) >= RSSI_CHANGE_DB) {
+                WiFiInfo ap = new WiFiInfo();
+                ap.id = id;
+                if (added || keyframe) {
+                    ap.mac = mac;
+                }
+                ap.rssi = rssi;
+                ap.frequency = frequency;
+                ap.timestamp = times[i];
+                changed[changedCount++] = ap;
+                sentRssis[id] = rssi;
+                sentFrequencies[id] = frequency;
+            }
+        }
+        epoch.addWiFiInfos(Arrays.copyOf(changed, changedCount));
+        epoch.setWiFiScan(ids, scanTime, ++scanSeq, keyframe);
+    }
+}
@@ -0,0 +1,248 @@
+package com.shadowmaps.service;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.wifi.ScanResult;
+import android.net.wifi.WifiManager;
+import android.os.Build;
+import android.os.SystemClock;
+
+import android.util.Log;
+
+import com.shadowmaps.util.api.protobufs.LocationEstimate;
+
+import java.util.List;
+
+/**
+ * Access points from Wi-Fi scans. The receiver only publishes a marker; scan results are read
+ * on the ingest thread, and results older than maxResultAgeMs are dropped.
+ *
+ * Scans are requested at the end of an epoch when the last scan, ours or another app's, is older
+ * than the current interval: movingIntervalMs while MotionState says the device moves, doubling
+ * up to maxIntervalMs with every scan while it is stationary.
+ *
+ * Scans are sent as a delta against what was already sent, by a WifiEncoder. Keyframes are
+ * requested with requestKeyframe() when the realtime receiver may have lost an epoch and when a
+ * new journal segment begins, so every batch decodes on its own.
+ */
+class WifiSource implements CollectionEngine.Source {
+    private static final String TAG = "WiFi";
+
+    private final Context context;
+    private final MotionState motion;
+    private final long movingIntervalMs;
+    private final long maxIntervalMs;
+    private final long maxResultAgeMs;
+    private WifiManager wifiManager;
+    private CollectionEngine.EventSink sink;
+
+    // Scheduling, in SystemClock.elapsedRealtime() time
+    private long startMs;
+    private long lastScanMs;
+    private long intervalMs;
+
+    // Metrics, written on the ingest thread
+    private volatile long scansRequested = 0;
+    private volatile long scansRefused = 0;
+    private volatile long scansReceived = 0;
+    private volatile long resultsAccepted = 0;
+    private volatile long resultsStale = 0;
+    private volatile long resultAgeSumMs = 0;
+
+    // Latest scan not yet added to an epoch. Only touched on the ingest thread.
+    private long[] scanMacs = new long[64];
+    private int[] scanRssis = new int[64];
+    private int[] scanFrequencies = new int[64];
+    private long[] scanTimes = new long[64];
+    private int scanCount = 0;
+    private long scanTime = 0;
+    private long lastScanTime = 0;
+
+    private final WifiEncoder encoder = new WifiEncoder();
+
+    // Request the results of any Wi-Fi scans be delivered to us
+    private final BroadcastReceiver wifiReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context c, Intent intent) {
+            IngestEvent e = sink.claim();
+            if (e == null) {
+                return;
+            }
+            e.type = IngestEvent.WIFI_SCAN;
+            e.time = System.currentTimeMillis();
+            sink.publish(e);
+        }
+    };
+
+    /**
+     * @param motion decides between the moving and the stationary scan interval
+     * @param movingIntervalMs time between scans while moving
+     * @param maxIntervalMs longest time between scans while stationary
+     * @param maxResultAgeMs results last seen longer ago than this are dropped
+     */
+    public WifiSource(Context context, MotionState motion, long movingIntervalMs, long maxIntervalMs,
+                      long maxResultAgeMs) {
+        this.context = context;
+        this.motion = motion;
+        this.movingIntervalMs = movingIntervalMs;
+        this.maxIntervalMs = Math.max(maxIntervalMs, movingIntervalMs);
+        this.maxResultAgeMs = maxResultAgeMs;
+    }
+
+    @Override
+    public void start(CollectionEngine.EventSink sink) {
+        this.sink = sink;
+        startMs = SystemClock.elapsedRealtime();
+        lastScanMs = startMs - maxIntervalMs;
+        intervalMs = movingIntervalMs;
+        wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        context.registerReceiver(wifiReceiver, new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
+    }
+
+    @Override
+    public void stop() {
+        context.unregisterReceiver(wifiReceiver);
+    }
+
+    /**
+     * Makes the next scan a keyframe. May be called from any thread.
+     */
+    public void requestKeyframe() {
+        encoder.requestKeyframe();
+    }
+
+    @Override
+    public boolean onEvent(IngestEvent event, EpochBuilder epoch) {
+        readScan();
+        return false;
+    }
+
+    @Override
+    public void onEpochEnd(EpochBuilder epoch) {
+        schedule(epoch);
+        // Results are broadcast again when nothing was rescanned; those add nothing
+        if (scanCount == 0 || scanTime <= lastScanTime) {
+            return;
+        }
+        lastScanTime = scanTime;
+        encoder.encode(scanMacs, scanRssis, scanFrequencies, scanTimes, scanCount, scanTime, epoch);
+    }
+
+    private void schedule(EpochBuilder epoch) {
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < epoch.getEstimateCount(); i++) {
+            LocationEstimate le = epoch.getEstimate(i);
+            motion.onSpeed(now, le.speed);
+        }
+        if (motion.isMoving(now)) {
+            intervalMs = movingIntervalMs;
+        }
+        if (now - lastScanMs < intervalMs) {
+            return;
+        }
+        lastScanMs = now;
+        if (!motion.isMoving(now)) {
+            intervalMs = Math.min(intervalMs * 2, maxIntervalMs);
+        }
+        scansRequested++;
+        // Refused when scanning is throttled or Wi-Fi is off; the next epoch retries after intervalMs
+        if (!wifiManager.startScan()) {
+            scansRefused++;
+        }
+    }
+
+    public long getScansRequested() {
+        return scansRequested;
+    }
+
+    public long getScansRefused() {
+        return scansRefused;
+    }
+
+    /**
+     * @return scan results received per minute since start, including scans other apps requested
+     */
+    public double getScanRatePerMinute() {
+        long elapsed = SystemClock.elapsedRealtime() - startMs;
+        return elapsed <= 0 ? 0 : scansReceived * 60000.0 / elapsed;
+    }
+
+    /**
+     * @return mean age, when read, of the results that were kept
+     */
+    public long getMeanResultAgeMs() {
+        long accepted = resultsAccepted;
+        return accepted == 0 ? 0 : resultAgeSumMs / accepted;
+    }
+
+    public long getStaleResultCount() {
+        return resultsStale;
+    }
+
+    @Override
+    public String toString() {
+        return TAG + ": " + scansRequested + " scans requested, " + scansRefused + " refused, "
+                + String.format("%.2f", getScanRatePerMinute()) + " received/min, mean result age "
+                + getMeanResultAgeMs() + "ms, " + resultsStale + " stale results dropped";
+    }
+
+    // Copies the current scan results into primitives, replacing a scan no epoch has taken yet
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private void readScan() {
+        List<ScanResult> results = wifiManager.getScanResults();
+        if (results == null || results.isEmpty()) {
+            return;
+        }
+        final int size = results.size();
+        if (size > scanMacs.length) {
+            int capacity = Math.max(size, scanMacs.length * 2);
+            scanMacs = new long[capacity];
+            scanRssis = new int[capacity];
+            scanFrequencies = new int[capacity];
+            scanTimes = new long[capacity];
+        }
+        long elapsed = SystemClock.elapsedRealtime();
+        long now = System.currentTimeMillis();
+        long bootTime = now - elapsed;
+        lastScanMs = elapsed;
+        scansReceived++;
+        scanCount = 0;
+        scanTime = 0;
+        long ageSum = 0;
+        for (int i = 0; i < size; i++) {
+            ScanResult result = results.get(i);
+            // Note that we use BSSIDs (AP MAC Address), not human readable SSIDs.
+            long mac = BssidDictionary.parse(result.BSSID);
+            if (mac < 0) {
+                continue;
+            }
+            scanMacs[scanCount] = mac;
+            // Signal strength
+            scanRssis[scanCount] = result.level;
+            scanFrequencies[scanCount] = result.frequency;
+            // We would like to know exactly when this scan took place
+            long time;
+            if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                time = bootTime + (result.timestamp / 1000);
+            } else {
+                time = now;
+            }
+            if (now - time > maxResultAgeMs) {
+                resultsStale++;
+                continue;
+            }
+            ageSum += now - time;
+            scanTimes[scanCount] = time;
+            scanTime = Math.max(scanTime, time);
+            scanCount++;
+        }
+        resultsAccepted += scanCount;
+        resultAgeSumMs += ageSum;
+        if (scanCount == 0) {
+            Log.v(TAG, "Scan results are all older than " + maxResultAgeMs + "ms");
+        }
+    }
+}
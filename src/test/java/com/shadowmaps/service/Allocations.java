@@ -0,0 +1,18 @@
+package com.shadowmaps.service;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated by the current thread, from HotSpot's per-thread allocation counter.
+ */
+final class Allocations {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Allocations() {
+    }
+
+    static long current() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
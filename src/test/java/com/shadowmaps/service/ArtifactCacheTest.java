@@ -0,0 +1,128 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the cache on a plain JVM against a temporary directory. Nothing here decodes a bitmap.
+ */
+public class ArtifactCacheTest {
+    // Content hashes are 64-bit, so half of them have the top bit set
+    private static final long TOP_BIT_HASH = 0x8000000000000001L;
+    private static final long OTHER_HASH = 0x2L;
+    private static final long TIMEOUT_MS = 10000;
+
+    private File dir;
+    private ArtifactCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("artifacts", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        if (cache != null) {
+            cache.close();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void parseKeyReversesFileNames() {
+        for (long key : new long[]{1, 0xabcdefL, Long.MAX_VALUE, Long.MIN_VALUE, TOP_BIT_HASH, -1}) {
+            assertEquals(key, ArtifactCache.parseKey(Long.toHexString(key)));
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void parseKeyRejectsOtherNames() {
+        ArtifactCache.parseKey("journal_1");
+    }
+
+    @Test
+    public void evictedArtifactIsNoLongerAdvertised() throws Exception {
+        cache = new ArtifactCache(dir, 1 << 20, 300, 8);
+        cache.resolve(response(TOP_BIT_HASH, 200));
+        File first = awaitFile(TOP_BIT_HASH);
+        // Make it the least recently used file regardless of the file system's time resolution
+        assertTrue(first.setLastModified(System.currentTimeMillis() - 60000));
+        cache.resolve(response(OTHER_HASH, 200));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (cache.getAdvertisedHashes().length != 1) {
+            assertTrue("still advertised: " + Arrays.toString(cache.getAdvertisedHashes()),
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertTrue(!first.exists());
+        assertArrayEquals(new long[]{OTHER_HASH}, cache.getAdvertisedHashes());
+    }
+
+    @Test
+    public void missIsNoLongerAdvertised() throws Exception {
+        // Nothing stays in memory, so a deleted file is a miss
+        cache = new ArtifactCache(dir, 0, 1 << 20, 8);
+        cache.resolve(response(TOP_BIT_HASH, 200));
+        cache.resolve(response(OTHER_HASH, 200));
+        assertTrue(awaitFile(TOP_BIT_HASH).delete());
+        assertArrayEquals(new long[]{OTHER_HASH, TOP_BIT_HASH}, cache.getAdvertisedHashes());
+
+        LocationImprovement omitted = response(TOP_BIT_HASH, 0);
+        cache.resolve(omitted);
+        assertEquals(0, omitted.skyview.length);
+        assertArrayEquals(new long[]{OTHER_HASH}, cache.getAdvertisedHashes());
+    }
+
+    @Test
+    public void omittedArtifactIsFilledIn() throws Exception {
+        cache = new ArtifactCache(dir, 0, 1 << 20, 8);
+        cache.resolve(response(TOP_BIT_HASH, 200));
+        awaitFile(TOP_BIT_HASH);
+        LocationImprovement omitted = response(TOP_BIT_HASH, 0);
+        cache.resolve(omitted);
+        assertEquals(200, omitted.skyview.length);
+        assertArrayEquals(new long[]{TOP_BIT_HASH}, cache.getAdvertisedHashes());
+    }
+
+    // A response with a skyview of size bytes, or one the server left out because it was advertised
+    private static LocationImprovement response(long hash, int size) {
+        LocationImprovement response = new LocationImprovement();
+        response.lat = 40.7;
+        response.lon = -74.0;
+        response.skyviewHash = hash;
+        if (size > 0) {
+            response.skyview = new byte[size];
+            Arrays.fill(response.skyview, (byte) hash);
+        }
+        return response;
+    }
+
+    // Written on the cache's own thread
+    private File awaitFile(long hash) throws InterruptedException {
+        File file = new File(dir, Long.toHexString(hash) + ".png");
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!file.isFile()) {
+            assertTrue(file + " not written", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,304 @@
+package com.shadowmaps.service;
+
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads batch files to an in-process stand-in for the resumable upload endpoint, which answers
+ * in an OkHttp interceptor so nothing goes over the network.
+ */
+public class BatchUploaderTest {
+    private static final String URL = "http://uploads.test/batches/";
+    private static final String API_KEY = "key";
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Random bytes do not compress, so this gzips to three chunks
+    private static final int BATCH_SIZE = 150000;
+    private static final long TIMEOUT_MS = 10000;
+
+    private final StandInUploadServer server = new StandInUploadServer();
+    private File dir;
+    private BatchUploader uploader;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("batches", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        if (uploader != null) {
+            uploader.stop();
+        }
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void fileIsSentInChunksAndDeleted() throws Exception {
+        byte[] batch = writeBatch("batch-1.smpb2");
+        // Still being written by BatchExporter
+        File partial = new File(dir, "batch-2.smpb2.tmp");
+        new FileOutputStream(partial).close();
+
+        uploader = newUploader();
+        uploader.start();
+        awaitDeleted(new File(dir, "batch-1.smpb2"));
+
+        int length = server.getLength("batch-1.smpb2");
+        assertEquals(Arrays.asList(
+                "bytes 0-65535/" + length,
+                "bytes 65536-131071/" + length,
+                "bytes 131072-" + (length - 1) + "/" + length), server.getRanges());
+        assertArrayEquals(batch, server.getFile("batch-1.smpb2"));
+        assertTrue(partial.exists());
+        assertEquals(Arrays.asList(partial), Arrays.asList(dir.listFiles()));
+    }
+
+    @Test
+    public void interruptedChunkResumesFromTheServersRangeAfterARestart() throws Exception {
+        byte[] batch = writeBatch("batch-1.smpb2");
+        File sidecar = new File(dir, "batch-1.smpb2.offset");
+        server.interrupt(2, 1000);
+
+        uploader = newUploader();
+        uploader.start();
+        server.awaitRequests(2);
+        uploader.stop();
+        // What the server confirmed before the interrupted chunk
+        assertEquals(Integer.toString(CHUNK_SIZE), read(sidecar));
+
+        uploader = newUploader();
+        uploader.start();
+        awaitDeleted(new File(dir, "batch-1.smpb2"));
+
+        int length = server.getLength("batch-1.smpb2");
+        int resumed = CHUNK_SIZE + 1000;
+        assertEquals(Arrays.asList(
+                "bytes 0-65535/" + length,
+                "bytes 65536-131071/" + length,
+                "bytes */" + length,
+                "bytes " + resumed + "-" + (resumed + CHUNK_SIZE - 1) + "/" + length,
+                "bytes " + (resumed + CHUNK_SIZE) + "-" + (length - 1) + "/" + length), server.getRanges());
+        assertArrayEquals(batch, server.getFile("batch-1.smpb2"));
+        assertFalse(sidecar.exists());
+    }
+
+    @Test
+    public void serverErrorBacksOffUntilTheNetworkComesBack() throws Exception {
+        byte[] batch = writeBatch("batch-1.smpb2");
+        server.fail(1, 503);
+
+        uploader = newUploader();
+        uploader.start();
+        server.awaitRequests(1);
+        // Time to take the failure and start backing off; a new batch file does not cut that short
+        Thread.sleep(200);
+        uploader.kick();
+        Thread.sleep(200);
+        assertEquals(1, server.getRanges().size());
+
+        uploader.retryNow();
+        awaitDeleted(new File(dir, "batch-1.smpb2"));
+        assertEquals(4, server.getRanges().size());
+        assertArrayEquals(batch, server.getFile("batch-1.smpb2"));
+    }
+
+    private BatchUploader newUploader() {
+        OkHttpClient client = new OkHttpClient.Builder().addInterceptor(server).build();
+        return new BatchUploader(new ContextWrapper(null), client, dir, URL, API_KEY, false, false, 0) {
+            @Override
+            boolean conditionsMet() {
+                return true;
+            }
+        };
+    }
+
+    private byte[] writeBatch(String name) throws IOException {
+        byte[] batch = new byte[BATCH_SIZE];
+        new Random(42).nextBytes(batch);
+        FileOutputStream out = new FileOutputStream(new File(dir, name));
+        try {
+            out.write(batch);
+        } finally {
+            out.close();
+        }
+        return batch;
+    }
+
+    private static void awaitDeleted(File file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (file.exists()) {
+            assertTrue(file + " still there", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(readAll(new FileInputStream(file)), "US-ASCII");
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Keeps what it is sent of each file and answers as the resumable upload endpoint does: 308
+     * with the Range it has while data is missing, 200 once it has all of it.
+     */
+    private static final class StandInUploadServer implements Interceptor {
+        // Guarded by this
+        private final Map<String, ByteArrayOutputStream> files = new HashMap<>();
+        private final Map<String, Integer> lengths = new HashMap<>();
+        private final List<String> ranges = new ArrayList<>();
+        private int failRequest = 0;
+        private int failCode = 0;
+        private int interruptRequest = 0;
+        private int interruptAfter = 0;
+
+        /**
+         * Answers request number request, counting from 1, with code.
+         */
+        public synchronized void fail(int request, int code) {
+            failRequest = request;
+            failCode = code;
+        }
+
+        /**
+         * Keeps the first bytes of request number request and then drops the connection.
+         */
+        public synchronized void interrupt(int request, int bytes) {
+            interruptRequest = request;
+            interruptAfter = bytes;
+        }
+
+        public synchronized void awaitRequests(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (ranges.size() < count) {
+                long wait = deadline - System.currentTimeMillis();
+                assertTrue(count + " requests, got " + ranges.size(), wait > 0);
+                wait(wait);
+            }
+        }
+
+        public synchronized List<String> getRanges() {
+            return new ArrayList<>(ranges);
+        }
+
+        public synchronized int getLength(String name) {
+            return lengths.get(name);
+        }
+
+        /**
+         * @return the file as uploaded, gunzipped
+         */
+        public byte[] getFile(String name) throws IOException {
+            byte[] gzipped;
+            synchronized (this) {
+                gzipped = files.get(name).toByteArray();
+            }
+            return readAll(new GZIPInputStream(new ByteArrayInputStream(gzipped)));
+        }
+
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            Buffer body = new Buffer();
+            request.body().writeTo(body);
+            byte[] data = body.readByteArray();
+            String name = request.url().toString().substring(URL.length());
+            String range = request.header("Content-Range");
+            assertEquals(API_KEY, request.header("X-ShadowMaps-Api-Key"));
+            assertEquals("gzip", request.header("X-ShadowMaps-Upload-Encoding"));
+
+            synchronized (this) {
+                ranges.add(range);
+                notifyAll();
+                int number = ranges.size();
+                if (number == failRequest) {
+                    return respond(request, failCode, 0);
+                }
+                // "bytes first-last/length" or "bytes */length"
+                int slash = range.indexOf('/');
+                int length = Integer.parseInt(range.substring(slash + 1));
+                lengths.put(name, length);
+                ByteArrayOutputStream file = files.get(name);
+                if (file == null) {
+                    file = new ByteArrayOutputStream();
+                    files.put(name, file);
+                }
+                if (!range.startsWith("bytes */")) {
+                    int first = Integer.parseInt(range.substring("bytes ".length(), range.indexOf('-')));
+                    if (first != file.size()) {
+                        return respond(request, 416, file.size());
+                    }
+                    if (number == interruptRequest) {
+                        file.write(data, 0, interruptAfter);
+                        throw new IOException("Connection reset");
+                    }
+                    file.write(data, 0, data.length);
+                }
+                return respond(request, file.size() == length ? 200 : 308, file.size());
+            }
+        }
+
+        private static Response respond(Request request, int code, int stored) {
+            Response.Builder response = new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(code)
+                    .message("")
+                    .body(ResponseBody.create(null, new byte[0]));
+            if (code == 308 && stored > 0) {
+                response.header("Range", "bytes=0-" + (stored - 1));
+            }
+            return response.build();
+        }
+    }
+}
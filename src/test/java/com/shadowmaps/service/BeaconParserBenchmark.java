@@ -0,0 +1,79 @@
+package com.shadowmaps.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.shadowmaps.service.BeaconParserTest.FLAGS;
+import static com.shadowmaps.service.BeaconParserTest.UUID;
+import static com.shadowmaps.service.BeaconParserTest.ad;
+import static com.shadowmaps.service.BeaconParserTest.hex;
+import static com.shadowmaps.service.BeaconParserTest.record;
+
+/**
+ * Time to parse one 62-byte scan record, as BleSource does on the ingest thread, on the JVM the
+ * benchmark runs on. Run main() from the IDE or with the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeaconParserBenchmark {
+    private final BeaconFrame frame = new BeaconFrame();
+    private final byte[] iBeacon = padded(record(FLAGS, ad(0xFF, hex("4c00 0215"), UUID, hex("0102 0304 c5"))));
+    private final byte[] eddystoneUid = padded(record(FLAGS, ad(0x03, hex("aafe")),
+            ad(0x16, hex("aafe 00 ee"), hex("00112233445566778899 aabbccddeeff 0000"))));
+    private final byte[] eddystoneUrl = padded(record(FLAGS, ad(0x03, hex("aafe")),
+            ad(0x16, hex("aafe 10 eb 01"), "example".getBytes(), hex("00"), "path".getBytes())));
+    // Most advertisers in a scan are not beacons
+    private final byte[] other = padded(record(FLAGS, ad(0x0A, hex("f4")), ad(0x09, "Headphones".getBytes()),
+            ad(0xFF, hex("0600 0109 2002"), UUID)));
+
+    @Benchmark
+    public int iBeacon() {
+        BeaconParser.parse(iBeacon, 0, iBeacon.length, frame);
+        return frame.minor;
+    }
+
+    @Benchmark
+    public long eddystoneUid() {
+        BeaconParser.parse(eddystoneUid, 0, eddystoneUid.length, frame);
+        return frame.idLow;
+    }
+
+    @Benchmark
+    public int eddystoneUrl() {
+        BeaconParser.parse(eddystoneUrl, 0, eddystoneUrl.length, frame);
+        return frame.urlLength;
+    }
+
+    @Benchmark
+    public int notABeacon() {
+        BeaconParser.parse(other, 0, other.length, frame);
+        return frame.advertisedTxPower;
+    }
+
+    // Scan records are padded with zeros to the legacy advertising plus scan response size
+    private static byte[] padded(byte[] record) {
+        byte[] padded = new byte[IngestEvent.MAX_RECORD_BYTES];
+        System.arraycopy(record, 0, padded, 0, record.length);
+        return padded;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BeaconParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
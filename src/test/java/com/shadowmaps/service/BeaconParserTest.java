@@ -0,0 +1,164 @@
+package com.shadowmaps.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Parses advertisements laid out byte by byte as the specifications give them, so every field
+ * offset is checked against a distinct value.
+ */
+public class BeaconParserTest {
+    static final byte[] FLAGS = {0x02, 0x01, 0x06};
+    static final byte[] UUID = hex("f7826da6 4fa2 4e98 8024 bc5b71e0893e");
+
+    private final BeaconFrame frame = new BeaconFrame();
+
+    @Test
+    public void iBeacon() {
+        byte[] record = record(FLAGS, ad(0xFF, hex("4c00 0215"), UUID, hex("0102 0304 c5")));
+        assertTrue(BeaconParser.parse(record, 0, record.length, frame));
+        assertEquals(BeaconFrame.TYPE_IBEACON, frame.type);
+        assertEquals(0xf7826da64fa24e98L, frame.idHigh);
+        assertEquals(0x8024bc5b71e0893eL, frame.idLow);
+        assertEquals(0x0102, frame.major);
+        assertEquals(0x0304, frame.minor);
+        assertEquals(-59, frame.txPower);
+        assertEquals(BeaconFrame.NO_TX_POWER, frame.advertisedTxPower);
+    }
+
+    @Test
+    public void altBeacon() {
+        // Any company id; the 20-byte id is a UUID followed by two 16-bit values
+        byte[] record = record(FLAGS, ad(0xFF, hex("1801 beac"), UUID, hex("0a0b 0c0d bf 00")));
+        assertTrue(BeaconParser.parse(record, 0, record.length, frame));
+        assertEquals(BeaconFrame.TYPE_ALTBEACON, frame.type);
+        assertEquals(0xf7826da64fa24e98L, frame.idHigh);
+        assertEquals(0x8024bc5b71e0893eL, frame.idLow);
+        assertEquals(0x0a0b, frame.major);
+        assertEquals(0x0c0d, frame.minor);
+        assertEquals(-65, frame.txPower);
+    }
+
+    @Test
+    public void eddystoneUid() {
+        byte[] record = record(FLAGS, ad(0x03, hex("aafe")),
+                ad(0x16, hex("aafe 00 ee"), hex("00112233445566778899 aabbccddeeff 0000")));
+        assertTrue(BeaconParser.parse(record, 0, record.length, frame));
+        assertEquals(BeaconFrame.TYPE_EDDYSTONE_UID, frame.type);
+        assertEquals(-18, frame.txPower);
+        // Namespace, then instance
+        assertEquals(0x0011223344556677L, frame.idHigh);
+        assertEquals(0x8899aabbccddeeffL, frame.idLow);
+    }
+
+    @Test
+    public void eddystoneUrl() {
+        // https://www. example .com/ path
+        byte[] record = record(FLAGS, ad(0x03, hex("aafe")),
+                ad(0x16, hex("aafe 10 eb 01"), "example".getBytes(), hex("00"), "path".getBytes()));
+        assertTrue(BeaconParser.parse(record, 0, record.length, frame));
+        assertEquals(BeaconFrame.TYPE_EDDYSTONE_URL, frame.type);
+        assertEquals(-21, frame.txPower);
+        assertEquals(1, frame.urlScheme);
+        assertEquals(12, frame.urlLength);
+        assertEquals("https://www.example.com/path", frame.expandUrl());
+    }
+
+    @Test
+    public void eddystoneUrlWithUnknownSchemeIsIgnored() {
+        byte[] record = record(ad(0x16, hex("aafe 10 eb 04"), "example".getBytes()));
+        assertFalse(BeaconParser.parse(record, 0, record.length, frame));
+        assertNull(frame.expandUrl());
+    }
+
+    @Test
+    public void advertisedTxPowerIsReadWithoutABeaconFrame() {
+        byte[] record = record(FLAGS, ad(0x0A, hex("f4")), ad(0x09, "Headphones".getBytes()));
+        assertFalse(BeaconParser.parse(record, 0, record.length, frame));
+        assertEquals(BeaconFrame.TYPE_NONE, frame.type);
+        assertEquals(-12, frame.advertisedTxPower);
+    }
+
+    @Test
+    public void truncatedFramesAreIgnored() {
+        byte[] full = record(FLAGS, ad(0xFF, hex("4c00 0215"), UUID, hex("0102 0304 c5")));
+        // The structure claims more bytes than the record has
+        assertFalse(BeaconParser.parse(full, 0, full.length - 1, frame));
+        // A complete structure too short for an iBeacon
+        byte[] shortData = record(ad(0xFF, hex("4c00 0215"), UUID, hex("0102 0304")));
+        assertFalse(BeaconParser.parse(shortData, 0, shortData.length, frame));
+    }
+
+    @Test
+    public void paddingEndsTheRecord() {
+        byte[] beacon = record(FLAGS, ad(0xFF, hex("4c00 0215"), UUID, hex("0102 0304 c5")));
+        // Scan records are padded with zeros to 62 bytes
+        byte[] padded = new byte[62];
+        System.arraycopy(beacon, 0, padded, 0, beacon.length);
+        assertTrue(BeaconParser.parse(padded, 0, padded.length, frame));
+        assertEquals(0x0304, frame.minor);
+    }
+
+    @Test
+    public void parsesAtAnOffset() {
+        byte[] beacon = record(FLAGS, ad(0xFF, hex("4c00 0215"), UUID, hex("0102 0304 c5")));
+        byte[] slot = new byte[beacon.length + 10];
+        System.arraycopy(beacon, 0, slot, 10, beacon.length);
+        assertTrue(BeaconParser.parse(slot, 10, beacon.length, frame));
+        assertEquals(0x8024bc5b71e0893eL, frame.idLow);
+    }
+
+    @Test
+    public void frameIsResetBetweenRecords() {
+        byte[] url = record(ad(0x16, hex("aafe 10 eb 01"), "example".getBytes()));
+        assertTrue(BeaconParser.parse(url, 0, url.length, frame));
+        byte[] none = record(FLAGS);
+        assertFalse(BeaconParser.parse(none, 0, none.length, frame));
+        assertEquals(0, frame.urlLength);
+        assertEquals(BeaconFrame.NO_TX_POWER, frame.txPower);
+    }
+
+    // One AD structure: length, type, data
+    static byte[] ad(int type, byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] ad = new byte[2 + length];
+        ad[0] = (byte) (length + 1);
+        ad[1] = (byte) type;
+        int p = 2;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, ad, p, part.length);
+            p += part.length;
+        }
+        return ad;
+    }
+
+    static byte[] record(byte[]... structures) {
+        int length = 0;
+        for (byte[] s : structures) {
+            length += s.length;
+        }
+        byte[] record = new byte[length];
+        int p = 0;
+        for (byte[] s : structures) {
+            System.arraycopy(s, 0, record, p, s.length);
+            p += s.length;
+        }
+        return record;
+    }
+
+    static byte[] hex(String s) {
+        s = s.replaceAll("[^0-9a-fA-F]", "");
+        byte[] b = new byte[s.length() / 2];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return b;
+    }
+}
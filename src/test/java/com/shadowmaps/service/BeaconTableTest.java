@@ -0,0 +1,68 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.BeaconInfo;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BeaconTableTest {
+    private static final long BEACON = 0x0123456789abL;
+    private static final long PHONE = 0x0a0b0c0d0e0fL;
+
+    private final BeaconTable beacons = new BeaconTable(8);
+    private final EpochBuilder epoch = new EpochBuilder();
+    private final BeaconFrame none = new BeaconFrame();
+    private final BeaconFrame iBeacon = new BeaconFrame();
+
+    public BeaconTableTest() {
+        none.reset();
+        iBeacon.reset();
+        iBeacon.type = BeaconFrame.TYPE_IBEACON;
+        iBeacon.idHigh = 0x1122334455667788L;
+        iBeacon.idLow = 0x99aabbccddeeff00L;
+        iBeacon.major = 7;
+        iBeacon.minor = 42;
+        iBeacon.txPower = -59;
+    }
+
+    @Test
+    public void devicesWithoutABeaconFrameAreNotAdded() {
+        assertFalse(beacons.add(PHONE, -60, 1000, none));
+        assertFalse(beacons.add(PHONE, -61, 2000, none));
+        assertTrue(beacons.add(BEACON, -70, 1000, iBeacon));
+        LocationUpdate lu = drain();
+        assertEquals(1, lu.beacons.length);
+        assertEquals(BEACON, lu.beacons[0].mac);
+    }
+
+    @Test
+    public void framelessAdvertisementsOfABeaconCount() {
+        assertTrue(beacons.add(BEACON, -70, 1000, iBeacon));
+        // e.g. Eddystone TLM between identity frames
+        assertTrue(beacons.add(BEACON, -80, 2000, none));
+        BeaconInfo beacon = drain().beacons[0];
+        assertEquals(2, beacon.count);
+        assertEquals(-75, beacon.rssiMean);
+        assertEquals(-70, beacon.rssiMax);
+        assertEquals(2000, beacon.timestamp);
+        assertEquals(BeaconFrame.TYPE_IBEACON, beacon.format);
+        assertEquals(42, beacon.minor);
+    }
+
+    @Test
+    public void frameMustBeSeenAgainInTheNextEpoch() {
+        beacons.add(BEACON, -70, 1000, iBeacon);
+        drain();
+        assertFalse(beacons.add(BEACON, -70, 3000, none));
+        assertEquals(0, drain().beacons.length);
+    }
+
+    private LocationUpdate drain() {
+        beacons.drain(epoch);
+        return epoch.build(null);
+    }
+}
@@ -0,0 +1,53 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.CellInfo;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CellTableTest {
+    private final CellTable cells = new CellTable(8);
+    private final EpochBuilder epoch = new EpochBuilder();
+
+    @Test
+    public void readingsOfTheSameCellAreAveraged() {
+        cells.add(CellTable.RADIO_LTE, 1234, 56, 7, true, -90, 1000);
+        cells.add(CellTable.RADIO_LTE, 1234, 56, 7, true, -94, 2000);
+        // Polled again without a new reading
+        cells.add(CellTable.RADIO_LTE, 1234, 56, 7, true, -94, 2000);
+        CellInfo cell = drainOne();
+        assertEquals(2, cell.sampleCount);
+        assertEquals(-92, cell.rssi);
+        assertEquals(2000, cell.timestamp);
+    }
+
+    @Test
+    public void unknownLevelIsNotAveraged() {
+        cells.add(CellTable.RADIO_LTE, 1234, 56, 7, true, -90, 1000);
+        assertTrue(cells.add(CellTable.RADIO_LTE, 1234, 56, 7, true, CellTable.UNKNOWN_DBM, 2000));
+        CellInfo cell = drainOne();
+        assertEquals(1, cell.sampleCount);
+        assertEquals(-90, cell.rssi);
+        assertEquals(2000, cell.timestamp);
+    }
+
+    @Test
+    public void cellWithOnlyUnknownLevelsHasNoRssi() {
+        assertTrue(cells.add(CellTable.RADIO_WCDMA, -1, 56, 300, false, CellTable.UNKNOWN_DBM, 1000));
+        CellInfo cell = drainOne();
+        assertEquals(0, cell.sampleCount);
+        assertEquals(0, cell.rssi);
+        assertEquals(300, cell.physicalId);
+    }
+
+    private CellInfo drainOne() {
+        cells.drain(epoch);
+        LocationUpdate lu = epoch.build(null);
+        assertEquals(1, lu.cellNetworks.length);
+        assertEquals(0, cells.size());
+        return lu.cellNetworks[0];
+    }
+}
@@ -0,0 +1,229 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.LocationEstimate;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.NMEAInfo;
+import com.shadowmaps.util.api.protobufs.UserInformation;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the engine on a plain JVM with fake sources that publish as fast as the ring accepts.
+ */
+public class CollectionEngineTest {
+    private static final int RING_SIZE = 256;
+    private static final int SENTENCES_PER_EPOCH = 10;
+    private static final long TIMEOUT_MS = 30000;
+
+    private final CountingStore store = new CountingStore();
+    private final CountingUplink uplink = new CountingUplink();
+    private final Telemetry telemetry = new Telemetry();
+    private CollectionEngine engine;
+
+    @After
+    public void tearDown() {
+        if (engine != null) {
+            engine.stop();
+        }
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        int epochs = 50000;
+        engine = new CollectionEngine(user(), store, uplink, connected(true), telemetry, RING_SIZE);
+        FakeGnssSource gnss = new FakeGnssSource(epochs, SENTENCES_PER_EPOCH);
+        engine.addSource(gnss);
+        long startNanos = System.nanoTime();
+        engine.start();
+        awaitEpochs(epochs);
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long events = (long) epochs * (SENTENCES_PER_EPOCH + 1);
+        System.out.println("CollectionEngine: " + Math.round(events / seconds) + " events/s, "
+                + Math.round(epochs / seconds) + " epochs/s, " + store.bytes.get() / epochs + " bytes/epoch");
+
+        // A full ring counts as a drop, but the fake source retries, so every event gets through
+        assertEquals(events, engine.getProcessedEventCount());
+        assertEquals(epochs, store.epochs.get());
+        assertEquals(epochs, uplink.epochs.get());
+        assertEquals(epochs, gnss.epochEnds);
+        // Every sentence lands in the epoch its location closes
+        assertEquals((long) epochs * SENTENCES_PER_EPOCH, uplink.sentences.get());
+        assertEquals(epochs, uplink.estimates.get());
+    }
+
+    @Test
+    public void onlyAddedSourcesStart() throws Exception {
+        engine = new CollectionEngine(user(), store, uplink, connected(true), telemetry, RING_SIZE);
+        FakeGnssSource added = new FakeGnssSource(10, 1);
+        FakeGnssSource notAdded = new FakeGnssSource(10, 1);
+        engine.addSource(added);
+        assertFalse(added.started);
+        engine.start();
+        awaitEpochs(10);
+        assertTrue(added.started);
+        assertFalse(notAdded.started);
+        try {
+            engine.addSource(notAdded);
+            fail("Sources cannot be added to a running engine");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void storesButDoesNotSendWhileOffline() throws Exception {
+        engine = new CollectionEngine(user(), store, uplink, connected(false), telemetry, RING_SIZE);
+        engine.addSource(new FakeGnssSource(100, 3));
+        engine.start();
+        awaitEpochs(100);
+        assertEquals(100, store.epochs.get());
+        assertEquals(0, uplink.epochs.get());
+        assertEquals(0, engine.getSentCount());
+    }
+
+    private void awaitEpochs(long epochs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (store.epochs.get() < epochs) {
+            assertTrue("only " + store.epochs.get() + " of " + epochs + " epochs",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static UserInformation user() {
+        UserInformation user = new UserInformation();
+        user.id = "device";
+        user.apiKey = "key";
+        user.model = "test";
+        return user;
+    }
+
+    private static CollectionEngine.Network connected(final boolean connected) {
+        return new CollectionEngine.Network() {
+            @Override
+            public boolean isConnected() {
+                return connected;
+            }
+        };
+    }
+
+    private static final class CountingStore implements CollectionEngine.Store {
+        final AtomicLong epochs = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        @Override
+        public boolean append(byte[] encoded) {
+            bytes.addAndGet(encoded.length);
+            epochs.incrementAndGet();
+            return true;
+        }
+    }
+
+    private static final class CountingUplink implements CollectionEngine.Uplink {
+        final AtomicLong epochs = new AtomicLong();
+        final AtomicLong sentences = new AtomicLong();
+        final AtomicLong estimates = new AtomicLong();
+
+        @Override
+        public void send(LocationUpdate update, byte[] encoded, long trace) {
+            sentences.addAndGet(update.nmeaInfos.length);
+            estimates.addAndGet(update.estimates.length);
+            epochs.incrementAndGet();
+        }
+
+        @Override
+        public void skipped() {
+        }
+    }
+
+    /**
+     * Publishes sentencesPerEpoch NMEA sentences and then a location, which closes the epoch,
+     * from its own thread, as a GNSS chipset's callbacks would.
+     */
+    private static final class FakeGnssSource implements CollectionEngine.Source {
+        private final int epochs;
+        private final int sentencesPerEpoch;
+        private Thread producer;
+        volatile boolean started = false;
+        // Only touched on the ingest thread
+        long epochEnds = 0;
+
+        FakeGnssSource(int epochs, int sentencesPerEpoch) {
+            this.epochs = epochs;
+            this.sentencesPerEpoch = sentencesPerEpoch;
+        }
+
+        @Override
+        public void start(final CollectionEngine.EventSink sink) {
+            started = true;
+            producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int e = 0; e < epochs && !Thread.currentThread().isInterrupted(); e++) {
+                        for (int s = 0; s < sentencesPerEpoch; s++) {
+                            IngestEvent event = claim(sink);
+                            event.type = IngestEvent.NMEA;
+                            event.time = e;
+                            event.text = "$GPGSV,3,1,11,03,03,111,00,04,15,270,00,06,01,010,00,13,06,292,00*74";
+                            sink.publish(event);
+                        }
+                        IngestEvent event = claim(sink);
+                        event.type = IngestEvent.LOCATION;
+                        event.time = 1450000000000L + e * 1000L;
+                        event.lat = 37.7749;
+                        event.lon = -122.4194;
+                        event.acc = 5;
+                        event.text = "gps";
+                        sink.publish(event);
+                    }
+                }
+            }, "FakeGnssSource");
+            producer.start();
+        }
+
+        // Waits for a free slot, so the test measures the engine rather than dropped events
+        private static IngestEvent claim(CollectionEngine.EventSink sink) {
+            IngestEvent event;
+            while ((event = sink.claim()) == null) {
+                Thread.yield();
+            }
+            return event;
+        }
+
+        @Override
+        public void stop() {
+            producer.interrupt();
+        }
+
+        @Override
+        public boolean onEvent(IngestEvent event, EpochBuilder epoch) {
+            if (event.type == IngestEvent.NMEA) {
+                NMEAInfo nmea = new NMEAInfo();
+                nmea.timestamp = event.time;
+                nmea.sentence = event.text;
+                epoch.addNmeaInfo(nmea);
+                return false;
+            }
+            LocationEstimate estimate = new LocationEstimate();
+            estimate.lat = event.lat;
+            estimate.lon = event.lon;
+            estimate.acc = event.acc;
+            estimate.utc = event.time;
+            estimate.provider = event.text;
+            epoch.addEstimate(estimate);
+            return true;
+        }
+
+        @Override
+        public void onEpochEnd(EpochBuilder epoch) {
+            epochEnds++;
+        }
+    }
+}
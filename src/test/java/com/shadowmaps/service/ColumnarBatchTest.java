@@ -0,0 +1,278 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.CellInfo;
+import com.shadowmaps.util.api.protobufs.LocationEstimate;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.NMEAInfo;
+import com.shadowmaps.util.api.protobufs.SatInfo;
+import com.shadowmaps.util.api.protobufs.UserInformation;
+import com.shadowmaps.util.api.protobufs.WiFiInfo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes batches with ColumnarBatchWriter to a temporary file and reads them back with
+ * ColumnarBatchReader.
+ */
+public class ColumnarBatchTest {
+    private static final long UTC = 1450000000000L;
+
+    private File file;
+    private final ColumnarBatchWriter writer = new ColumnarBatchWriter();
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("batch", ".smpb2");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void roundTripsEpochsWithMissingAndOptionalFields() throws IOException {
+        LocationUpdate[] written = {full(0), new LocationUpdate(), estimateOnly(2), full(3)};
+        for (LocationUpdate lu : written) {
+            lu.userInfo = user();
+            writer.add(lu);
+        }
+        assertTrue(writer.writeTo(file, "key", "batch-1"));
+
+        ColumnarBatchReader reader = new ColumnarBatchReader(file);
+        try {
+            assertEquals("key", reader.getApiKey());
+            assertEquals("batch-1", reader.getBatchId());
+            assertEquals(written.length, reader.getEpochCount());
+            assertEquals(UTC, reader.getStartTime());
+            assertEquals(UTC + 3000 + 500, reader.getEndTime());
+            assertEquals("device", reader.getUserInfo().id);
+            LocationUpdate[] read = reader.read(allColumns());
+            assertEquals(written.length, read.length);
+            for (int i = 0; i < written.length; i++) {
+                assertEquivalent("epoch " + i, written[i], read[i]);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void selectiveReadDecodesOnlyTheRequestedColumn() throws IOException {
+        writer.add(full(0));
+        writer.add(full(1));
+        assertTrue(writer.writeTo(file, "key", "batch-2"));
+
+        ColumnarBatchReader reader = new ColumnarBatchReader(file);
+        try {
+            LocationUpdate[] read = reader.read(ColumnarBatchReader.ESTIMATE_LAT);
+            assertEquals(2, read.length);
+            LocationEstimate le = read[1].estimates[0];
+            assertEquals(full(1).estimates[0].lat, le.lat, 0.51e-7);
+            assertEquals(0, le.lon, 0);
+            assertEquals(0, le.utc);
+            assertEquals(0, read[1].satelliteInfos.length);
+            assertEquals(0, read[1].wifiNetworks.length);
+            assertEquals(0, read[1].cellNetworks.length);
+            assertEquals(0, read[1].satInfoTime);
+
+            // Per-PRN series pull in the PRN column, which places them
+            SatInfo sat = reader.read(ColumnarBatchReader.SAT_SNR)[1].satelliteInfos[1];
+            assertEquals(12, sat.prn);
+            assertEquals(full(1).satelliteInfos[1].snr, sat.snr, 0.051);
+            assertEquals(0, sat.azimuth, 0);
+            assertFalse(sat.used);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void deltaOfDeltaTimesSurviveIrregularSteps() throws IOException {
+        // Regular, jittered, a gap, equal, backwards, missing and far in the future
+        long[] times = {UTC, UTC + 1000, UTC + 2000, UTC + 2999, UTC + 9000, UTC + 9000, UTC + 4000, 0,
+                UTC, Long.MAX_VALUE / 4, UTC + 1};
+        for (long time : times) {
+            LocationUpdate lu = new LocationUpdate();
+            lu.satInfoTime = time;
+            LocationEstimate le = new LocationEstimate();
+            le.utc = time;
+            lu.estimates = new LocationEstimate[]{le};
+            writer.add(lu);
+        }
+        assertTrue(writer.writeTo(file, "key", "batch-3"));
+
+        ColumnarBatchReader reader = new ColumnarBatchReader(file);
+        try {
+            assertArrayEquals(times, reader.readEpochTimes());
+            LocationUpdate[] read = reader.read(ColumnarBatchReader.ESTIMATE_UTC);
+            for (int i = 0; i < times.length; i++) {
+                assertEquals(times[i], read[i].estimates[0].utc);
+            }
+            assertNull(reader.getUserInfo());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void emptyColumnsAreLeftOut() throws IOException {
+        writer.add(estimateOnly(0));
+        assertTrue(writer.writeTo(file, "key", "batch-4"));
+        ColumnarBatchReader reader = new ColumnarBatchReader(file);
+        try {
+            assertTrue(reader.hasColumn(ColumnarBatchReader.ESTIMATE_LAT));
+            assertFalse(reader.hasColumn(ColumnarBatchReader.SAT_PRN));
+            assertFalse(reader.hasColumn(ColumnarBatchReader.WIFI_BSSID));
+            assertEquals(0, reader.read(allColumns())[0].satelliteInfos.length);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static int[] allColumns() {
+        int[] columns = new int[ColumnarBatchReader.COLUMN_COUNT];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = i;
+        }
+        return columns;
+    }
+
+    private static UserInformation user() {
+        UserInformation user = new UserInformation();
+        user.id = "device";
+        user.model = "Nexus 5";
+        return user;
+    }
+
+    // Every columnized field and a few that only the remainder carries
+    private static LocationUpdate full(int i) {
+        LocationUpdate lu = estimateOnly(i);
+        LocationEstimate network = new LocationEstimate();
+        network.utc = lu.estimates[0].utc + 500;
+        network.lat = 37.7749295 - i * 1e-5;
+        network.lon = -122.4194155;
+        network.acc = 25.5f;
+        network.provider = "network";
+        lu.estimates = new LocationEstimate[]{lu.estimates[0], network};
+        lu.satInfoTime = UTC + i * 1000 - 120;
+        lu.satelliteInfos = new SatInfo[]{sat(3, 40.1f - i, true), sat(12, 22.5f + i, false)};
+        NMEAInfo nmea = new NMEAInfo();
+        nmea.timestamp = UTC + i * 1000 - 5;
+        nmea.sentence = "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47";
+        lu.nmeaInfos = new NMEAInfo[]{nmea};
+        WiFiInfo ap = new WiFiInfo();
+        ap.id = i;
+        ap.mac = 0xaabbccddeeffL + i;
+        ap.rssi = -60 - i;
+        ap.frequency = 5180;
+        ap.timestamp = UTC + i * 1000 - 300;
+        lu.wifiNetworks = new WiFiInfo[]{ap};
+        lu.wifiIds = new int[]{i, 0};
+        lu.wifiScanTime = ap.timestamp;
+        lu.wifiScanSeq = i + 1;
+        lu.wifiKeyframe = i == 0;
+        CellInfo cell = new CellInfo();
+        cell.cellid = 1234 + i;
+        cell.rssi = -95;
+        cell.registered = true;
+        lu.cellNetworks = new CellInfo[]{cell};
+        lu.cachedArtifactHashes = new long[]{0x8000000000000001L};
+        return lu;
+    }
+
+    private static LocationUpdate estimateOnly(int i) {
+        LocationUpdate lu = new LocationUpdate();
+        LocationEstimate le = new LocationEstimate();
+        le.utc = UTC + i * 1000;
+        le.lat = 37.7749295 + i * 1.2e-5;
+        le.lon = -122.4194155 - i * 0.3e-5;
+        le.acc = 4.25f;
+        le.alt = -12.5f;
+        le.speed = 1.37f;
+        le.bearing = 359.99f;
+        // No provider on the odd ones
+        le.provider = i % 2 == 0 ? "gps" : "";
+        lu.estimates = new LocationEstimate[]{le};
+        return lu;
+    }
+
+    private static SatInfo sat(int prn, float snr, boolean used) {
+        SatInfo sat = new SatInfo();
+        sat.prn = prn;
+        sat.snr = snr;
+        sat.azimuth = 123.4f + prn;
+        sat.elevation = 45.6f;
+        sat.almanac = true;
+        sat.ephemeris = !used;
+        sat.used = used;
+        return sat;
+    }
+
+    // Equal up to the columns' quantization
+    private static void assertEquivalent(String epoch, LocationUpdate expected, LocationUpdate actual) {
+        assertEquals(epoch, expected.satInfoTime, actual.satInfoTime);
+        assertEquals(epoch, expected.estimates.length, actual.estimates.length);
+        for (int i = 0; i < expected.estimates.length; i++) {
+            LocationEstimate e = expected.estimates[i];
+            LocationEstimate a = actual.estimates[i];
+            assertEquals(epoch, e.utc, a.utc);
+            assertEquals(epoch, e.lat, a.lat, 0.51e-7);
+            assertEquals(epoch, e.lon, a.lon, 0.51e-7);
+            assertEquals(epoch, e.acc, a.acc, 0.0051);
+            assertEquals(epoch, e.alt, a.alt, 0.0051);
+            assertEquals(epoch, e.speed, a.speed, 0.0051);
+            assertEquals(epoch, e.bearing, a.bearing, 0.0051);
+            assertEquals(epoch, e.provider, a.provider);
+        }
+        assertEquals(epoch, expected.satelliteInfos.length, actual.satelliteInfos.length);
+        for (int i = 0; i < expected.satelliteInfos.length; i++) {
+            SatInfo e = expected.satelliteInfos[i];
+            SatInfo a = actual.satelliteInfos[i];
+            assertEquals(epoch, e.prn, a.prn);
+            assertEquals(epoch, e.snr, a.snr, 0.051);
+            assertEquals(epoch, e.azimuth, a.azimuth, 0.051);
+            assertEquals(epoch, e.elevation, a.elevation, 0.051);
+            assertEquals(epoch, e.used, a.used);
+            assertEquals(epoch, e.almanac, a.almanac);
+            assertEquals(epoch, e.ephemeris, a.ephemeris);
+        }
+        assertEquals(epoch, expected.nmeaInfos.length, actual.nmeaInfos.length);
+        for (int i = 0; i < expected.nmeaInfos.length; i++) {
+            assertEquals(epoch, expected.nmeaInfos[i].timestamp, actual.nmeaInfos[i].timestamp);
+            assertEquals(epoch, expected.nmeaInfos[i].sentence, actual.nmeaInfos[i].sentence);
+        }
+        assertEquals(epoch, expected.wifiNetworks.length, actual.wifiNetworks.length);
+        for (int i = 0; i < expected.wifiNetworks.length; i++) {
+            WiFiInfo e = expected.wifiNetworks[i];
+            WiFiInfo a = actual.wifiNetworks[i];
+            assertEquals(epoch, e.id, a.id);
+            assertEquals(epoch, e.mac, a.mac);
+            assertEquals(epoch, e.rssi, a.rssi);
+            assertEquals(epoch, e.frequency, a.frequency);
+            assertEquals(epoch, e.timestamp, a.timestamp);
+        }
+        assertArrayEquals(epoch, expected.wifiIds, actual.wifiIds);
+        assertEquals(epoch, expected.wifiScanTime, actual.wifiScanTime);
+        assertEquals(epoch, expected.wifiScanSeq, actual.wifiScanSeq);
+        assertEquals(epoch, expected.wifiKeyframe, actual.wifiKeyframe);
+        assertEquals(epoch, expected.cellNetworks.length, actual.cellNetworks.length);
+        for (int i = 0; i < expected.cellNetworks.length; i++) {
+            assertEquals(epoch, expected.cellNetworks[i].cellid, actual.cellNetworks[i].cellid);
+            assertEquals(epoch, expected.cellNetworks[i].rssi, actual.cellNetworks[i].rssi);
+            assertEquals(epoch, expected.cellNetworks[i].registered, actual.cellNetworks[i].registered);
+        }
+        assertArrayEquals(epoch, expected.cachedArtifactHashes, actual.cachedArtifactHashes);
+    }
+}
@@ -0,0 +1,365 @@
+package com.shadowmaps.service;
+
+import com.google.protobuf.nano.MessageNano;
+import com.shadowmaps.util.api.protobufs.CompactUpdate;
+import com.shadowmaps.util.api.protobufs.LocationEstimate;
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.SatInfo;
+import com.shadowmaps.util.api.protobufs.UserInformation;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactCodecTest {
+    private static final int KEYFRAME_INTERVAL = 30;
+    private static final int EPOCHS = 600;
+
+    @Test
+    public void roundTripsEveryEpoch() {
+        Walk walk = new Walk(1);
+        CompactEncoder encoder = new CompactEncoder(KEYFRAME_INTERVAL);
+        CompactDecoder decoder = new CompactDecoder();
+        int keyframes = 0;
+        for (int i = 0; i < EPOCHS; i++) {
+            LocationUpdate original = walk.next();
+            CompactUpdate cu = encoder.encode(original);
+            if (cu.keyframe) {
+                keyframes++;
+            }
+            LocationUpdate decoded = decoder.decode(reparse(cu));
+            assertNotNull("epoch " + i, decoded);
+            assertEquivalent(original, decoded);
+        }
+        assertEquals(EPOCHS / KEYFRAME_INTERVAL, keyframes);
+    }
+
+    @Test
+    public void waitsForKeyframeAfterGap() {
+        Walk walk = new Walk(2);
+        CompactEncoder encoder = new CompactEncoder(KEYFRAME_INTERVAL);
+        CompactDecoder decoder = new CompactDecoder();
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(decoder.decode(encoder.encode(walk.next())));
+        }
+        // Lost on the way
+        encoder.encode(walk.next());
+        assertNull(decoder.decode(encoder.encode(walk.next())));
+        assertNull(decoder.decode(encoder.encode(walk.next())));
+
+        encoder.requestKeyframe();
+        LocationUpdate original = walk.next();
+        CompactUpdate keyframe = encoder.encode(original);
+        assertTrue(keyframe.keyframe);
+        LocationUpdate decoded = decoder.decode(keyframe);
+        assertNotNull(decoded);
+        assertEquivalent(original, decoded);
+        original = walk.next();
+        assertEquivalent(original, decoder.decode(encoder.encode(original)));
+    }
+
+    @Test
+    public void firstEpochIsKeyframeWithUser() {
+        CompactEncoder encoder = new CompactEncoder(KEYFRAME_INTERVAL);
+        CompactUpdate first = encoder.encode(new Walk(3).next());
+        assertTrue(first.keyframe);
+        assertEquals("device", first.id);
+        assertNull(new CompactDecoder().decode(deltaWithoutBase()));
+    }
+
+    @Test
+    public void tracksSatellitesRisingAndSetting() {
+        Walk walk = new Walk(4);
+        CompactEncoder encoder = new CompactEncoder(1000);
+        CompactDecoder decoder = new CompactDecoder();
+        for (int i = 0; i < 200; i++) {
+            if (i % 7 == 3) {
+                walk.setSatellite();
+            }
+            if (i % 11 == 5) {
+                walk.riseSatellite();
+            }
+            LocationUpdate original = walk.next();
+            assertEquivalent(original, decoder.decode(reparse(encoder.encode(original))));
+        }
+    }
+
+    @Test
+    public void packsFlagsAcrossByteBoundaries() {
+        int[] flags = new int[IngestEvent.MAX_SATELLITES];
+        for (int i = 0; i < flags.length; i++) {
+            flags[i] = i % 8;
+        }
+        byte[] packed = CompactEncoder.packFlags(flags, flags.length);
+        assertEquals((flags.length * CompactEncoder.FLAG_BITS + 7) / 8, packed.length);
+        for (int i = 0; i < flags.length; i++) {
+            assertEquals(flags[i], CompactEncoder.unpackFlag(packed, i));
+        }
+    }
+
+    /**
+     * Sends through RealtimeUplink and RealtimeUploader to a server that takes one request at a
+     * time, while epochs keep coming, so the latest-wins queue drops most of them. One request
+     * fails on the way. Every epoch that reaches the server must still decode.
+     */
+    @Test
+    public void everySentEpochDecodesDespiteDropsAndFailures() throws Exception {
+        final int rounds = 20;
+        final int failedRequest = 5;
+        final Semaphore arrived = new Semaphore(0);
+        final Semaphore answer = new Semaphore(0);
+        final CompactDecoder decoder = new CompactDecoder();
+        final int[] requests = {0};
+        final int[] decoded = {0};
+        final int[] deltas = {0};
+        RealtimeUploader uploader = new RealtimeUploader(new RealtimeUploader.Transport() {
+            @Override
+            public LocationImprovement send(byte[] update, long trace) throws IOException {
+                arrived.release();
+                answer.acquireUninterruptibly();
+                if (++requests[0] == failedRequest) {
+                    throw new IOException("lost on the way");
+                }
+                CompactUpdate cu = CompactUpdate.parseFrom(update);
+                assertNotNull("request " + requests[0], decoder.decode(cu));
+                decoded[0]++;
+                if (!cu.keyframe) {
+                    deltas[0]++;
+                }
+                return new LocationImprovement();
+            }
+        }, new RealtimeUploader.Listener() {
+            @Override
+            public void onImprovement(LocationImprovement improvement) {
+            }
+        }, new Telemetry(), 1, 1);
+        RealtimeUplink uplink = new RealtimeUplink(uploader, null, new CompactEncoder(KEYFRAME_INTERVAL));
+        Walk walk = new Walk(6);
+
+        uplink.send(walk.next(), null, 0);
+        arrived.acquire();
+        for (int i = 0; i < rounds; i++) {
+            // Two of these are dropped while a request is in flight and the last one waits
+            for (int j = 0; j < 3; j++) {
+                uplink.send(walk.next(), null, 0);
+            }
+            answer.release();
+            arrived.acquire();
+        }
+        answer.release();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (uploader.getSucceededCount() + uploader.getFailedCount() < rounds + 1) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        uploader.shutdown();
+
+        assertEquals(2 * rounds, uploader.getDroppedCount());
+        assertEquals(1, uploader.getFailedCount());
+        assertEquals(rounds, decoded[0]);
+        // Deltas were sent between the keyframes that follow the start and the failure
+        assertTrue(deltas[0] > rounds / 2);
+    }
+
+    /**
+     * Bytes on the wire for the same walk in both formats. Prints the totals so a change in
+     * either encoding shows up in the test output.
+     */
+    @Test
+    public void compactIsMuchSmallerThanFullUpdates() {
+        Walk walk = new Walk(5);
+        CompactEncoder encoder = new CompactEncoder(KEYFRAME_INTERVAL);
+        long fullBytes = 0;
+        long compactBytes = 0;
+        long keyframeBytes = 0;
+        int keyframes = 0;
+        for (int i = 0; i < EPOCHS; i++) {
+            LocationUpdate update = walk.next();
+            fullBytes += MessageNano.toByteArray(update).length;
+            CompactUpdate cu = encoder.encode(update);
+            int size = MessageNano.toByteArray(cu).length;
+            compactBytes += size;
+            if (cu.keyframe) {
+                keyframeBytes += size;
+                keyframes++;
+            }
+        }
+        System.out.println("Full LocationUpdate: " + fullBytes / EPOCHS + " bytes/epoch; CompactUpdate: "
+                + compactBytes / EPOCHS + " bytes/epoch (keyframes " + keyframeBytes / keyframes + ", deltas "
+                + (compactBytes - keyframeBytes) / (EPOCHS - keyframes) + "); "
+                + String.format("%.1f", fullBytes / (double) compactBytes) + "x smaller");
+        assertTrue(compactBytes * 3 < fullBytes);
+    }
+
+    private static CompactUpdate reparse(CompactUpdate cu) {
+        try {
+            return CompactUpdate.parseFrom(MessageNano.toByteArray(cu));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static CompactUpdate deltaWithoutBase() {
+        CompactUpdate cu = new CompactUpdate();
+        cu.seq = 7;
+        cu.baseSeq = 6;
+        return cu;
+    }
+
+    // Equal up to the compact quantization
+    private static void assertEquivalent(LocationUpdate expected, LocationUpdate actual) {
+        assertEquals(expected.satInfoTime, actual.satInfoTime);
+        assertEquals(expected.userInfo.id, actual.userInfo.id);
+        LocationEstimate e = expected.estimates[expected.estimates.length - 1];
+        LocationEstimate a = actual.estimates[0];
+        assertEquals(e.utc, a.utc);
+        assertEquals(e.lat, a.lat, 0.51e-7);
+        assertEquals(e.lon, a.lon, 0.51e-7);
+        assertEquals(e.acc, a.acc, 0.051);
+        assertEquals(e.alt, a.alt, 0.051);
+        assertEquals(e.speed, a.speed, 0.0051);
+        assertEquals(e.bearing, a.bearing, 0.051);
+        assertEquals(e.provider, a.provider);
+
+        SatInfo[] sorted = sortedByPrn(expected.satelliteInfos);
+        int[] expectedPrns = new int[sorted.length];
+        int[] actualPrns = new int[actual.satelliteInfos.length];
+        for (int i = 0; i < sorted.length; i++) {
+            expectedPrns[i] = sorted[i].prn;
+        }
+        for (int i = 0; i < actualPrns.length; i++) {
+            actualPrns[i] = actual.satelliteInfos[i].prn;
+        }
+        assertArrayEquals(expectedPrns, actualPrns);
+        for (int i = 0; i < sorted.length; i++) {
+            SatInfo s = sorted[i];
+            SatInfo d = actual.satelliteInfos[i];
+            assertEquals(s.snr, d.snr, 0.051);
+            assertEquals(s.azimuth, d.azimuth, 0.051);
+            assertEquals(s.elevation, d.elevation, 0.051);
+            assertEquals(s.used, d.used);
+            assertEquals(s.almanac, d.almanac);
+            assertEquals(s.ephemeris, d.ephemeris);
+        }
+    }
+
+    private static SatInfo[] sortedByPrn(SatInfo[] sats) {
+        SatInfo[] sorted = sats.clone();
+        for (int i = 1; i < sorted.length; i++) {
+            for (int j = i; j > 0 && sorted[j - 1].prn > sorted[j].prn; j--) {
+                SatInfo t = sorted[j];
+                sorted[j] = sorted[j - 1];
+                sorted[j - 1] = t;
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * A pedestrian at 1 Hz under a slowly moving constellation, as the full format sends it.
+     */
+    private static final class Walk {
+        private static final int MAX_PRN = 32;
+
+        private final Random random;
+        private final UserInformation user = new UserInformation();
+        private final boolean[] visible = new boolean[MAX_PRN + 1];
+        private final float[] snr = new float[MAX_PRN + 1];
+        private final float[] azimuth = new float[MAX_PRN + 1];
+        private final float[] elevation = new float[MAX_PRN + 1];
+        private double lat = 37.7749295;
+        private double lon = -122.4194155;
+        private long utc = 1450000000000L;
+        private int epoch = 0;
+
+        Walk(long seed) {
+            random = new Random(seed);
+            user.id = "device";
+            user.apiKey = "key";
+            user.model = "Nexus 5";
+            for (int i = 0; i < 10; i++) {
+                riseSatellite();
+            }
+        }
+
+        void riseSatellite() {
+            int prn;
+            do {
+                prn = 1 + random.nextInt(MAX_PRN);
+            } while (visible[prn]);
+            visible[prn] = true;
+            snr[prn] = 25 + random.nextInt(20);
+            azimuth[prn] = random.nextInt(3600) / 10f;
+            elevation[prn] = random.nextInt(900) / 10f;
+        }
+
+        void setSatellite() {
+            for (int prn = 1; prn <= MAX_PRN; prn++) {
+                if (visible[prn]) {
+                    visible[prn] = false;
+                    return;
+                }
+            }
+        }
+
+        LocationUpdate next() {
+            epoch++;
+            utc += 1000;
+            lat += 1.2e-5 * (0.8 + 0.4 * random.nextDouble());
+            lon += 0.3e-5 * random.nextGaussian();
+
+            LocationUpdate lu = new LocationUpdate();
+            lu.userInfo = user;
+            lu.satInfoTime = utc - 200 + random.nextInt(50);
+            LocationEstimate le = new LocationEstimate();
+            le.lat = lat;
+            le.lon = lon;
+            le.utc = utc;
+            le.acc = 3 + random.nextInt(100) / 10f;
+            le.alt = 12.5f + random.nextInt(20) / 10f;
+            le.speed = 1.3f + random.nextInt(30) / 100f;
+            le.bearing = random.nextInt(3600) / 10f;
+            le.provider = epoch % 50 == 0 ? "fused" : "gps";
+            lu.estimates = new LocationEstimate[] {le};
+
+            int count = 0;
+            for (int prn = 1; prn <= MAX_PRN; prn++) {
+                if (visible[prn]) {
+                    count++;
+                }
+            }
+            SatInfo[] sats = new SatInfo[count];
+            int n = 0;
+            // Reported in the order the chipset happens to use, not by PRN
+            for (int prn = MAX_PRN; prn >= 1; prn--) {
+                if (!visible[prn]) {
+                    continue;
+                }
+                snr[prn] = Math.max(10, Math.min(50, snr[prn] + (float) random.nextGaussian()));
+                azimuth[prn] = (azimuth[prn] + 0.008f) % 360;
+                elevation[prn] = Math.min(90, elevation[prn] + 0.004f);
+                SatInfo sat = new SatInfo();
+                sat.prn = prn;
+                sat.snr = Math.round(snr[prn] * 10) / 10f;
+                sat.azimuth = azimuth[prn];
+                sat.elevation = elevation[prn];
+                sat.almanac = true;
+                sat.ephemeris = prn % 3 != 0;
+                sat.used = snr[prn] > 30;
+                sat.utc = lu.satInfoTime;
+                sats[n++] = sat;
+            }
+            lu.satelliteInfos = sats;
+            return lu;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.NMEAInfo;
+import com.shadowmaps.util.api.protobufs.SensorInfo;
+import com.shadowmaps.util.api.protobufs.UserInformation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class EpochBuilderTest {
+    private static final int WARMUP_EPOCHS = 2000;
+    private static final int[] SENTENCES_PER_EPOCH = {10, 100, 1000};
+
+    private final UserInformation userInfo = new UserInformation();
+
+    @Test
+    public void buildsExactLengthArraysAndResets() {
+        EpochBuilder builder = new EpochBuilder();
+        NMEAInfo[] nmea = sentences(100);
+        for (NMEAInfo sentence : nmea) {
+            builder.addNmeaInfo(sentence);
+        }
+        builder.addSensorInfo(new SensorInfo());
+        builder.setSatInfoTime(1234);
+
+        LocationUpdate lu = builder.build(userInfo);
+        assertEquals(100, lu.nmeaInfos.length);
+        for (int i = 0; i < nmea.length; i++) {
+            assertSame(nmea[i], lu.nmeaInfos[i]);
+        }
+        assertEquals(1, lu.sensorInfos.length);
+        assertEquals(1234, lu.satInfoTime);
+        assertSame(userInfo, lu.userInfo);
+
+        LocationUpdate next = builder.build(userInfo);
+        assertEquals(0, next.nmeaInfos.length);
+        assertEquals(0, next.sensorInfos.length);
+        assertEquals(0, next.satInfoTime);
+    }
+
+    @Test
+    public void collectingAllocatesNothingOnceBuffersHaveGrown() {
+        EpochBuilder builder = new EpochBuilder();
+        NMEAInfo[] nmea = sentences(SENTENCES_PER_EPOCH[SENTENCES_PER_EPOCH.length - 1]);
+        for (int i = 0; i < WARMUP_EPOCHS; i++) {
+            collect(builder, nmea, nmea.length);
+            builder.reset();
+        }
+        for (int count : SENTENCES_PER_EPOCH) {
+            long before = Allocations.current();
+            collect(builder, nmea, count);
+            long allocated = Allocations.current() - before;
+            builder.reset();
+            assertEquals("bytes allocated collecting " + count + " sentences", 0, allocated);
+        }
+    }
+
+    @Test
+    public void buildAllocatesOnlyTheEpochItself() {
+        EpochBuilder builder = new EpochBuilder();
+        int most = SENTENCES_PER_EPOCH[SENTENCES_PER_EPOCH.length - 1];
+        NMEAInfo[] nmea = sentences(most);
+        for (int i = 0; i < WARMUP_EPOCHS; i++) {
+            collect(builder, nmea, nmea.length);
+            builder.build(userInfo);
+        }
+        long fewest = epochAllocation(builder, nmea, SENTENCES_PER_EPOCH[0]);
+        long largest = epochAllocation(builder, nmea, most);
+        // Beyond the exact-length nmeaInfos array, at most one reference per extra sentence
+        long perSentence = (largest - fewest) / (most - SENTENCES_PER_EPOCH[0]);
+        assertTrue("bytes per sentence " + perSentence, perSentence <= 8);
+    }
+
+    private long epochAllocation(EpochBuilder builder, NMEAInfo[] nmea, int count) {
+        long before = Allocations.current();
+        collect(builder, nmea, count);
+        LocationUpdate lu = builder.build(userInfo);
+        long allocated = Allocations.current() - before;
+        assertEquals(count, lu.nmeaInfos.length);
+        return allocated;
+    }
+
+    private static void collect(EpochBuilder builder, NMEAInfo[] nmea, int count) {
+        for (int i = 0; i < count; i++) {
+            builder.addNmeaInfo(nmea[i]);
+        }
+    }
+
+    private static NMEAInfo[] sentences(int count) {
+        NMEAInfo[] nmea = new NMEAInfo[count];
+        for (int i = 0; i < count; i++) {
+            nmea[i] = new NMEAInfo();
+            nmea[i].sentence = "$GPGGA,123519," + i;
+        }
+        return nmea;
+    }
+}
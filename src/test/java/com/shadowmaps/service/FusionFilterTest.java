@@ -0,0 +1,155 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Walks a simulated pedestrian around a square and feeds the filter what the device would see:
+ * a step every 500 ms, a noisy absolute heading every 200 ms and a server improvement every
+ * second that describes a fix taken 600 ms earlier with 4 m of noise on each axis. The estimate
+ * is read at 10 Hz, as LocationFusion emits it, and compared with the true position and with the
+ * last improvement as received.
+ */
+public class FusionFilterTest {
+    private static final double METERS_PER_DEGREE = 6371008.8 * Math.PI / 180;
+    private static final double LAT = 40.7;
+    private static final double LON = -74.0;
+    private static final double METERS_PER_DEGREE_LON = METERS_PER_DEGREE * Math.cos(Math.toRadians(LAT));
+
+    private static final long START_MS = 100000;
+    private static final long WALK_MS = 120000;
+    // Each side of the square takes this long
+    private static final long LEG_MS = 30000;
+    private static final long WARMUP_MS = 10000;
+    private static final long TICK_MS = 100;
+    private static final long STEP_MS = 500;
+    private static final long HEADING_MS = 200;
+    private static final long FIX_MS = 1000;
+    private static final long LAG_MS = 600;
+    private static final double SPEED = FusionFilter.STEP_LENGTH * 1000.0 / STEP_MS;
+    private static final double FIX_NOISE = 4;
+    private static final double HEADING_NOISE = 0.1;
+
+    private final Random random = new Random(42);
+    private final FusionFilter filter = new FusionFilter();
+
+    @Test
+    public void walkIsTrackedCloserThanTheImprovements() {
+        double[] errors = walk(HEADING_MS);
+        // Mean error of the fused estimate, then of the last improvement
+        assertTrue("fused " + errors[0] + " m, improvements " + errors[1] + " m", errors[0] < 2.5);
+        assertTrue("fused " + errors[0] + " m, improvements " + errors[1] + " m", errors[0] < errors[1] / 2);
+        assertEquals(0, filter.getResetCount());
+    }
+
+    @Test
+    public void stepsWithoutAFreshHeadingDoNotMoveTheEstimate() {
+        double[] fresh = walk(HEADING_MS);
+        random.setSeed(42);
+        // Headings only arrive with a FIFO flush, long after the steps they belong to
+        double[] stale = walk(5000);
+        assertTrue("fresh " + fresh[0] + " m, stale " + stale[0] + " m", stale[0] > fresh[0]);
+    }
+
+    @Test
+    public void standingStillDoesNotDrift() {
+        double errorSum = 0;
+        int samples = 0;
+        for (long t = START_MS; t < START_MS + WALK_MS; t += TICK_MS) {
+            if ((t - START_MS) % FIX_MS == 0) {
+                filter.onMeasurement(t, improvement(noisy(0), noisy(0)), LAG_MS);
+            }
+            filter.predict(t);
+            if (t - START_MS >= WARMUP_MS) {
+                errorSum += Math.hypot(east(filter.getLongitude()), north(filter.getLatitude()));
+                samples++;
+            }
+        }
+        assertTrue(errorSum / samples < FIX_NOISE / 2);
+        assertTrue(filter.getSpeed() < 0.5);
+    }
+
+    /**
+     * @return mean error of the fused estimate and of the last improvement, in meters
+     */
+    private double[] walk(long headingPeriodMs) {
+        double fusedSum = 0;
+        double improvementSum = 0;
+        int samples = 0;
+        double improvementEast = Double.NaN;
+        double improvementNorth = Double.NaN;
+        for (long t = START_MS; t < START_MS + WALK_MS; t += TICK_MS) {
+            long elapsed = t - START_MS;
+            if (elapsed % STEP_MS == 0) {
+                filter.onStep(t);
+            }
+            if (elapsed % headingPeriodMs == 0) {
+                filter.onHeading(t, (float) (heading(elapsed) + random.nextGaussian() * HEADING_NOISE));
+            }
+            if (elapsed % FIX_MS == 0 && elapsed >= LAG_MS) {
+                improvementEast = noisy(trueEast(elapsed - LAG_MS));
+                improvementNorth = noisy(trueNorth(elapsed - LAG_MS));
+                filter.onMeasurement(t, improvement(improvementEast, improvementNorth), LAG_MS);
+            }
+            filter.predict(t);
+            if (elapsed >= WARMUP_MS) {
+                double e = trueEast(elapsed);
+                double n = trueNorth(elapsed);
+                fusedSum += Math.hypot(east(filter.getLongitude()) - e, north(filter.getLatitude()) - n);
+                improvementSum += Math.hypot(improvementEast - e, improvementNorth - n);
+                samples++;
+            }
+        }
+        return new double[]{fusedSum / samples, improvementSum / samples};
+    }
+
+    // Radians clockwise from north: east, north, west, south
+    private static double heading(long elapsedMs) {
+        return Math.PI / 2 - (elapsedMs / LEG_MS) * Math.PI / 2;
+    }
+
+    private static double trueEast(long elapsedMs) {
+        return position(elapsedMs, 0);
+    }
+
+    private static double trueNorth(long elapsedMs) {
+        return position(elapsedMs, 1);
+    }
+
+    private static double position(long elapsedMs, int axis) {
+        double[] p = new double[2];
+        for (long start = 0; start < elapsedMs; start += LEG_MS) {
+            double d = SPEED * Math.min(LEG_MS, elapsedMs - start) / 1000.0;
+            double h = heading(start);
+            p[0] += d * Math.sin(h);
+            p[1] += d * Math.cos(h);
+        }
+        return p[axis];
+    }
+
+    private double noisy(double meters) {
+        return meters + random.nextGaussian() * FIX_NOISE;
+    }
+
+    private static LocationImprovement improvement(double east, double north) {
+        LocationImprovement r = new LocationImprovement();
+        r.lat = LAT + north / METERS_PER_DEGREE;
+        r.lon = LON + east / METERS_PER_DEGREE_LON;
+        r.acc = (float) FIX_NOISE;
+        return r;
+    }
+
+    private static double east(double lon) {
+        return (lon - LON) * METERS_PER_DEGREE_LON;
+    }
+
+    private static double north(double lat) {
+        return (lat - LAT) * METERS_PER_DEGREE;
+    }
+}
@@ -0,0 +1,155 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Races simulated paths that answer on a timer. Both paths answer most requests in FAST_MS and
+ * the rest in SLOW_MS, independently of each other, as when a lost packet stalls one connection.
+ */
+public class HedgedTransportTest {
+    private static final long FAST_MS = 10;
+    private static final long SLOW_MS = 250;
+    private static final double SLOW_FRACTION = 0.2;
+    private static final double HEDGE_PERCENTILE = 90;
+    // Enough for both paths to pass HedgedTransport.MIN_SAMPLES
+    private static final int WARMUP_SENDS = 40;
+    private static final int MEASURED_SENDS = 80;
+
+    private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2);
+    private final Telemetry telemetry = new Telemetry();
+    private final HedgedTransport.Networks wifi = new HedgedTransport.Networks() {
+        @Override
+        public String current() {
+            return "wifi";
+        }
+
+        @Override
+        public boolean isCellular() {
+            return false;
+        }
+    };
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void hedgingCutsTheTail() throws IOException {
+        long unhedged = p90(new HedgedTransport(new SimulatedPath(1), new SimulatedPath(2), wifi, telemetry,
+                false, HEDGE_PERCENTILE));
+        long hedged = p90(new HedgedTransport(new SimulatedPath(1), new SimulatedPath(2), wifi, telemetry,
+                true, HEDGE_PERCENTILE));
+        assertTrue("p90 " + unhedged + " ms unhedged", unhedged >= SLOW_MS);
+        assertTrue("p90 " + hedged + " ms hedged, " + unhedged + " ms unhedged", hedged < unhedged / 2);
+    }
+
+    @Test
+    public void failureIsSentOnTheOtherPath() throws IOException {
+        SimulatedPath tcp = new SimulatedPath(1);
+        SimulatedPath quic = new SimulatedPath(2);
+        tcp.failing = true;
+        HedgedTransport transport = new HedgedTransport(tcp, quic, wifi, telemetry, true, HEDGE_PERCENTILE);
+        assertNotNull(transport.send(new byte[1], 0));
+        assertEquals(1, tcp.starts.get());
+        assertEquals(1, quic.starts.get());
+    }
+
+    @Test
+    public void failureIsNotSentAgainWithoutHedging() {
+        SimulatedPath tcp = new SimulatedPath(1);
+        SimulatedPath quic = new SimulatedPath(2);
+        tcp.failing = true;
+        HedgedTransport transport = new HedgedTransport(tcp, quic, wifi, telemetry, false, HEDGE_PERCENTILE);
+        try {
+            transport.send(new byte[1], 0);
+            fail("sent on the other path");
+        } catch (IOException expected) {
+            // The path's own failure, not the timeout
+            assertEquals(SimulatedPath.FAILURE, expected.getMessage());
+        }
+        assertEquals(1, tcp.starts.get());
+        assertEquals(0, quic.starts.get());
+    }
+
+    @Test
+    public void slowRequestIsNotSentAgainWithoutHedging() throws IOException {
+        SimulatedPath tcp = new SimulatedPath(1);
+        SimulatedPath quic = new SimulatedPath(2);
+        tcp.slowFraction = 1;
+        HedgedTransport transport = new HedgedTransport(tcp, quic, wifi, telemetry, false, HEDGE_PERCENTILE);
+        assertNotNull(transport.send(new byte[1], 0));
+        assertEquals(0, quic.starts.get());
+    }
+
+    // Of the time each send blocks, in milliseconds
+    private static long p90(HedgedTransport transport) throws IOException {
+        for (int i = 0; i < WARMUP_SENDS; i++) {
+            transport.send(new byte[1], 0);
+        }
+        long[] ms = new long[MEASURED_SENDS];
+        for (int i = 0; i < MEASURED_SENDS; i++) {
+            long start = System.nanoTime();
+            assertNotNull(transport.send(new byte[1], 0));
+            ms[i] = (System.nanoTime() - start) / 1000000;
+        }
+        Arrays.sort(ms);
+        return ms[(int) Math.ceil(0.9 * MEASURED_SENDS) - 1];
+    }
+
+    private final class SimulatedPath implements HedgedTransport.Path {
+        static final String FAILURE = "simulated failure";
+
+        final Random random;
+        final AtomicInteger starts = new AtomicInteger();
+        volatile boolean failing = false;
+        volatile double slowFraction = SLOW_FRACTION;
+
+        SimulatedPath(long seed) {
+            random = new Random(seed);
+        }
+
+        @Override
+        public HedgedTransport.Call start(byte[] update, final HedgedTransport.Callback callback) {
+            starts.incrementAndGet();
+            long delayMs;
+            synchronized (random) {
+                delayMs = random.nextDouble() < slowFraction ? SLOW_MS : FAST_MS;
+            }
+            final ScheduledFuture<?> answer = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (failing) {
+                        callback.onFailure(new IOException(FAILURE));
+                    } else {
+                        callback.onFirstByte();
+                        callback.onResponse(new LocationImprovement());
+                    }
+                }
+            }, failing ? 0 : delayMs, TimeUnit.MILLISECONDS);
+            return new HedgedTransport.Call() {
+                @Override
+                public void cancel() {
+                    answer.cancel(false);
+                }
+            };
+        }
+    }
+}
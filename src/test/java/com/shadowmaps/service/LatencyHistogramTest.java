@@ -0,0 +1,91 @@
+package com.shadowmaps.service;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void bucketsAreExactBelowEightMicroseconds() {
+        for (int us = 0; us < 8; us++) {
+            assertEquals(us, LatencyHistogram.index(us));
+            assertEquals(us, LatencyHistogram.lowerBound(us));
+        }
+        assertEquals(8, LatencyHistogram.index(8));
+        assertEquals(15, LatencyHistogram.index(15));
+        assertEquals(16, LatencyHistogram.index(16));
+        assertEquals(16, LatencyHistogram.index(17));
+        assertEquals(18, LatencyHistogram.lowerBound(17));
+    }
+
+    @Test
+    public void bucketsTileTheRangeWithinAnEighth() {
+        int last = LatencyHistogram.index(LatencyHistogram.MAX_VALUE_US);
+        assertEquals(0, LatencyHistogram.lowerBound(0));
+        for (int i = 0; i <= last; i++) {
+            long lower = LatencyHistogram.lowerBound(i);
+            long upper = LatencyHistogram.lowerBound(i + 1) - 1;
+            assertEquals(i, LatencyHistogram.index(lower));
+            assertEquals(i, LatencyHistogram.index(upper));
+            assertTrue("bucket " + i, upper - lower <= Math.max(0, lower / 8));
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE_US, LatencyHistogram.lowerBound(last + 1) - 1);
+    }
+
+    @Test
+    public void percentilesOfAUniformDistribution() {
+        for (int us = 1; us <= 10000; us++) {
+            histogram.record(us);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertNear(5000, histogram.percentile(0.5));
+        assertNear(9000, histogram.percentile(0.9));
+        assertNear(9900, histogram.percentile(0.99));
+        assertEquals(1, histogram.percentile(0));
+        assertNear(10000, histogram.percentile(1));
+    }
+
+    @Test
+    public void percentilesOfABimodalDistribution() {
+        // As with a stalled connection: most answers fast, a tenth slow
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(250000);
+        }
+        assertEquals(100, histogram.percentile(0.5));
+        assertEquals(100, histogram.percentile(0.9));
+        assertNear(250000, histogram.percentile(0.91));
+        assertNear(250000, histogram.percentile(0.99));
+        assertEquals(25090, histogram.snapshot().getMeanUs());
+    }
+
+    @Test
+    public void percentilesAreClampedToTheRecordedRange() {
+        for (int i = 0; i < 5; i++) {
+            histogram.record(12345);
+        }
+        assertEquals(12345, histogram.percentile(0.01));
+        assertEquals(12345, histogram.percentile(0.99));
+    }
+
+    @Test
+    public void outOfRangeValuesCountAtTheEnds() {
+        assertEquals(0, histogram.percentile(0.5));
+        histogram.record(-5);
+        histogram.record(LatencyHistogram.MAX_VALUE_US * 4);
+        assertEquals(0, histogram.percentile(0.5));
+        long top = histogram.percentile(1);
+        int last = LatencyHistogram.index(LatencyHistogram.MAX_VALUE_US);
+        assertTrue(top >= LatencyHistogram.lowerBound(last) && top <= LatencyHistogram.MAX_VALUE_US);
+        assertEquals(LatencyHistogram.MAX_VALUE_US * 4, histogram.snapshot().getMaxUs());
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("expected " + expected + " us, got " + actual, Math.abs(actual - expected) <= expected / 8);
+    }
+}
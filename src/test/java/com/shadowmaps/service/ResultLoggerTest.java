@@ -0,0 +1,194 @@
+package com.shadowmaps.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queues results before the writer starts, so how they are split into writes and files does not
+ * depend on thread timing, then waits for the writer to put all of them on disk.
+ */
+public class ResultLoggerTest {
+    private static final long FLUSH_INTERVAL_MS = 60000;
+    private static final long TIMEOUT_MS = 10000;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("results", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void csvLinesAreRoundedHalfUp() throws Exception {
+        ResultLogger logger = newLogger(ResultLogger.FORMAT_CSV, 1 << 20);
+        logger.log(1450000000000L, 37.7749295, -122.4194155, 4.25);
+        // Rounding carries into the integer part; a negative value that rounds to zero has no sign
+        logger.log(0, 0.99999996, -0.00000004, 9.999);
+        logger.log(-5, -33.8688197, -0.5, 0);
+        // Halves round away from zero
+        logger.log(1, 0.00000005, -0.00000015, -0.125);
+        logger.log(2, Double.NaN, Double.POSITIVE_INFINITY, 1e12);
+        logger.log(Long.MAX_VALUE, -90, 180, 0.004);
+        String expected = "1450000000000,37.7749295,-122.4194155,4.25\n"
+                + "0,1.0000000,0.0000000,10.00\n"
+                + "-5,-33.8688197,-0.5000000,0.00\n"
+                + "1,0.0000001,-0.0000002,-0.13\n"
+                + "2,NaN,NaN,NaN\n"
+                + Long.MAX_VALUE + ",-90.0000000,180.0000000,0.00\n";
+        logger.close();
+        logger.start();
+
+        File file = new File(dir, "results.csv");
+        awaitLength(expected.length(), file);
+        assertEquals(expected, new String(read(file), "US-ASCII"));
+        assertEquals(6, logger.getLoggedCount());
+    }
+
+    @Test
+    public void binaryRecordsAreFixedWidthAfterTheHeader() throws Exception {
+        ResultLogger logger = newLogger(ResultLogger.FORMAT_BINARY, 1 << 20);
+        logger.log(1450000000000L, 37.7749295, -122.4194155, 4.25);
+        logger.log(-1, Double.NaN, -0.0, Double.NaN);
+        logger.log(Long.MIN_VALUE, -90, Double.MAX_VALUE, 1e-3);
+        logger.close();
+        logger.start();
+
+        File file = new File(dir, "results.smr");
+        awaitLength(8 + 3 * ResultLogger.BINARY_RECORD_SIZE, file);
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            assertEquals(ResultLogger.MAGIC, in.readInt());
+            assertEquals(28, in.readInt());
+            assertRecord(in, 1450000000000L, 37.7749295, -122.4194155, 4.25f);
+            assertRecord(in, -1, Double.NaN, -0.0, Float.NaN);
+            assertRecord(in, Long.MIN_VALUE, -90, Double.MAX_VALUE, 1e-3f);
+            assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void filesRotateAtLineBoundariesAndResumeAppending() throws Exception {
+        long maxFileBytes = 300;
+        ResultLogger logger = newLogger(ResultLogger.FORMAT_CSV, maxFileBytes);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            double lat = 40 + i * 1e-5;
+            double acc = 3 + i * 0.25;
+            logger.log(1450000000000L + i * 1000, lat, -74, acc);
+            expected.append(1450000000000L + i * 1000).append(',')
+                    .append(String.format(Locale.US, "%.7f,-74.0000000,%.2f\n", lat, acc));
+        }
+        logger.close();
+        logger.start();
+        String all = awaitFiles(expected.length(), ".csv");
+        assertEquals(expected.toString(), all);
+
+        File[] files = files(".csv");
+        assertTrue(files.length > 2);
+        for (int i = 0; i < files.length; i++) {
+            byte[] content = read(files[i]);
+            assertEquals('\n', content[content.length - 1]);
+            if (i < files.length - 1) {
+                assertTrue(files[i] + " " + content.length, content.length >= maxFileBytes);
+            }
+        }
+
+        // The next session skips full files and appends to the last one
+        long last = files[files.length - 1].length();
+        logger = newLogger(ResultLogger.FORMAT_CSV, maxFileBytes);
+        logger.log(1, 2, 3, 4);
+        logger.close();
+        logger.start();
+        awaitLength(last + "1,2.0000000,3.0000000,4.00\n".length(), files[files.length - 1]);
+        assertEquals(files.length, files(".csv").length);
+    }
+
+    private ResultLogger newLogger(int format, long maxFileBytes) {
+        return new ResultLogger(dir, "results", format, 64, 0, FLUSH_INTERVAL_MS, maxFileBytes);
+    }
+
+    private static void assertRecord(DataInputStream in, long utc, double lat, double lon, float acc)
+            throws IOException {
+        assertEquals(utc, in.readLong());
+        assertEquals(lat, in.readDouble(), 0);
+        assertEquals(lon, in.readDouble(), 0);
+        assertEquals(acc, in.readFloat(), 0);
+    }
+
+    private static void awaitLength(long length, File file) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (file.length() < length) {
+            assertTrue(file + " has " + file.length() + " bytes", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertEquals(length, file.length());
+    }
+
+    // Contents of the rotated files in order, once they add up to length
+    private String awaitFiles(long length, String extension) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            for (File f : files(extension)) {
+                all.write(read(f));
+            }
+            if (all.size() >= length || System.currentTimeMillis() >= deadline) {
+                return all.toString("US-ASCII");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private File[] files(String extension) {
+        int count = 0;
+        while (new File(dir, "results" + (count == 0 ? "" : "_" + count) + extension).exists()) {
+            count++;
+        }
+        File[] files = new File[count];
+        for (int i = 0; i < count; i++) {
+            files[i] = new File(dir, "results" + (i == 0 ? "" : "_" + i) + extension);
+        }
+        return files;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
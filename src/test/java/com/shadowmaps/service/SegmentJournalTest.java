@@ -0,0 +1,138 @@
+package com.shadowmaps.service;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the journal on a plain JVM against a temporary directory.
+ */
+public class SegmentJournalTest {
+    private static final int RECORD_SIZE = 100;
+    // Magic plus ten records with their headers
+    private static final long SEGMENT_BYTES = 4 + 10 * (8 + RECORD_SIZE);
+    private static final long TIMEOUT_MS = 10000;
+
+    private File dir;
+    private final List<Integer> segments = new ArrayList<>();
+    private int breaks = 0;
+    private SegmentJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("journal", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void listenerLearnsOfEachBoundaryBeforeTheNextRecord() throws Exception {
+        journal = newJournal(SEGMENT_BYTES, 60000, 256);
+        for (int i = 1; i <= 25; i++) {
+            assertTrue(journal.append(new byte[RECORD_SIZE]));
+            // The record that fills a segment is its last, and the break is reported right away
+            assertEquals(i / 10, breaks);
+        }
+        journal.close();
+        awaitRecords(25);
+        assertEquals(3, segments.size());
+        assertEquals(10, (int) segments.get(0));
+        assertEquals(10, (int) segments.get(1));
+        assertEquals(5, (int) segments.get(2));
+    }
+
+    @Test
+    public void ageEndsTheSegmentAtTheRecordThatExceedsIt() throws Exception {
+        journal = newJournal(Long.MAX_VALUE, 50, 256);
+        journal.append(new byte[RECORD_SIZE]);
+        Thread.sleep(100);
+        // Nothing is sealed while no record arrives
+        synchronized (segments) {
+            assertEquals(0, segments.size());
+        }
+        journal.append(new byte[RECORD_SIZE]);
+        assertEquals(1, breaks);
+        journal.append(new byte[RECORD_SIZE]);
+        journal.close();
+        awaitRecords(3);
+        assertEquals(2, segments.size());
+        assertEquals(2, (int) segments.get(0));
+        assertEquals(1, (int) segments.get(1));
+    }
+
+    @Test
+    public void droppedRecordIsABreak() throws Exception {
+        journal = newJournal(SEGMENT_BYTES, 60000, 256);
+        journal.close();
+        assertFalse(journal.append(new byte[RECORD_SIZE]));
+        assertEquals(1, breaks);
+        assertEquals(1, journal.getDroppedCount());
+    }
+
+    private SegmentJournal newJournal(long maxSegmentBytes, long maxSegmentAgeMs, int maxQueued) {
+        SegmentJournal j = new SegmentJournal(dir, new SegmentJournal.SealListener() {
+            @Override
+            public boolean onSegmentSealed(File segment) {
+                final int[] records = {0};
+                try {
+                    SegmentJournal.readRecords(segment, new SegmentJournal.RecordHandler() {
+                        @Override
+                        public void onRecord(byte[] data, int offset, int length) {
+                            records[0]++;
+                        }
+                    });
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                synchronized (segments) {
+                    segments.add(records[0]);
+                }
+                return true;
+            }
+        }, maxSegmentBytes, maxSegmentAgeMs, Long.MAX_VALUE, null, SegmentJournal.FSYNC_NEVER, maxQueued);
+        j.setSegmentListener(new SegmentJournal.SegmentListener() {
+            @Override
+            public void onSegmentBreak() {
+                breaks++;
+            }
+        });
+        j.start();
+        return j;
+    }
+
+    private void awaitRecords(int records) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            int total = 0;
+            synchronized (segments) {
+                for (int n : segments) {
+                    total += n;
+                }
+            }
+            if (total >= records) {
+                return;
+            }
+            assertTrue("only " + total + " of " + records + " records sealed", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.shadowmaps.service;
+
+import android.hardware.Sensor;
+
+import com.shadowmaps.util.api.protobufs.InertialSeries;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds synthetic sensor events through SensorSource.onEvent, as the ingest thread does. On the
+ * JVM the framework's rotation math returns default values, so this measures SensorSource's own
+ * handling of each event.
+ */
+public class SensorSourceTest {
+    private static final int INERTIAL_CAPACITY = 256;
+    private static final int WARMUP_EVENTS = 20000;
+    private static final int MEASURED_EVENTS = 5000;
+
+    private final EpochBuilder epoch = new EpochBuilder();
+    private final IngestEvent event = new IngestEvent();
+    private long timeNanos = 0;
+
+    @Test
+    public void rotationVectorPathAllocatesNothing() {
+        SensorSource source = newSource();
+        assertEquals(0, allocationFor(source, Sensor.TYPE_ROTATION_VECTOR, 5));
+        assertEquals(0, allocationFor(source, Sensor.TYPE_ROTATION_VECTOR, 4));
+        assertEquals(0, allocationFor(source, Sensor.TYPE_GAME_ROTATION_VECTOR, 4));
+    }
+
+    @Test
+    public void accelerometerAndMagnetometerPathAllocatesNothing() {
+        SensorSource source = newSource();
+        for (int i = 0; i < WARMUP_EVENTS; i++) {
+            feed(source, Sensor.TYPE_ACCELEROMETER, 3);
+            feed(source, Sensor.TYPE_MAGNETIC_FIELD, 3);
+        }
+        long before = Allocations.current();
+        for (int i = 0; i < MEASURED_EVENTS; i++) {
+            feed(source, Sensor.TYPE_ACCELEROMETER, 3);
+            feed(source, Sensor.TYPE_MAGNETIC_FIELD, 3);
+        }
+        assertEquals(0, Allocations.current() - before);
+    }
+
+    @Test
+    public void linearAccelerationPathAllocatesNothing() {
+        assertEquals(0, allocationFor(newSource(), Sensor.TYPE_LINEAR_ACCELERATION, 3));
+    }
+
+    @Test
+    public void aggregatingAllocatesNothing() {
+        SensorAggregate aggregate = new SensorAggregate(Sensor.TYPE_LINEAR_ACCELERATION, 3);
+        float[] values = {0.1f, 0.2f, 9.8f};
+        for (int i = 0; i < WARMUP_EVENTS; i++) {
+            aggregate.add(i, values, 3);
+        }
+        long before = Allocations.current();
+        for (int i = 0; i < MEASURED_EVENTS; i++) {
+            aggregate.add(i, values, 3);
+        }
+        assertEquals(0, Allocations.current() - before);
+    }
+
+    @Test
+    public void orientationSamplesReachTheEpoch() {
+        SensorSource source = newSource();
+        for (int i = 0; i < 50; i++) {
+            feed(source, Sensor.TYPE_ROTATION_VECTOR, 5);
+            feed(source, Sensor.TYPE_LINEAR_ACCELERATION, 3);
+        }
+        source.onEpochEnd(epoch);
+        LocationUpdate lu = epoch.build(null);
+        int orientation = 0;
+        int acceleration = 0;
+        for (InertialSeries series : lu.inertialSeries) {
+            if (series.sensorType == Sensor.TYPE_ORIENTATION) {
+                orientation = series.xyz.length / 3;
+            } else if (series.sensorType == Sensor.TYPE_LINEAR_ACCELERATION) {
+                acceleration = series.xyz.length / 3;
+            }
+        }
+        assertEquals(50, orientation);
+        assertEquals(50, acceleration);
+    }
+
+    @Test
+    public void motionIsTimedWhenSamplesWereTakenNotDelivered() {
+        MotionState motion = new MotionState();
+        SensorSource source = new SensorSource(null, 0, INERTIAL_CAPACITY, motion, null);
+        // The sensor clock is 100 s behind elapsedRealtime; a sample delivered at once fixes the offset
+        deliver(source, 500, 100500, 0);
+        // Then a walk from 1 s to 1.38 s sensor time, held in the FIFO and delivered 3 s later
+        for (long ms = 1000; ms <= 1380; ms += 20) {
+            deliver(source, ms, 104380, 2);
+        }
+        assertTrue(motion.isMoving(101380 + MotionState.HOLD_MS - 100));
+        assertFalse(motion.isMoving(101380 + MotionState.HOLD_MS + 100));
+    }
+
+    private void deliver(SensorSource source, long sensorMs, long deliveredMs, float acceleration) {
+        event.type = IngestEvent.SENSOR;
+        event.time = sensorMs * 1000000;
+        event.deliveredNanos = deliveredMs * 1000000;
+        event.arg0 = Sensor.TYPE_LINEAR_ACCELERATION;
+        event.values[0] = acceleration;
+        event.values[1] = 0;
+        event.values[2] = 0;
+        event.valueCount = 3;
+        source.onEvent(event, epoch);
+    }
+
+    private static SensorSource newSource() {
+        return new SensorSource(null, 0, INERTIAL_CAPACITY, new MotionState(), null);
+    }
+
+    private long allocationFor(SensorSource source, int type, int valueCount) {
+        for (int i = 0; i < WARMUP_EVENTS; i++) {
+            feed(source, type, valueCount);
+        }
+        long before = Allocations.current();
+        for (int i = 0; i < MEASURED_EVENTS; i++) {
+            feed(source, type, valueCount);
+        }
+        return Allocations.current() - before;
+    }
+
+    // Fills the recycled record the way onSensorChanged does
+    private void feed(SensorSource source, int type, int valueCount) {
+        timeNanos += 20000000;
+        event.type = IngestEvent.SENSOR;
+        event.time = timeNanos;
+        event.deliveredNanos = timeNanos;
+        event.arg0 = type;
+        for (int i = 0; i < valueCount; i++) {
+            event.values[i] = 0.1f * (i + 1) + (timeNanos % 7) * 0.01f;
+        }
+        event.valueCount = valueCount;
+        source.onEvent(event, epoch);
+    }
+}
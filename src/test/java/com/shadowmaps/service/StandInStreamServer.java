@@ -0,0 +1,199 @@
+package com.shadowmaps.service;
+
+import com.google.protobuf.nano.MessageNano;
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process stand-in for the stream endpoint, so StreamingUplink can be run on a plain JVM.
+ *
+ * Each connection splits what it is written into length-delimited LocationUpdate frames and,
+ * latencyMs later, writes back a length-delimited LocationImprovement acknowledging the frame's
+ * seq. Like the real server it answers every frame after the seq the connection resumes after,
+ * including replayed frames whose answers were lost with the previous connection, and counts
+ * frames at or below it as duplicates.
+ */
+class StandInStreamServer implements StreamingUplink.Connector {
+    private final long latencyMs;
+    private final ScheduledExecutorService server = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "StandInStreamServer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    // Guarded by this
+    private Link current;
+    private long received = 0;
+    private long duplicates = 0;
+    private int connections = 0;
+
+    public StandInStreamServer(long latencyMs) {
+        this.latencyMs = latencyMs;
+    }
+
+    @Override
+    public synchronized StreamingUplink.Connection newConnection() {
+        connections++;
+        current = new Link();
+        return current;
+    }
+
+    /**
+     * Fails the current connection as a lost network would.
+     */
+    public void dropConnection() {
+        final Link link;
+        synchronized (this) {
+            link = current;
+        }
+        if (link != null) {
+            server.execute(new Runnable() {
+                @Override
+                public void run() {
+                    link.finish(new IOException("Connection dropped"));
+                }
+            });
+        }
+    }
+
+    public void shutdown() {
+        server.shutdownNow();
+    }
+
+    public synchronized long getReceivedCount() {
+        return received;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return duplicates;
+    }
+
+    public synchronized int getConnectionCount() {
+        return connections;
+    }
+
+    private synchronized void count(boolean duplicate) {
+        received++;
+        if (duplicate) {
+            duplicates++;
+        }
+    }
+
+    private final class Link implements StreamingUplink.Connection {
+        private final FrameDecoder decoder = new FrameDecoder(1024 * 1024);
+        // Only touched on the server thread after open
+        private StreamingUplink.Receiver receiver;
+        private long answeredUpTo;
+        private boolean closed = false;
+
+        @Override
+        public void open(final long resumeAfter, final StreamingUplink.Receiver receiver) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    Link.this.receiver = receiver;
+                    answeredUpTo = resumeAfter;
+                }
+            });
+        }
+
+        @Override
+        public void write(ByteBuffer frame) {
+            final ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame).flip();
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    read(copy);
+                }
+            });
+        }
+
+        @Override
+        public void close() {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    closed = true;
+                }
+            });
+        }
+
+        private void read(ByteBuffer bytes) {
+            if (closed) {
+                return;
+            }
+            try {
+                decoder.append(bytes, new FrameDecoder.FrameHandler() {
+                    @Override
+                    public void onFrame(byte[] data, int offset, int length) throws IOException {
+                        LocationUpdate update = MessageNano.mergeFrom(new LocationUpdate(), data, offset, length);
+                        boolean duplicate = update.seq <= answeredUpTo;
+                        count(duplicate);
+                        if (!duplicate) {
+                            answeredUpTo = update.seq;
+                            respond(update);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                finish(e);
+            }
+        }
+
+        private void respond(LocationUpdate update) {
+            LocationImprovement improvement = new LocationImprovement();
+            improvement.ackSeq = update.seq;
+            if (update.estimates.length > 0) {
+                improvement.lat = update.estimates[0].lat;
+                improvement.lon = update.estimates[0].lon;
+                improvement.utc = update.estimates[0].utc;
+            }
+            int length = improvement.getSerializedSize();
+            final ByteBuffer frame = ByteBuffer.allocate(FrameDecoder.prefixSize(length) + length);
+            FrameDecoder.writePrefix(frame, length);
+            frame.put(MessageNano.toByteArray(improvement)).flip();
+            try {
+                server.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!closed && receiver != null) {
+                            receiver.onBytes(frame);
+                        }
+                    }
+                }, latencyMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shut down
+            }
+        }
+
+        private void finish(Throwable error) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (receiver != null) {
+                receiver.onClosed(error);
+            }
+        }
+
+        private void execute(Runnable task) {
+            try {
+                server.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Shut down
+            }
+        }
+    }
+}
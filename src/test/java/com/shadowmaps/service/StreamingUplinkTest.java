@@ -0,0 +1,151 @@
+package com.shadowmaps.service;
+
+import com.google.protobuf.nano.MessageNano;
+import com.shadowmaps.data.TelemetrySnapshot;
+import com.shadowmaps.util.api.protobufs.LocationEstimate;
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.SatInfo;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingUplinkTest {
+    private static final int REPLAY_WINDOW = 64;
+    private static final long TIMEOUT_MS = 20000;
+
+    private final Telemetry telemetry = new Telemetry();
+    private final List<Long> acked = new ArrayList<>();
+    private StandInStreamServer server;
+    private StreamingUplink uplink;
+
+    @After
+    public void tearDown() {
+        if (uplink != null) {
+            uplink.stop();
+        }
+        if (server != null) {
+            server.shutdown();
+        }
+    }
+
+    @Test
+    public void throughput() throws Exception {
+        start(0);
+        byte[] epoch = epoch(0);
+        int epochs = 20000;
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < epochs; i++) {
+            // Stay within the replay window, as a 1 Hz producer always does
+            while (uplink.getUnackedCount() >= REPLAY_WINDOW) {
+                Thread.yield();
+            }
+            uplink.submit(epoch, telemetry.begin(System.nanoTime()));
+        }
+        awaitImprovements(epochs);
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.println("StreamingUplink: " + Math.round(epochs / seconds) + " epochs/s, "
+                + Math.round(epochs * (double) epoch.length / seconds / 1024) + " KiB/s");
+        assertEquals(epochs, server.getReceivedCount());
+        assertEquals(0, server.getDuplicateCount());
+        assertInOrder(1, epochs);
+    }
+
+    @Test
+    public void latency() throws Exception {
+        long serverLatencyMs = 20;
+        start(serverLatencyMs);
+        int epochs = 100;
+        for (int i = 0; i < epochs; i++) {
+            uplink.submit(epoch(i), telemetry.begin(System.nanoTime()));
+            Thread.sleep(5);
+        }
+        TelemetrySnapshot.Latency endToEnd = awaitImprovements(epochs).getEndToEndLatency();
+        System.out.println("StreamingUplink end to end with " + serverLatencyMs + " ms server: " + endToEnd);
+        assertTrue(endToEnd.getMinUs() >= serverLatencyMs * 1000);
+        // Frames are not held back behind each other
+        assertTrue(endToEnd.getP90Us() < (serverLatencyMs + 100) * 1000);
+    }
+
+    @Test
+    public void resumesAfterReconnect() throws Exception {
+        start(10);
+        int epochs = 200;
+        for (int i = 0; i < epochs; i++) {
+            uplink.submit(epoch(i), telemetry.begin(System.nanoTime()));
+            if (i == epochs / 2) {
+                server.dropConnection();
+            }
+            // Slow enough that the epochs submitted while reconnecting fit in the replay window
+            Thread.sleep(10);
+        }
+        awaitImprovements(epochs);
+        assertEquals(2, server.getConnectionCount());
+        // Every epoch is answered once, including those whose answers were lost with the connection
+        assertInOrder(1, epochs);
+        assertEquals(0, uplink.getUnackedCount());
+        assertEquals(epochs, uplink.getLastAcked());
+    }
+
+    private void start(long serverLatencyMs) {
+        server = new StandInStreamServer(serverLatencyMs);
+        uplink = new StreamingUplink(server, new RealtimeUploader.Listener() {
+            @Override
+            public void onImprovement(LocationImprovement improvement) {
+                synchronized (acked) {
+                    acked.add(improvement.ackSeq);
+                }
+            }
+        }, telemetry, REPLAY_WINDOW);
+        uplink.start();
+    }
+
+    private TelemetrySnapshot awaitImprovements(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            TelemetrySnapshot snapshot = telemetry.snapshot();
+            if (snapshot.getImprovementCount() >= count) {
+                return snapshot;
+            }
+            assertTrue("only " + snapshot.getImprovementCount() + " of " + count + " improvements",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void assertInOrder(long first, int count) {
+        synchronized (acked) {
+            assertEquals(count, acked.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(first + i, (long) acked.get(i));
+            }
+        }
+    }
+
+    private static byte[] epoch(int i) {
+        LocationUpdate update = new LocationUpdate();
+        LocationEstimate estimate = new LocationEstimate();
+        estimate.lat = 37.7749 + i * 1e-6;
+        estimate.lon = -122.4194;
+        estimate.acc = 8;
+        estimate.utc = 1450000000000L + i * 1000L;
+        estimate.provider = "gps";
+        update.estimates = new LocationEstimate[]{estimate};
+        SatInfo[] sats = new SatInfo[10];
+        for (int s = 0; s < sats.length; s++) {
+            sats[s] = new SatInfo();
+            sats[s].prn = s + 1;
+            sats[s].snr = 30 + s;
+            sats[s].azimuth = 36 * s;
+            sats[s].elevation = 5 * s;
+        }
+        update.satelliteInfos = sats;
+        return MessageNano.toByteArray(update);
+    }
+}
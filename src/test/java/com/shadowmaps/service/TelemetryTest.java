@@ -0,0 +1,116 @@
+package com.shadowmaps.service;
+
+import com.shadowmaps.data.TelemetrySnapshot;
+import com.shadowmaps.util.api.protobufs.LocationImprovement;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds traces with stage stamps in the past, so a test controls the round trip of a clock
+ * sample while complete() reads the real clocks.
+ */
+public class TelemetryTest {
+    private static final long MS = 1000000;
+    // Allowed for the test's own time between stamping and completing
+    private static final long SLACK_MS = 20;
+
+    private final Telemetry telemetry = new Telemetry();
+
+    @Test
+    public void serverAheadGivesAPositiveOffset() {
+        assertFalse(telemetry.snapshot().hasClockOffset());
+        assertEquals(1000, telemetry.toServerTime(1000));
+
+        sample(5000, 100);
+        TelemetrySnapshot snapshot = telemetry.snapshot();
+        assertTrue(snapshot.hasClockOffset());
+        assertNear(5000, snapshot.getClockOffsetMs());
+        assertEquals(50, snapshot.getClockUncertaintyMs());
+        assertNear(6000, telemetry.toServerTime(1000));
+    }
+
+    @Test
+    public void serverBehindGivesANegativeOffset() {
+        sample(-7000, 60);
+        assertNear(-7000, telemetry.snapshot().getClockOffsetMs());
+        assertNear(-6000, telemetry.toServerTime(1000));
+    }
+
+    @Test
+    public void shortestRoundTripWins() {
+        sample(1000, 40);
+        sample(9000, 200);
+        sample(-3000, 120);
+        assertNear(1000, telemetry.snapshot().getClockOffsetMs());
+        assertEquals(20, telemetry.snapshot().getClockUncertaintyMs());
+
+        // Until it is pushed out of the window
+        for (int i = 0; i < Telemetry.CLOCK_SAMPLES; i++) {
+            sample(9000, 200);
+        }
+        assertNear(9000, telemetry.snapshot().getClockOffsetMs());
+        assertEquals(100, telemetry.snapshot().getClockUncertaintyMs());
+    }
+
+    @Test
+    public void reusedSlotCountsALostTrace() {
+        long now = System.nanoTime();
+        long[] traces = new long[Telemetry.TRACE_SLOTS];
+        for (int i = 0; i < traces.length; i++) {
+            traces[i] = telemetry.begin(now);
+        }
+        telemetry.complete(traces[0], new LocationImprovement());
+        telemetry.fail(traces[2]);
+        assertEquals(0, telemetry.snapshot().getLostTraceCount());
+
+        // Into the slots of the completed, the unanswered and the failed trace
+        telemetry.begin(now);
+        telemetry.begin(now);
+        telemetry.begin(now);
+        TelemetrySnapshot snapshot = telemetry.snapshot();
+        assertEquals(1, snapshot.getLostTraceCount());
+        assertEquals(1, snapshot.getFailureCount());
+
+        // The lost trace's stamps no longer count
+        telemetry.mark(traces[1], TelemetrySnapshot.STAGE_SEND, now + MS);
+        telemetry.complete(traces[1], new LocationImprovement());
+        snapshot = telemetry.snapshot();
+        assertEquals(0, snapshot.getStageLatency(TelemetrySnapshot.STAGE_SEND).getCount());
+        assertEquals(1, snapshot.getEndToEndLatency().getCount());
+        assertEquals(2, snapshot.getImprovementCount());
+    }
+
+    @Test
+    public void stagesAreTimedFromTheLastStageMarked() {
+        long capture = System.nanoTime();
+        long trace = telemetry.begin(capture);
+        telemetry.mark(trace, TelemetrySnapshot.STAGE_ENCODE, capture + 3 * MS);
+        telemetry.mark(trace, TelemetrySnapshot.STAGE_SEND, capture + 10 * MS);
+        TelemetrySnapshot snapshot = telemetry.snapshot();
+        assertEquals(3000, snapshot.getStageLatency(TelemetrySnapshot.STAGE_ENCODE).getMaxUs());
+        assertEquals(7000, snapshot.getStageLatency(TelemetrySnapshot.STAGE_SEND).getMaxUs());
+        assertEquals(0, snapshot.getStageLatency(TelemetrySnapshot.STAGE_FINALIZE).getCount());
+    }
+
+    /**
+     * Completes a trace sent roundTripMs before its first byte, which arrived just now, with the
+     * server's clock offsetMs ahead of ours at the midpoint.
+     */
+    private void sample(long offsetMs, long roundTripMs) {
+        long now = System.nanoTime();
+        long trace = telemetry.begin(now - (roundTripMs + 10) * MS);
+        telemetry.mark(trace, TelemetrySnapshot.STAGE_SEND, now - roundTripMs * MS);
+        telemetry.mark(trace, TelemetrySnapshot.STAGE_FIRST_BYTE, now);
+        LocationImprovement improvement = new LocationImprovement();
+        improvement.serverTime = System.currentTimeMillis() - roundTripMs / 2 + offsetMs;
+        telemetry.complete(trace, improvement);
+    }
+
+    private static void assertNear(long expected, long actual) {
+        assertTrue("expected " + expected + " ms, got " + actual, Math.abs(actual - expected) <= SLACK_MS);
+    }
+}
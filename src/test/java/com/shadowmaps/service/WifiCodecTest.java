@@ -0,0 +1,144 @@
+package com.shadowmaps.service;
+
+import com.google.protobuf.nano.MessageNano;
+import com.shadowmaps.util.api.protobufs.LocationUpdate;
+import com.shadowmaps.util.api.protobufs.WiFiInfo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes scans as WifiSource does and decodes them from the wire, with and without lost epochs.
+ */
+public class WifiCodecTest {
+    private static final long AA = 0xaaaaaaaaaaaaL;
+    private static final long BB = 0xbbbbbbbbbbbbL;
+    private static final long CC = 0xccccccccccccL;
+    private static final long DD = 0xddddddddddddL;
+    private static final long SCAN_TIME = 1450000000000L;
+
+    private final WifiEncoder encoder = new WifiEncoder();
+    private final WifiDecoder decoder = new WifiDecoder();
+    private final EpochBuilder epoch = new EpochBuilder();
+    private int scans = 0;
+
+    @Test
+    public void deltasCarryOnlyNewAndChangedAccessPoints() {
+        LocationUpdate first = encode(new long[]{AA, BB}, new int[]{-60, -70});
+        assertTrue(first.wifiKeyframe);
+        assertEquals(2, first.wifiNetworks.length);
+        assertScan(decode(first), new long[]{AA, BB}, new int[]{-60, -70});
+
+        // BB moved within the noise and is not sent; CC is new
+        LocationUpdate second = encode(new long[]{AA, BB, CC}, new int[]{-50, -71, -80});
+        assertFalse(second.wifiKeyframe);
+        assertEquals(2, second.wifiNetworks.length);
+        assertEquals(0, second.wifiNetworks[0].mac);
+        assertEquals(CC, second.wifiNetworks[1].mac);
+        LocationUpdate decoded = decode(second);
+        assertScan(decoded, new long[]{AA, BB, CC}, new int[]{-50, -70, -80});
+        // Unchanged access points were seen in this scan
+        assertEquals(scanTime(), decoded.wifiNetworks[1].timestamp);
+        assertEquals(0, decoder.getDroppedCount());
+    }
+
+    @Test
+    public void keyframeSendsEveryAccessPointUnderNewIds() {
+        decode(encode(new long[]{AA, BB}, new int[]{-60, -70}));
+        decode(encode(new long[]{BB}, new int[]{-70}));
+        encoder.requestKeyframe();
+        LocationUpdate keyframe = encode(new long[]{BB, CC}, new int[]{-70, -80});
+        assertTrue(keyframe.wifiKeyframe);
+        assertArrayEquals(new int[]{0, 1}, keyframe.wifiIds);
+        assertEquals(BB, keyframe.wifiNetworks[0].mac);
+        assertScan(decode(keyframe), new long[]{BB, CC}, new int[]{-70, -80});
+        assertEquals(0, decoder.getDroppedCount());
+    }
+
+    @Test
+    public void everyKeyframeIntervalStartsAfresh() {
+        int keyframes = 0;
+        for (int i = 0; i < 3 * WifiEncoder.KEYFRAME_SCANS; i++) {
+            LocationUpdate lu = encode(new long[]{AA, BB}, new int[]{-60 - i % 2 * 5, -70});
+            if (lu.wifiKeyframe) {
+                keyframes++;
+            }
+            assertScan(decode(lu), new long[]{AA, BB}, new int[]{-60 - i % 2 * 5, -70});
+        }
+        assertEquals(3, keyframes);
+    }
+
+    @Test
+    public void lostKeyframeDoesNotDecodeAsTheOldDictionary() {
+        decode(encode(new long[]{AA}, new int[]{-60}));
+        encoder.requestKeyframe();
+        // Lost on the way: id 0 is now BB
+        encode(new long[]{BB}, new int[]{-70});
+        LocationUpdate delta = encode(new long[]{BB}, new int[]{-70});
+        assertArrayEquals(new int[]{0}, delta.wifiIds);
+        assertEquals(0, decode(delta).wifiNetworks.length);
+        assertEquals(1, decoder.getDroppedCount());
+    }
+
+    @Test
+    public void lostDeltaDropsScansUntilTheNextKeyframe() {
+        decode(encode(new long[]{AA, BB}, new int[]{-60, -70}));
+        // Lost on the way: CC gets id 2 and DD would be next
+        encode(new long[]{AA, CC}, new int[]{-60, -80});
+        assertEquals(0, decode(encode(new long[]{AA, CC}, new int[]{-60, -80})).wifiNetworks.length);
+        assertEquals(0, decode(encode(new long[]{AA, DD}, new int[]{-60, -90})).wifiNetworks.length);
+        assertEquals(4, decoder.getDroppedCount());
+
+        encoder.requestKeyframe();
+        assertScan(decode(encode(new long[]{AA, DD}, new int[]{-60, -90})), new long[]{AA, DD}, new int[]{-60, -90});
+        assertScan(decode(encode(new long[]{DD}, new int[]{-90})), new long[]{DD}, new int[]{-90});
+        assertEquals(4, decoder.getDroppedCount());
+    }
+
+    @Test
+    public void firstScanDecodesOnlyAsAKeyframe() {
+        encode(new long[]{AA}, new int[]{-60});
+        assertEquals(0, decode(encode(new long[]{AA}, new int[]{-60})).wifiNetworks.length);
+        assertEquals(1, decoder.getDroppedCount());
+    }
+
+    private LocationUpdate encode(long[] macs, int[] rssis) {
+        scans++;
+        int[] frequencies = new int[macs.length];
+        long[] times = new long[macs.length];
+        Arrays.fill(frequencies, 2437);
+        Arrays.fill(times, scanTime() - 100);
+        encoder.encode(macs, rssis, frequencies, times, macs.length, scanTime(), epoch);
+        // From the wire, as the server sees it
+        try {
+            return LocationUpdate.parseFrom(MessageNano.toByteArray(epoch.build(null)));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private LocationUpdate decode(LocationUpdate lu) {
+        decoder.decode(lu);
+        return lu;
+    }
+
+    private long scanTime() {
+        return SCAN_TIME + scans * 10000L;
+    }
+
+    private static void assertScan(LocationUpdate decoded, long[] macs, int[] rssis) {
+        WiFiInfo[] aps = decoded.wifiNetworks;
+        assertEquals(macs.length, aps.length);
+        for (int i = 0; i < macs.length; i++) {
+            assertEquals(BssidDictionary.format(macs[i]), aps[i].bssid);
+            assertEquals(rssis[i], aps[i].rssi);
+            assertEquals(2437, aps[i].frequency);
+        }
+    }
+}